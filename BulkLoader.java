@@ -0,0 +1,298 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * This class imports a CSV file into one of the ProfNetwork tables without
+ * going through the interactive menus.
+ *
+ * The first line of the file names the columns.  Records are streamed from
+ * disk and sent in chunks, each chunk in its own transaction, through the
+ * PostgreSQL COPY protocol when the driver offers it and through JDBC
+ * batches otherwise.  The number of records imported from the file is
+ * saved in the bulk_import_progress table by the same transaction as each
+ * chunk, so it never disagrees with what was committed; running the same
+ * import again skips those records, so a failed chunk can be retried
+ * without loading anything twice.
+ *
+ * Unquoted empty fields are loaded as NULL, as COPY does.
+ *
+ */
+public class BulkLoader {
+
+   // tables that may be imported
+   static final List<String> TABLES =
+      Arrays.asList("usr", "connection_usr", "work_expr", "educational_details");
+
+   // records imported so far from each file, by table and absolute path
+   static final String PROGRESS_DDL =
+      "CREATE TABLE IF NOT EXISTS bulk_import_progress (source text PRIMARY KEY, records bigint NOT NULL)";
+   private static final String PROGRESS_READ = "SELECT records FROM bulk_import_progress WHERE source = ?";
+   private static final String PROGRESS_SAVE =
+      "INSERT INTO bulk_import_progress (source, records) VALUES (?, ?) ON CONFLICT (source) DO UPDATE SET records = EXCLUDED.records";
+   private static final String PROGRESS_CLEAR = "DELETE FROM bulk_import_progress WHERE source = ?";
+
+   private final ProfNetwork esql;
+   private final String table;
+   private final Path csv;
+   private final String source;
+   private final int chunkRows;
+   private final boolean useCopy;
+
+   /**
+    * @param esql the database access object
+    * @param table the table to load
+    * @param csv the file to read
+    * @param chunkRows records committed per transaction
+    */
+   public BulkLoader(ProfNetwork esql, String table, Path csv, int chunkRows) {
+      if (!TABLES.contains(table.toLowerCase(Locale.ROOT)))
+         throw new IllegalArgumentException("Cannot import into " + table + ", expected one of " + TABLES);
+      this.esql = esql;
+      this.table = table.toLowerCase(Locale.ROOT);
+      this.csv = csv;
+      this.source = this.table + ":" + csv.toAbsolutePath().normalize();
+      this.chunkRows = Math.max(1, chunkRows);
+      this.useCopy = Boolean.parseBoolean(System.getProperty("profnetwork.import.copy", "true"));
+   }
+
+   /**
+    * Runs the import, resuming after the last committed chunk of an earlier
+    * run.  Progress is reported on standard out after each chunk.
+    *
+    * @return the number of records imported by this run
+    * @throws java.io.IOException when the file cannot be read
+    * @throws java.sql.SQLException when a chunk fails; earlier chunks stay committed
+    */
+   public long run() throws IOException, SQLException {
+      this.esql.withConnection(pc -> pc.prepare(PROGRESS_DDL).executeUpdate());
+      long done = readProgress();
+      long imported = 0;
+      long start = System.nanoTime();
+      try (BufferedReader reader = Files.newBufferedReader(this.csv, StandardCharsets.UTF_8)){
+         String header = readRecord(reader);
+         if (header == null)
+            throw new IOException(this.csv + " is empty");
+         List<String> columns = new ArrayList<String>();
+         for (String c : parseRecord(header)){
+            if (c == null || !c.trim().matches("[A-Za-z_][A-Za-z0-9_]*"))
+               throw new IOException("Invalid column name in header: " + c);
+            columns.add(c.trim());
+         }//end for
+
+         // skip what an earlier run already committed
+         for (long i = 0; i < done; ++i)
+            if (readRecord(reader) == null)
+               break;
+         if (done > 0)
+            System.out.println("Resuming after " + done + " records");
+
+         List<String> chunk = new ArrayList<String>(this.chunkRows);
+         String record;
+         do{
+            record = readRecord(reader);
+            if (record != null)
+               chunk.add(record);
+            if (chunk.size() == this.chunkRows || (record == null && !chunk.isEmpty())){
+               try{
+                  loadChunk(columns, chunk, done + chunk.size());
+               }catch (SQLException e){
+                  throw new SQLException("Chunk starting at record " + (done + 1) + " failed, rerun to resume: "
+                                         + e.getMessage(), e.getSQLState(), e);
+               }//end try
+               this.esql.invalidate("INSERT INTO " + this.table);
+               done += chunk.size();
+               imported += chunk.size();
+               chunk.clear();
+               double secs = (System.nanoTime() - start) / 1e9;
+               System.out.printf("%s: %d records committed (%.0f rows/sec)%n",
+                                 this.table, done, imported / Math.max(secs, 1e-9));
+            }//end if
+         }while (record != null);
+      }//end try
+      this.esql.withConnection(pc -> {
+         PreparedStatement stmt = pc.prepare(PROGRESS_CLEAR);
+         stmt.setString(1, this.source);
+         return stmt.executeUpdate();
+      });
+      return imported;
+   }//end run
+
+   // sends one chunk and the new progress in one transaction
+   private void loadChunk(final List<String> columns, final List<String> chunk, final long done) throws SQLException {
+      this.esql.withConnection(pc -> {
+         Connection conn = pc.getConnection();
+         conn.setAutoCommit(false);
+         try{
+            if (!this.useCopy || !copy(conn, columns, chunk))
+               batch(pc, columns, chunk);
+            PreparedStatement stmt = pc.prepare(PROGRESS_SAVE);
+            stmt.setString(1, this.source);
+            stmt.setLong(2, done);
+            stmt.executeUpdate();
+            conn.commit();
+         }finally{
+            if (!conn.getAutoCommit()){
+               conn.rollback();
+               conn.setAutoCommit(true);
+            }//end if
+         }//end try
+         return null;
+      });
+   }//end loadChunk
+
+   // COPY through the driver's CopyManager; returns false when the driver has none
+   private boolean copy(Connection conn, List<String> columns, List<String> chunk) throws SQLException {
+      Object copyApi;
+      Method copyIn;
+      try{
+         // looked up by name, so the class compiles without the driver on the classpath
+         Class<?> pgConnection = Class.forName("org.postgresql.PGConnection");
+         if (!conn.isWrapperFor(pgConnection))
+            return false;
+         Object pg = conn.unwrap(pgConnection);
+         copyApi = pgConnection.getMethod("getCopyAPI").invoke(pg);
+         copyIn = Class.forName("org.postgresql.copy.CopyManager").getMethod("copyIn", String.class, Reader.class);
+      }catch (ReflectiveOperationException e){
+         return false;
+      }//end try
+
+      StringBuilder data = new StringBuilder(chunk.size() * 64);
+      for (String record : chunk)
+         data.append(record).append('\n');
+      String sql = "COPY " + this.table + " (" + String.join(", ", columns) + ") FROM STDIN WITH (FORMAT csv)";
+      try{
+         copyIn.invoke(copyApi, sql, new StringReader(data.toString()));
+      }catch (InvocationTargetException e){
+         if (e.getCause() instanceof SQLException)
+            throw (SQLException) e.getCause();
+         throw new SQLException(e.getCause());
+      }catch (IllegalAccessException e){
+         throw new SQLException(e);
+      }//end try
+      return true;
+   }//end copy
+
+   // INSERTs sent as one JDBC batch; values are typed by the server
+   private void batch(ConnectionPool.PooledConnection pc, List<String> columns, List<String> chunk) throws SQLException {
+      StringBuilder sql = new StringBuilder("INSERT INTO ").append(this.table)
+         .append(" (").append(String.join(", ", columns)).append(") VALUES (");
+      for (int i = 0; i < columns.size(); ++i)
+         sql.append(i == 0 ? "?" : ", ?");
+      sql.append(')');
+      PreparedStatement stmt = pc.prepare(sql.toString());
+      try{
+         for (String record : chunk){
+            List<String> fields = parseRecord(record);
+            if (fields.size() != columns.size())
+               throw new SQLException("Expected " + columns.size() + " fields but found " + fields.size() + ": " + record);
+            for (int i = 0; i < fields.size(); ++i){
+               if (fields.get(i) == null)
+                  stmt.setNull(i + 1, Types.OTHER);
+               else
+                  stmt.setObject(i + 1, fields.get(i), Types.OTHER);
+            }//end for
+            stmt.addBatch();
+         }//end for
+         stmt.executeBatch();
+      }finally{
+         // the statement is cached on the connection: drop rows a failed chunk queued
+         stmt.clearBatch();
+      }//end try
+   }//end batch
+
+   /**
+    * Reads one CSV record, which spans several lines when a quoted field
+    * contains line breaks.
+    *
+    * @param reader the file being read
+    * @return the record without its final line break, or null at end of file
+    * @throws java.io.IOException when the file cannot be read
+    */
+   static String readRecord(BufferedReader reader) throws IOException {
+      String line = reader.readLine();
+      if (line == null)
+         return null;
+      int quotes = count(line, '"');
+      if (quotes % 2 == 0)
+         return line;
+      StringBuilder record = new StringBuilder(line);
+      while (quotes % 2 != 0 && (line = reader.readLine()) != null){
+         record.append('\n').append(line);
+         quotes += count(line, '"');
+      }//end while
+      return record.toString();
+   }//end readRecord
+
+   private static int count(String s, char c) {
+      int n = 0;
+      for (int i = 0; i < s.length(); ++i)
+         if (s.charAt(i) == c)
+            ++n;
+      return n;
+   }
+
+   /**
+    * Splits a CSV record into its fields.
+    *
+    * @param record one record as returned by readRecord
+    * @return the fields; null for an unquoted empty field
+    */
+   static List<String> parseRecord(String record) {
+      List<String> fields = new ArrayList<String>();
+      StringBuilder field = new StringBuilder();
+      boolean quoted = false, wasQuoted = false;
+      for (int i = 0; i < record.length(); ++i){
+         char c = record.charAt(i);
+         if (quoted){
+            if (c == '"' && i + 1 < record.length() && record.charAt(i + 1) == '"'){
+               field.append('"');
+               ++i;
+            }else if (c == '"'){
+               quoted = false;
+            }else{
+               field.append(c);
+            }//end if
+         }else if (c == '"'){
+            quoted = wasQuoted = true;
+         }else if (c == ','){
+            fields.add(field.length() == 0 && !wasQuoted ? null : field.toString());
+            field.setLength(0);
+            wasQuoted = false;
+         }else{
+            field.append(c);
+         }//end if
+      }//end for
+      fields.add(field.length() == 0 && !wasQuoted ? null : field.toString());
+      return fields;
+   }//end parseRecord
+
+   // records committed by earlier runs, from the progress table
+   private long readProgress() throws SQLException {
+      Long saved = this.esql.withConnection(pc -> {
+         PreparedStatement stmt = pc.prepare(PROGRESS_READ);
+         stmt.setString(1, this.source);
+         ResultSet rs = stmt.executeQuery();
+         Long records = rs.next() ? rs.getLong(1) : null;
+         rs.close();
+         return records;
+      });
+      return saved == null ? 0 : saved;
+   }
+
+}//end BulkLoader
@@ -0,0 +1,429 @@
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * This class holds a query result column by column in a few primitive
+ * arrays, instead of one String per cell and one list per row.
+ *
+ * Integer and boolean columns are kept in long[] arrays, floating point
+ * columns in double[] and dates as epoch days in int[].  Text of every
+ * column is copied into one shared char[] slab and addressed by offset and
+ * length.  Text columns start out dictionary encoded, an int code per row
+ * plus one copy of each distinct value, which suits repetitive columns such
+ * as status, company or degree; a column switches to the slab once it has
+ * more than profnetwork.columnar.dictionaryLimit (default 256) distinct
+ * values.  Nulls are kept in a bitmap per column.
+ *
+ * Trailing blanks are stripped from the values of char(n) columns, which
+ * come back padded; other text keeps its blanks.  Booleans read back as
+ * t or f, the way PostgreSQL prints them.
+ *
+ * A ColumnarResult can be filled by executeQueryAndStream, as a RowHandler,
+ * or from an open ResultSet with read().
+ *
+ */
+public class ColumnarResult implements ProfNetwork.RowHandler {
+
+   // distinct values a text column may have before it leaves the dictionary
+   static final int DICTIONARY_LIMIT = ProfNetwork.config("columnar.dictionaryLimit", 256);
+
+   /**
+    * How a column is stored.
+    */
+   public enum Type { LONG, BOOLEAN, DOUBLE, DATE, STRING }
+
+   private static final class Column {
+      final String name;
+      final Type type;
+      // a char(n) column, whose values are padded with blanks
+      boolean padded;
+      // values of a LONG column, or 1 and 0 for a BOOLEAN one
+      long[] longs;
+      double[] doubles;
+      // epoch days of a DATE column, or dictionary codes of a STRING column
+      int[] ints;
+      // slab position of each value of a STRING column out of the dictionary
+      int[] offsets;
+      int[] lengths;
+      long[] nulls;
+      HashMap<String, Integer> codes;
+      List<String> dictionary;
+
+      Column(String name, Type type) {
+         this.name = name;
+         this.type = type;
+      }
+   }
+
+   private Column[] columns = null;
+   private int rowCount = 0;
+   private int capacity = 0;
+   private char[] slab = new char[0];
+   private int slabSize = 0;
+
+   // characters of the values read, as printed by the driver, for the
+   // query metrics
+   private long charsRead = 0;
+
+   /**
+    * Reads the rest of an open result set.
+    *
+    * @param rs the result set, positioned before its first row
+    * @return the rows read
+    * @throws java.sql.SQLException when a column cannot be read
+    */
+   public static ColumnarResult read(ResultSet rs) throws SQLException {
+      ColumnarResult result = new ColumnarResult();
+      result.init(rs.getMetaData());
+      while (rs.next())
+         result.row(rs);
+      return result;
+   }
+
+   private void init(ResultSetMetaData meta) throws SQLException {
+      this.columns = new Column[meta.getColumnCount()];
+      for (int c = 0; c < this.columns.length; ++c){
+         Type type;
+         switch (meta.getColumnType(c + 1)){
+            case Types.TINYINT: case Types.SMALLINT: case Types.INTEGER:
+            case Types.BIGINT:
+               type = Type.LONG;
+               break;
+            case Types.BOOLEAN: case Types.BIT:
+               type = Type.BOOLEAN;
+               break;
+            case Types.REAL: case Types.FLOAT: case Types.DOUBLE:
+               type = Type.DOUBLE;
+               break;
+            case Types.DATE:
+               type = Type.DATE;
+               break;
+            default:
+               type = Type.STRING;
+         }//end switch
+         Column col = new Column(meta.getColumnLabel(c + 1), type);
+         if (type == Type.STRING){
+            col.codes = new HashMap<String, Integer>();
+            col.dictionary = new ArrayList<String>();
+            col.padded = "bpchar".equalsIgnoreCase(meta.getColumnTypeName(c + 1));
+         }
+         col.nulls = new long[0];
+         this.columns[c] = col;
+      }//end for
+      grow(16);
+   }//end init
+
+   // makes room for the given number of rows in every column
+   private void grow(int rows) {
+      if (rows <= this.capacity)
+         return;
+      int cap = Math.max(rows, this.capacity * 2);
+      for (Column col : this.columns){
+         switch (col.type){
+            case LONG: case BOOLEAN:
+               col.longs = col.longs == null ? new long[cap] : Arrays.copyOf(col.longs, cap);
+               break;
+            case DOUBLE:
+               col.doubles = col.doubles == null ? new double[cap] : Arrays.copyOf(col.doubles, cap);
+               break;
+            default:
+               if (col.offsets != null){
+                  col.offsets = Arrays.copyOf(col.offsets, cap);
+                  col.lengths = Arrays.copyOf(col.lengths, cap);
+               }else{
+                  col.ints = col.ints == null ? new int[cap] : Arrays.copyOf(col.ints, cap);
+               }
+         }//end switch
+         col.nulls = Arrays.copyOf(col.nulls, (cap + 63) >>> 6);
+      }//end for
+      this.capacity = cap;
+   }//end grow
+
+   /**
+    * Appends the current row of the result set.
+    *
+    * @param rs the result set positioned on the row
+    * @return true, to keep reading
+    * @throws java.sql.SQLException when a column cannot be read
+    */
+   public boolean row(ResultSet rs) throws SQLException {
+      if (this.columns == null)
+         init(rs.getMetaData());
+      grow(this.rowCount + 1);
+      int r = this.rowCount;
+      for (int c = 0; c < this.columns.length; ++c){
+         Column col = this.columns[c];
+         switch (col.type){
+            case LONG:
+               col.longs[r] = rs.getLong(c + 1);
+               if (rs.wasNull())
+                  setNull(col, r);
+               else
+                  this.charsRead += digits(col.longs[r]);
+               break;
+            case BOOLEAN:
+               col.longs[r] = rs.getBoolean(c + 1) ? 1 : 0;
+               if (rs.wasNull())
+                  setNull(col, r);
+               else
+                  ++this.charsRead;
+               break;
+            case DOUBLE:
+               col.doubles[r] = rs.getDouble(c + 1);
+               if (rs.wasNull())
+                  setNull(col, r);
+               else
+                  this.charsRead += Double.toString(col.doubles[r]).length();
+               break;
+            case DATE:
+               java.sql.Date d = rs.getDate(c + 1);
+               if (d == null){
+                  setNull(col, r);
+               }else{
+                  col.ints[r] = (int) d.toLocalDate().toEpochDay();
+                  // yyyy-mm-dd
+                  this.charsRead += 10;
+               }
+               break;
+            default:
+               String s = rs.getString(c + 1);
+               if (s == null){
+                  setNull(col, r);
+               }else{
+                  this.charsRead += s.length();
+                  putString(col, r, col.padded ? stripTrailing(s) : s);
+               }
+         }//end switch
+      }//end for
+      ++this.rowCount;
+      return true;
+   }//end row
+
+   // length of the decimal form of a long
+   private static int digits(long v) {
+      int n = v < 0 ? 2 : 1;
+      for (v /= 10; v != 0; v /= 10)
+         ++n;
+      return n;
+   }
+
+   /**
+    * @return the characters of the values read, as the driver prints them
+    */
+   public long bytesRead() {
+      return this.charsRead;
+   }
+
+   private static void setNull(Column col, int r) {
+      col.nulls[r >>> 6] |= 1L << r;
+   }
+
+   private static String stripTrailing(String s) {
+      int end = s.length();
+      while (end > 0 && s.charAt(end - 1) == ' ')
+         --end;
+      return end == s.length() ? s : s.substring(0, end);
+   }
+
+   private void putString(Column col, int r, String s) {
+      if (col.codes != null){
+         Integer code = col.codes.get(s);
+         if (code == null && col.dictionary.size() < DICTIONARY_LIMIT){
+            code = col.dictionary.size();
+            col.codes.put(s, code);
+            col.dictionary.add(s);
+         }
+         if (code != null){
+            col.ints[r] = code;
+            return;
+         }
+         leaveDictionary(col);
+      }//end if
+      col.offsets[r] = append(s);
+      col.lengths[r] = s.length();
+   }//end putString
+
+   // moves the rows read so far from the dictionary to the slab
+   private void leaveDictionary(Column col) {
+      col.offsets = new int[this.capacity];
+      col.lengths = new int[this.capacity];
+      for (int r = 0; r < this.rowCount; ++r){
+         if (isNull(col, r))
+            continue;
+         String s = col.dictionary.get(col.ints[r]);
+         col.offsets[r] = append(s);
+         col.lengths[r] = s.length();
+      }
+      col.ints = null;
+      col.codes = null;
+      col.dictionary = null;
+   }
+
+   private int append(String s) {
+      int at = this.slabSize;
+      if (at + s.length() > this.slab.length)
+         this.slab = Arrays.copyOf(this.slab, Math.max(at + s.length(), Math.max(256, this.slab.length * 2)));
+      s.getChars(0, s.length(), this.slab, at);
+      this.slabSize += s.length();
+      return at;
+   }
+
+   /**
+    * @return the number of rows
+    */
+   public int rowCount() {
+      return this.rowCount;
+   }
+
+   /**
+    * @return the number of columns, 0 when filled from an empty stream
+    */
+   public int columnCount() {
+      return this.columns == null ? 0 : this.columns.length;
+   }
+
+   /**
+    * @param c the zero-based column
+    * @return the column label
+    */
+   public String columnName(int c) {
+      return this.columns[c].name;
+   }
+
+   /**
+    * @param c the zero-based column
+    * @return how the column is stored
+    */
+   public Type type(int c) {
+      return this.columns[c].type;
+   }
+
+   /**
+    * @param c the zero-based column
+    * @return true while a text column is dictionary encoded
+    */
+   public boolean isDictionaryEncoded(int c) {
+      return this.columns[c].codes != null;
+   }
+
+   private Column column(int r, int c) {
+      if (r < 0 || r >= this.rowCount)
+         throw new IndexOutOfBoundsException("Row " + r + " of " + this.rowCount);
+      return this.columns[c];
+   }
+
+   private static boolean isNull(Column col, int r) {
+      return (col.nulls[r >>> 6] & (1L << r)) != 0;
+   }
+
+   /**
+    * @param r the zero-based row
+    * @param c the zero-based column
+    * @return true if the value is SQL NULL
+    */
+   public boolean isNull(int r, int c) {
+      return isNull(column(r, c), r);
+   }
+
+   /**
+    * @return the value of a LONG column, 0 for NULL
+    */
+   public long getLong(int r, int c) {
+      Column col = column(r, c);
+      if (col.type != Type.LONG)
+         throw new IllegalArgumentException(col.name + " is a " + col.type + " column");
+      return col.longs[r];
+   }
+
+   /**
+    * @return the value of a LONG column as an int, 0 for NULL
+    */
+   public int getInt(int r, int c) {
+      return (int) getLong(r, c);
+   }
+
+   /**
+    * @return the value of a BOOLEAN column, false for NULL
+    */
+   public boolean getBoolean(int r, int c) {
+      Column col = column(r, c);
+      if (col.type != Type.BOOLEAN)
+         throw new IllegalArgumentException(col.name + " is a " + col.type + " column");
+      return col.longs[r] != 0;
+   }
+
+   /**
+    * @return the value of a DOUBLE column, 0 for NULL
+    */
+   public double getDouble(int r, int c) {
+      Column col = column(r, c);
+      if (col.type != Type.DOUBLE)
+         throw new IllegalArgumentException(col.name + " is a " + col.type + " column");
+      return col.doubles[r];
+   }
+
+   /**
+    * @return the value of a DATE column, or null
+    */
+   public LocalDate getDate(int r, int c) {
+      Column col = column(r, c);
+      if (col.type != Type.DATE)
+         throw new IllegalArgumentException(col.name + " is a " + col.type + " column");
+      return isNull(col, r) ? null : LocalDate.ofEpochDay(col.ints[r]);
+   }
+
+   /**
+    * @return the value of any column as text, or null
+    */
+   public String getString(int r, int c) {
+      Column col = column(r, c);
+      if (isNull(col, r))
+         return null;
+      switch (col.type){
+         case LONG:
+            return Long.toString(col.longs[r]);
+         case BOOLEAN:
+            return col.longs[r] != 0 ? "t" : "f";
+         case DOUBLE:
+            return Double.toString(col.doubles[r]);
+         case DATE:
+            return LocalDate.ofEpochDay(col.ints[r]).toString();
+         default:
+            if (col.codes != null)
+               return col.dictionary.get(col.ints[r]);
+            return new String(this.slab, col.offsets[r], col.lengths[r]);
+      }//end switch
+   }//end getString
+
+   /**
+    * @return the approximate number of bytes held by the result
+    */
+   public long byteSize() {
+      long bytes = (long) this.slab.length * 2;
+      if (this.columns == null)
+         return bytes;
+      for (Column col : this.columns){
+         bytes += (long) col.nulls.length * 8;
+         if (col.longs != null)
+            bytes += (long) col.longs.length * 8;
+         if (col.doubles != null)
+            bytes += (long) col.doubles.length * 8;
+         if (col.ints != null)
+            bytes += (long) col.ints.length * 4;
+         if (col.offsets != null)
+            bytes += (long) col.offsets.length * 8;
+         if (col.dictionary != null)
+            for (String s : col.dictionary)
+               bytes += 40 + (long) s.length() * 2;
+      }
+      return bytes;
+   }//end byteSize
+
+}//end ColumnarResult
@@ -0,0 +1,295 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps a bounded set of physical connections to the database so
+ * that several sessions can run statements at the same time.  Idle
+ * connections are kept most-recently-used first, validated before they are
+ * handed out again and closed once they sit unused for too long.
+ *
+ * Each connection also keeps a small LRU cache of prepared statements keyed
+ * by their SQL text.  Reusing the same PreparedStatement lets the PostgreSQL
+ * driver switch it to a named server-side statement, so the server stops
+ * parsing and planning the query on every call.
+ *
+ */
+public class ConnectionPool {
+
+   // connection parameters used to open new physical connections
+   private final String url;
+   private final String user;
+   private final String passwd;
+
+   // sizing and timing settings
+   private final int minSize;
+   private final int maxSize;
+   private final long idleTimeoutMillis;
+   private final long borrowTimeoutMillis;
+   private final long validateAfterMillis;
+   private final int statementCacheSize;
+
+   // idle connections, most recently returned first
+   private final LinkedBlockingDeque<PooledConnection> idle =
+      new LinkedBlockingDeque<PooledConnection>();
+
+   // one permit per connection that may be handed out at the same time
+   private final Semaphore permits;
+
+   // background thread closing connections that have been idle too long
+   private final ScheduledExecutorService evictor;
+
+   private volatile boolean closed = false;
+
+   /**
+    * A physical connection owned by the pool.
+    */
+   public static class PooledConnection {
+      private final Connection connection;
+      private final Map<String, PreparedStatement> statements;
+      private long lastUsed;
+      private boolean broken = false;
+
+      PooledConnection(Connection connection, final int statementCacheSize) {
+         this.connection = connection;
+         this.lastUsed = System.currentTimeMillis();
+         // access ordered, so the eldest entry is the least recently used
+         this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+               if (size() <= statementCacheSize)
+                  return false;
+               closeQuietly(eldest.getValue());
+               return true;
+            }
+         };
+      }
+
+      /**
+       * @return the underlying JDBC connection
+       */
+      public Connection getConnection() {
+         return this.connection;
+      }
+
+      /**
+       * Returns the cached prepared statement for the given SQL text,
+       * preparing it on first use.  The statement belongs to the cache:
+       * callers close the ResultSets they open but never the statement.
+       *
+       * @param sql the SQL template with ? placeholders
+       * @return a prepared statement ready to have its parameters bound
+       * @throws java.sql.SQLException when the statement cannot be prepared
+       */
+      public PreparedStatement prepare(String sql) throws SQLException {
+         PreparedStatement stmt = this.statements.get(sql);
+         if (stmt == null || stmt.isClosed()){
+            stmt = this.connection.prepareStatement(sql);
+            this.statements.put(sql, stmt);
+         }//end if
+         return stmt;
+      }
+
+      /**
+       * Marks the connection as unusable when the given error means the
+       * socket to the server is gone, so the pool closes it on release.
+       *
+       * @param e the error raised while using this connection
+       */
+      public void checkFatal(SQLException e) {
+         String state = e.getSQLState();
+         if (state != null && state.startsWith("08"))
+            this.broken = true;
+      }
+
+      void close() {
+         for (PreparedStatement stmt : this.statements.values())
+            closeQuietly(stmt);
+         this.statements.clear();
+         try{
+            this.connection.close();
+         }catch (SQLException e){
+            // ignored.
+         }//end try
+      }
+   }//end PooledConnection
+
+   private static void closeQuietly(PreparedStatement stmt) {
+      try{
+         stmt.close();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }
+
+   /**
+    * Creates a new pool and opens its minimum number of connections.
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param minSize number of connections kept open even when idle
+    * @param maxSize maximum number of connections open at the same time
+    * @param idleTimeoutMillis how long a connection above minSize may stay idle
+    * @param borrowTimeoutMillis how long borrow() waits for a free connection
+    * @param validateAfterMillis idle time after which a connection is validated on borrow
+    * @param statementCacheSize prepared statements cached per connection
+    * @throws java.sql.SQLException when the initial connections cannot be opened
+    */
+   public ConnectionPool (String url, String user, String passwd,
+                          int minSize, int maxSize, long idleTimeoutMillis,
+                          long borrowTimeoutMillis, long validateAfterMillis,
+                          int statementCacheSize) throws SQLException {
+      if (maxSize < 1 || minSize < 0 || minSize > maxSize)
+         throw new IllegalArgumentException("Invalid pool size: min=" + minSize + " max=" + maxSize);
+      this.url = url;
+      this.user = user;
+      this.passwd = passwd;
+      this.minSize = minSize;
+      this.maxSize = maxSize;
+      this.idleTimeoutMillis = idleTimeoutMillis;
+      this.borrowTimeoutMillis = borrowTimeoutMillis;
+      this.validateAfterMillis = validateAfterMillis;
+      this.statementCacheSize = statementCacheSize;
+      this.permits = new Semaphore(maxSize, true);
+
+      // fill the pool up to its minimum size
+      for (int i = 0; i < minSize; ++i)
+         this.idle.offerLast(open());
+
+      this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "ConnectionPool-evictor");
+         t.setDaemon(true);
+         return t;
+      });
+      long period = Math.max(1000, idleTimeoutMillis / 2);
+      this.evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+   }//end ConnectionPool
+
+   /**
+    * Takes a connection from the pool, opening a new one if none is idle.
+    * The caller must hand it back with release().
+    *
+    * @return a validated connection
+    * @throws java.sql.SQLException when no connection becomes free in time or
+    *         a new connection cannot be opened
+    */
+   public PooledConnection borrow() throws SQLException {
+      if (this.closed)
+         throw new SQLTransientConnectionException("Connection pool is closed", "08003");
+      try{
+         if (!this.permits.tryAcquire(this.borrowTimeoutMillis, TimeUnit.MILLISECONDS))
+            // every connection is in use: the server is busy, not unreachable
+            throw new SQLTimeoutException(
+               "Timed out after " + this.borrowTimeoutMillis + "ms waiting for a database connection", "HYT00");
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLTimeoutException("Interrupted waiting for a database connection", "HY008", e);
+      }//end try
+
+      try{
+         // reuse the most recently returned connection that is still alive
+         PooledConnection pc;
+         while ((pc = this.idle.pollFirst()) != null){
+            if (isUsable(pc))
+               return pc;
+            pc.close();
+         }//end while
+         return open();
+      }catch (SQLException | RuntimeException e){
+         this.permits.release();
+         throw e;
+      }//end try
+   }//end borrow
+
+   /**
+    * Hands a borrowed connection back to the pool.
+    *
+    * @param pc the connection obtained from borrow()
+    */
+   public void release(PooledConnection pc) {
+      if (pc == null)
+         return;
+      try{
+         if (this.closed || pc.broken || pc.connection.isClosed()){
+            pc.close();
+         }else{
+            // leave the connection the way the next borrower expects it
+            if (!pc.connection.getAutoCommit()){
+               pc.connection.rollback();
+               pc.connection.setAutoCommit(true);
+            }//end if
+            pc.lastUsed = System.currentTimeMillis();
+            this.idle.offerFirst(pc);
+            // close() may have drained the idle list since the check above
+            if (this.closed){
+               PooledConnection idle;
+               while ((idle = this.idle.pollFirst()) != null)
+                  idle.close();
+            }//end if
+         }//end if
+      }catch (SQLException e){
+         pc.close();
+      }finally{
+         this.permits.release();
+      }//end try
+   }//end release
+
+   /**
+    * Closes every idle connection and stops handing out new ones.
+    * Connections still borrowed are closed when they are released.
+    */
+   public void close() {
+      this.closed = true;
+      this.evictor.shutdownNow();
+      PooledConnection pc;
+      while ((pc = this.idle.pollFirst()) != null)
+         pc.close();
+   }//end close
+
+   /**
+    * @return the maximum number of connections this pool may open
+    */
+   public int getMaxSize() {
+      return this.maxSize;
+   }
+
+   private PooledConnection open() throws SQLException {
+      return new PooledConnection(DriverManager.getConnection(this.url, this.user, this.passwd),
+                                  this.statementCacheSize);
+   }
+
+   private boolean isUsable(PooledConnection pc) {
+      try{
+         if (pc.connection.isClosed())
+            return false;
+         if (System.currentTimeMillis() - pc.lastUsed < this.validateAfterMillis)
+            return true;
+         return pc.connection.isValid(5);
+      }catch (SQLException e){
+         return false;
+      }//end try
+   }
+
+   // closes the least recently used idle connections above the minimum size
+   private void evictIdle() {
+      long cutoff = System.currentTimeMillis() - this.idleTimeoutMillis;
+      while (this.idle.size() > this.minSize){
+         PooledConnection pc = this.idle.peekLast();
+         if (pc == null || pc.lastUsed > cutoff)
+            break;
+         if (this.idle.removeLastOccurrence(pc))
+            pc.close();
+      }//end while
+   }//end evictIdle
+
+}//end ConnectionPool
@@ -0,0 +1,187 @@
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * This class pages through a sorted list of userIds with keyset (seek)
+ * pagination: each page is read as the keys after the last key of the
+ * previous page, or before the first key of the next one, instead of with
+ * an OFFSET, so reading page 500 costs the same as reading page 1 and rows
+ * added or removed meanwhile do not shift the pages.
+ *
+ * Each page is fetched with one extra row, which tells whether there is
+ * another page beyond it.
+ *
+ */
+public class KeysetPager {
+
+   /**
+    * Reads keys on one side of a cursor.
+    */
+   public interface Source {
+      /**
+       * @param cursor the key to seek from; "" before the first key
+       * @param forward true for the keys after the cursor in ascending
+       *        order, false for the keys before it in descending order
+       * @param limit the most keys to return
+       * @return the keys
+       * @throws java.sql.SQLException when the keys cannot be read
+       */
+      String[] fetch(String cursor, boolean forward, int limit) throws SQLException;
+   }
+
+   private final Source source;
+   private int pageSize;
+   private String[] page = new String[0];
+   // the key just below the current page, "" on the first page
+   private String lowerBound = "";
+   private boolean hasNext = false;
+   private int pageNumber = 1;
+
+   /**
+    * @param source where the keys are read from
+    * @param pageSize keys per page
+    */
+   public KeysetPager(Source source, int pageSize) {
+      this.source = source;
+      this.pageSize = Math.max(1, pageSize);
+   }
+
+   /**
+    * Reads the first page.
+    *
+    * @throws java.sql.SQLException when the keys cannot be read
+    */
+   public void first() throws SQLException {
+      this.pageNumber = 1;
+      forward("");
+   }
+
+   /**
+    * Reads the current page again, from the same starting point.
+    *
+    * @throws java.sql.SQLException when the keys cannot be read
+    */
+   public void refresh() throws SQLException {
+      forward(this.lowerBound);
+   }
+
+   /**
+    * Moves to the next page.
+    *
+    * @return false when there is no next page
+    * @throws java.sql.SQLException when the keys cannot be read
+    */
+   public boolean next() throws SQLException {
+      if (!this.hasNext)
+         return false;
+      forward(this.page[this.page.length - 1]);
+      ++this.pageNumber;
+      return true;
+   }
+
+   /**
+    * Moves to the previous page.
+    *
+    * @return false when there is no previous page
+    * @throws java.sql.SQLException when the keys cannot be read
+    */
+   public boolean previous() throws SQLException {
+      if (!hasPrevious())
+         return false;
+      if (this.page.length == 0){
+         // the keys of this page were deleted: the previous page ends at
+         // the lower bound, so it is read forward from pageSize keys below
+         String[] below = this.source.fetch(this.lowerBound, false, this.pageSize);
+         if (below.length < this.pageSize){
+            first();
+            return true;
+         }
+         forward(below[this.pageSize - 1]);
+         this.pageNumber = Math.max(2, this.pageNumber - 1);
+         return true;
+      }//end if
+      String[] rows = this.source.fetch(this.page[0], false, this.pageSize + 1);
+      if (rows.length == 0){
+         first();
+         return true;
+      }
+      int n = Math.min(rows.length, this.pageSize);
+      String[] p = new String[n];
+      for (int i = 0; i < n; ++i)
+         p[i] = rows[n - 1 - i];
+      this.page = p;
+      this.lowerBound = rows.length > this.pageSize ? rows[this.pageSize] : "";
+      this.hasNext = true;
+      this.pageNumber = this.lowerBound.isEmpty() ? 1 : Math.max(2, this.pageNumber - 1);
+      return true;
+   }
+
+   private void forward(String cursor) throws SQLException {
+      String[] rows = this.source.fetch(cursor, true, this.pageSize + 1);
+      this.hasNext = rows.length > this.pageSize;
+      this.page = this.hasNext ? Arrays.copyOf(rows, this.pageSize) : rows;
+      this.lowerBound = cursor;
+   }
+
+   /**
+    * Changes the page size, keeping the current starting point.
+    *
+    * @param pageSize keys per page
+    * @throws java.sql.SQLException when the keys cannot be read
+    */
+   public void setPageSize(int pageSize) throws SQLException {
+      this.pageSize = Math.max(1, pageSize);
+      refresh();
+   }
+
+   /**
+    * @return the keys of the current page
+    */
+   public int size() {
+      return this.page.length;
+   }
+
+   /**
+    * @param i the zero-based position on the current page
+    * @return the key, or null when the page has no such position
+    */
+   public String get(int i) {
+      return i >= 0 && i < this.page.length ? this.page[i] : null;
+   }
+
+   public boolean hasNext() {
+      return this.hasNext;
+   }
+
+   public boolean hasPrevious() {
+      return !this.lowerBound.isEmpty();
+   }
+
+   public int pageNumber() {
+      return this.pageNumber;
+   }
+
+   /**
+    * Pages through a sorted array, such as a friend list of the social
+    * graph, with binary searches.
+    *
+    * @param sorted the keys in ascending order
+    * @return the source
+    */
+   public static Source of(final String[] sorted) {
+      return (cursor, forward, limit) -> {
+         int at = Arrays.binarySearch(sorted, cursor);
+         if (forward){
+            int from = at >= 0 ? at + 1 : -at - 1;
+            return Arrays.copyOfRange(sorted, from, Math.min(sorted.length, from + limit));
+         }
+         int to = at >= 0 ? at : -at - 1;
+         int from = Math.max(0, to - limit);
+         String[] rows = new String[to - from];
+         for (int i = 0; i < rows.length; ++i)
+            rows[i] = sorted[to - 1 - i];
+         return rows;
+      };
+   }//end of
+
+}//end KeysetPager
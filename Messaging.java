@@ -0,0 +1,352 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This class sends, lists, opens and deletes the messages of the MESSAGE
+ * table.
+ *
+ * A message to any number of members is one INSERT ... SELECT over unnest()
+ * of the msgIds, taken from the message sequence through a
+ * SequenceAllocator, and of the receivers, so it is written in a single
+ * statement and commit.  Because the SQL text is the same for every send,
+ * the write-behind queue, when enabled, also commits the sends of many
+ * sessions together.  A message to all of a member's connections is one
+ * INSERT ... SELECT over connection_usr, or, when the members are sharded
+ * and connection_usr is not in this database, a send to the member's
+ * friend list.
+ *
+ * The number of unread messages of each member is kept in message_unread,
+ * updated by the same statements that send, open and delete messages, so
+ * it is read with one primary-key lookup instead of a count over MESSAGE.
+ * The inbox and the sent messages are paged with keyset queries on
+ * (receiverId, sendTime, msgId) and (senderId, sendTime, msgId), newest
+ * first, each served by a covering index.
+ *
+ * message_unread and the indexes are created once, with migrate(), from
+ * the --migrate command line; the indexes are built CONCURRENTLY so the
+ * MESSAGE table stays writable meanwhile.  open() runs no DDL.
+ *
+ * deleteStatus is 1 when the sender deleted the message, 2 when the
+ * receiver did and 3 when both did; status is Delivered until the receiver
+ * opens the message and Read afterwards.
+ *
+ */
+public class Messaging {
+
+   /**
+    * One message.  contents is null in the inbox and sent listings.
+    */
+   public static class Message {
+      public final long msgId;
+      public final String senderId;
+      public final String receiverId;
+      public final String sendTime;
+      public final String status;
+      public final String contents;
+
+      Message(long msgId, String senderId, String receiverId, String sendTime, String status, String contents) {
+         this.msgId = msgId;
+         this.senderId = senderId;
+         this.receiverId = receiverId;
+         this.sendTime = sendTime;
+         this.status = status;
+         this.contents = contents;
+      }
+
+      /**
+       * @return false once the receiver has opened the message
+       */
+      public boolean isUnread() {
+         return "Delivered".equals(this.status);
+      }
+   }//end Message
+
+   // the sequence behind MESSAGE.msgId
+   static final String SEQUENCE = System.getProperty("profnetwork.message.sequence", "message_msgid_seq");
+
+   static final String DDL_UNREAD = "CREATE TABLE IF NOT EXISTS message_unread (userId char(10) PRIMARY KEY, unread integer NOT NULL DEFAULT 0)";
+   static final String DDL_INBOX_INDEX = "CREATE INDEX CONCURRENTLY IF NOT EXISTS message_inbox_idx ON message (receiverId, sendTime, msgId) INCLUDE (senderId, status, deleteStatus)";
+   static final String DDL_SENT_INDEX = "CREATE INDEX CONCURRENTLY IF NOT EXISTS message_sent_idx ON message (senderId, sendTime, msgId) INCLUDE (receiverId, status, deleteStatus)";
+
+   // a CONCURRENTLY build that failed leaves an invalid index behind, which IF NOT EXISTS would keep
+   static final String SQL_INVALID_INDEX = "SELECT 1 FROM pg_index WHERE indexrelid = to_regclass(CAST(? AS text)) AND NOT indisvalid";
+
+   static final String SQL_UNREAD_LOCK = "LOCK TABLE message_unread IN EXCLUSIVE MODE";
+   static final String SQL_UNREAD_RESET = "UPDATE message_unread SET unread = 0 WHERE unread <> 0";
+   static final String SQL_UNREAD_REBUILD = "INSERT INTO message_unread (userId, unread) SELECT receiverId, count(*) FROM message WHERE status = 'Delivered' AND COALESCE(deleteStatus, 0) & 2 = 0 GROUP BY receiverId ON CONFLICT (userId) DO UPDATE SET unread = EXCLUDED.unread";
+
+   // sender, contents, msgIds as a bigint[] literal, receivers as a text[] literal
+   static final String SQL_SEND = "WITH m AS (INSERT INTO message (msgId, senderId, receiverId, contents, sendTime, deleteStatus, status) SELECT t.id, ?, t.receiver, ?, now(), 0, 'Delivered' FROM unnest(CAST(? AS bigint[]), CAST(? AS text[])) AS t(id, receiver) RETURNING receiverId) INSERT INTO message_unread (userId, unread) SELECT receiverId, count(*) FROM m GROUP BY receiverId ON CONFLICT (userId) DO UPDATE SET unread = message_unread.unread + EXCLUDED.unread";
+   // sequence, sender, contents, sender, sender
+   static final String SQL_BROADCAST = "WITH m AS (INSERT INTO message (msgId, senderId, receiverId, contents, sendTime, deleteStatus, status) SELECT nextval(CAST(? AS regclass)), ?, f.userid, ?, now(), 0, 'Delivered' FROM (SELECT connectionid AS userid FROM connection_usr WHERE userId = ? AND status = 'Accept' UNION SELECT userid FROM connection_usr WHERE connectionid = ? AND status = 'Accept') f RETURNING receiverId) INSERT INTO message_unread (userId, unread) SELECT receiverId, count(*) FROM m GROUP BY receiverId ON CONFLICT (userId) DO UPDATE SET unread = message_unread.unread + EXCLUDED.unread";
+
+   // keyset pages, newest first: member, cursor sendTime, cursor msgId, limit
+   static final String SQL_INBOX_OLDER = "SELECT msgId, senderId, sendTime, status FROM message WHERE receiverId = ? AND COALESCE(deleteStatus, 0) & 2 = 0 AND (sendTime, msgId) < (CAST(? AS timestamp), ?) ORDER BY sendTime DESC, msgId DESC LIMIT ?";
+   static final String SQL_INBOX_NEWER = "SELECT msgId, senderId, sendTime, status FROM message WHERE receiverId = ? AND COALESCE(deleteStatus, 0) & 2 = 0 AND (sendTime, msgId) > (CAST(? AS timestamp), ?) ORDER BY sendTime, msgId LIMIT ?";
+   static final String SQL_SENT_OLDER = "SELECT msgId, receiverId, sendTime, status FROM message WHERE senderId = ? AND COALESCE(deleteStatus, 0) & 1 = 0 AND (sendTime, msgId) < (CAST(? AS timestamp), ?) ORDER BY sendTime DESC, msgId DESC LIMIT ?";
+   static final String SQL_SENT_NEWER = "SELECT msgId, receiverId, sendTime, status FROM message WHERE senderId = ? AND COALESCE(deleteStatus, 0) & 1 = 0 AND (sendTime, msgId) > (CAST(? AS timestamp), ?) ORDER BY sendTime, msgId LIMIT ?";
+
+   // msgId, member, member, msgId, member, member; marks the message read when the member received it
+   static final String SQL_OPEN = "WITH r AS (UPDATE message SET status = 'Read' WHERE msgId = ? AND receiverId = ? AND status = 'Delivered' AND COALESCE(deleteStatus, 0) & 2 = 0 RETURNING receiverId), u AS (UPDATE message_unread SET unread = unread - 1 WHERE userId = ? AND EXISTS (SELECT 1 FROM r)) SELECT msgId, senderId, receiverId, sendTime, status, contents FROM message WHERE msgId = ? AND ((receiverId = ? AND COALESCE(deleteStatus, 0) & 2 = 0) OR (senderId = ? AND COALESCE(deleteStatus, 0) & 1 = 0))";
+   // msgId, member, member
+   static final String SQL_DELETE_RECEIVED = "WITH d AS (UPDATE message SET deleteStatus = COALESCE(deleteStatus, 0) | 2 WHERE msgId = ? AND receiverId = ? AND COALESCE(deleteStatus, 0) & 2 = 0 RETURNING status), u AS (UPDATE message_unread SET unread = unread - 1 WHERE userId = ? AND EXISTS (SELECT 1 FROM d WHERE status = 'Delivered')) SELECT count(*) FROM d";
+   // msgId, member
+   static final String SQL_DELETE_SENT = "UPDATE message SET deleteStatus = COALESCE(deleteStatus, 0) | 1 WHERE msgId = ? AND senderId = ? AND COALESCE(deleteStatus, 0) & 1 = 0";
+   static final String SQL_UNREAD = "SELECT unread FROM message_unread WHERE userId = ?";
+
+   private final ProfNetwork esql;
+
+   private Messaging(ProfNetwork esql) {
+      this.esql = esql;
+   }
+
+   /**
+    * @param esql the database access object
+    * @return the messaging operations
+    * @throws java.sql.SQLException when message_unread is missing, as
+    *         migrate() has not been run
+    */
+   public static Messaging open(ProfNetwork esql) throws SQLException {
+      if (!tableExists(esql))
+         throw new SQLException("message_unread is missing; run with --migrate first");
+      return new Messaging(esql);
+   }//end open
+
+   /**
+    * Creates message_unread and the inbox and sent indexes when missing,
+    * counting the unread messages already in MESSAGE when message_unread
+    * is new.  The indexes are built without blocking writes to MESSAGE; an
+    * index left invalid by an interrupted build is built again.
+    *
+    * @param esql the database access object
+    * @return the messaging operations
+    * @throws java.sql.SQLException when the schema cannot be created
+    */
+   public static Messaging migrate(ProfNetwork esql) throws SQLException {
+      boolean existed = tableExists(esql);
+      esql.executeUpdate(DDL_UNREAD);
+      createIndex(esql, "message_inbox_idx", DDL_INBOX_INDEX);
+      createIndex(esql, "message_sent_idx", DDL_SENT_INDEX);
+      Messaging m = new Messaging(esql);
+      if (!existed)
+         m.rebuildUnread();
+      return m;
+   }//end migrate
+
+   private static boolean tableExists(ProfNetwork esql) throws SQLException {
+      String[] missing = esql.executeQueryAndReturnColumn("SELECT to_regclass('message_unread') IS NULL");
+      return missing.length > 0 && missing[0].startsWith("f");
+   }
+
+   // CONCURRENTLY cannot run inside a transaction, so each is a statement of its own
+   private static void createIndex(ProfNetwork esql, String name, String ddl) throws SQLException {
+      if (esql.exists(SQL_INVALID_INDEX, name))
+         esql.executeUpdate("DROP INDEX CONCURRENTLY " + name);
+      esql.executeUpdate(ddl);
+   }
+
+   /**
+    * Counts the unread messages of every member again from MESSAGE, such as
+    * after messages were imported in bulk.  message_unread is locked
+    * against sends, opens and deletes until the new counts are committed,
+    * so none is lost between the reset and the count; readers are not
+    * blocked.
+    *
+    * @throws java.sql.SQLException when the counts cannot be written
+    */
+   public void rebuildUnread() throws SQLException {
+      long start = System.nanoTime();
+      int rows = -1;
+      try{
+         rows = this.esql.withConnection(pc -> {
+            Connection conn = pc.getConnection();
+            conn.setAutoCommit(false);
+            try{
+               pc.prepare(SQL_UNREAD_LOCK).execute();
+               pc.prepare(SQL_UNREAD_RESET).executeUpdate();
+               int count = pc.prepare(SQL_UNREAD_REBUILD).executeUpdate();
+               conn.commit();
+               return count;
+            }finally{
+               if (!conn.getAutoCommit()){
+                  conn.rollback();
+                  conn.setAutoCommit(true);
+               }//end if
+            }//end try
+         });
+      }finally{
+         this.esql.invalidate(SQL_UNREAD_REBUILD);
+         this.esql.getMetrics().record(SQL_UNREAD_REBUILD, start, rows, 0);
+      }//end try
+   }//end rebuildUnread
+
+   /**
+    * Sends a message to one or more members.
+    *
+    * @param from the sender
+    * @param to the receivers
+    * @param contents the text of the message
+    * @throws java.sql.SQLException when the message could not be written
+    */
+   public void send(String from, List<String> to, String contents) throws SQLException {
+      ProfNetwork.await(sendAsync(from, to, contents));
+   }
+
+   /**
+    * Sends a message without waiting for the commit.
+    *
+    * @return a future completed with the number of receivers once committed
+    */
+   public CompletableFuture<Integer> sendAsync(String from, List<String> to, String contents) {
+      long[] ids;
+      try{
+         ids = this.esql.sequence(SEQUENCE).next(to.size());
+      }catch (SQLException e){
+         CompletableFuture<Integer> failed = new CompletableFuture<Integer>();
+         failed.completeExceptionally(e);
+         return failed;
+      }//end try
+      StringBuilder idArray = new StringBuilder("{");
+      for (int i = 0; i < ids.length; ++i)
+         idArray.append(i == 0 ? "" : ",").append(ids[i]);
+      return this.esql.write(SQL_SEND, from, contents, idArray.append('}').toString(), ProfNetwork.textArray(to))
+                      .thenApply(rows -> to.size());
+   }//end sendAsync
+
+   /**
+    * Sends a message to every accepted connection of a member.
+    *
+    * @param from the sender
+    * @param contents the text of the message
+    * @return the number of receivers
+    * @throws java.sql.SQLException when the messages could not be written
+    */
+   public int broadcast(String from, String contents) throws SQLException {
+      if (this.esql.getShardRouter() != null){
+         // connection_usr is on the shards, not next to the messages
+         String[] friends = this.esql.getSessions().friends(from);
+         if (friends.length > 0)
+            send(from, Arrays.asList(friends), contents);
+         return friends.length;
+      }//end if
+      return ProfNetwork.await(this.esql.write(SQL_BROADCAST, SEQUENCE, from, contents, from, from));
+   }
+
+   /**
+    * @param userId a member
+    * @return the number of messages the member has not opened
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int unreadCount(String userId) throws SQLException {
+      String[] n = this.esql.executeQueryAndReturnColumn(SQL_UNREAD, userId.trim());
+      return n.length == 0 ? 0 : Integer.parseInt(n[0].trim());
+   }
+
+   /**
+    * Opens a message the member sent or received, marking it read when the
+    * member received it.
+    *
+    * @param userId the member
+    * @param msgId the message
+    * @return the message, or null when the member cannot see it
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Message open(String userId, long msgId) throws SQLException {
+      String u = userId.trim();
+      ColumnarResult r = this.esql.executeUpdateReturning(SQL_OPEN, msgId, u, u, msgId, u, u);
+      if (r.rowCount() == 0)
+         return null;
+      boolean justRead = u.equals(r.getString(0, 2)) && "Delivered".equals(r.getString(0, 4));
+      return new Message(r.getLong(0, 0), r.getString(0, 1), r.getString(0, 2), r.getString(0, 3),
+                         justRead ? "Read" : r.getString(0, 4), r.getString(0, 5));
+   }//end open
+
+   /**
+    * Deletes a message from the member's inbox or sent messages.  The
+    * message stays visible to the other member.
+    *
+    * @param userId the member
+    * @param msgId the message
+    * @param received true to delete it from the inbox, false from the sent messages
+    * @return false when the member has no such message
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean delete(String userId, long msgId, boolean received) throws SQLException {
+      String u = userId.trim();
+      if (received)
+         return this.esql.executeUpdateReturning(SQL_DELETE_RECEIVED, msgId, u, u).getLong(0, 0) > 0;
+      return ProfNetwork.await(this.esql.write(SQL_DELETE_SENT, msgId, u)) > 0;
+   }
+
+   /**
+    * @param userId a member
+    * @return the member's received messages, newest first
+    */
+   public Folder inbox(String userId) {
+      return new Folder(this.esql, userId.trim(), true);
+   }
+
+   /**
+    * @param userId a member
+    * @return the member's sent messages, newest first
+    */
+   public Folder sent(String userId) {
+      return new Folder(this.esql, userId.trim(), false);
+   }
+
+   /**
+    * The messages of one folder as a KeysetPager source.  Keys are
+    * sendTime and msgId joined by '#'; the messages of the keys last
+    * fetched are kept for display.
+    */
+   public static class Folder implements KeysetPager.Source {
+      private final ProfNetwork esql;
+      private final String userId;
+      private final boolean inbox;
+      private Map<String, Message> fetched = new HashMap<String, Message>();
+
+      Folder(ProfNetwork esql, String userId, boolean inbox) {
+         this.esql = esql;
+         this.userId = userId;
+         this.inbox = inbox;
+      }
+
+      public String[] fetch(String cursor, boolean forward, int limit) throws SQLException {
+         String time = "infinity";
+         long msgId = Long.MAX_VALUE;
+         if (!cursor.isEmpty()){
+            int sep = cursor.lastIndexOf('#');
+            time = cursor.substring(0, sep);
+            msgId = Long.parseLong(cursor.substring(sep + 1));
+         }
+         String sql = this.inbox ? (forward ? SQL_INBOX_OLDER : SQL_INBOX_NEWER)
+                                 : (forward ? SQL_SENT_OLDER : SQL_SENT_NEWER);
+         ColumnarResult r = this.esql.executeQueryAndReturnColumns(sql, this.userId, time, msgId, limit);
+         String[] keys = new String[r.rowCount()];
+         Map<String, Message> messages = new HashMap<String, Message>();
+         for (int i = 0; i < keys.length; ++i){
+            String other = r.getString(i, 1);
+            Message m = new Message(r.getLong(i, 0), this.inbox ? other : this.userId, this.inbox ? this.userId : other,
+                                    r.getString(i, 2), r.getString(i, 3), null);
+            keys[i] = m.sendTime + "#" + m.msgId;
+            messages.put(keys[i], m);
+         }
+         this.fetched = messages;
+         return keys;
+      }//end fetch
+
+      /**
+       * @param key a key on the page last fetched
+       * @return its message, or null
+       */
+      public Message message(String key) {
+         return key == null ? null : this.fetched.get(key);
+      }
+   }//end Folder
+
+}//end Messaging
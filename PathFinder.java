@@ -0,0 +1,156 @@
+import java.util.Arrays;
+
+/**
+ * This class measures how far apart two members are in the SocialGraph,
+ * counted in accepted connections.
+ *
+ * The search runs breadth first from both members at once and always grows
+ * the smaller frontier, so a query touches roughly the square root of the
+ * nodes a one-sided search would.  Visited sets are plain bitsets reused
+ * per thread and only the words that were set are cleared afterwards, so a
+ * query allocates nothing once its thread has warmed up.  The search gives
+ * up as soon as the two frontiers cannot meet within the hop limit.
+ *
+ */
+public class PathFinder {
+
+   /**
+    * Per-thread scratch space for one search.
+    */
+   private static class Scratch {
+      long[] seenA = new long[0];
+      long[] seenB = new long[0];
+      int[] frontierA = new int[64];
+      int[] frontierB = new int[64];
+      int[] next = new int[64];
+      // nodes marked in either bitset, for clearing afterwards
+      int[] touched = new int[64];
+      int touchedSize = 0;
+
+      void ensureNodes(int n) {
+         int words = (n + 63) >>> 6;
+         if (this.seenA.length < words){
+            this.seenA = new long[words];
+            this.seenB = new long[words];
+         }
+      }
+
+      void mark(long[] seen, int node) {
+         seen[node >>> 6] |= 1L << node;
+         if (this.touchedSize == this.touched.length)
+            this.touched = Arrays.copyOf(this.touched, this.touchedSize * 2);
+         this.touched[this.touchedSize++] = node;
+      }
+
+      void clear() {
+         for (int i = 0; i < this.touchedSize; ++i){
+            int w = this.touched[i] >>> 6;
+            this.seenA[w] = 0;
+            this.seenB[w] = 0;
+         }
+         this.touchedSize = 0;
+      }
+   }//end Scratch
+
+   private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+   private static boolean isSet(long[] seen, int node) {
+      return (seen[node >>> 6] & (1L << node)) != 0;
+   }
+
+   /**
+    * Computes the number of accepted connections on the shortest chain
+    * between two members.
+    *
+    * @param graph the social graph
+    * @param a one member
+    * @param b the other member
+    * @param maxHops the longest chain to look for
+    * @return the distance in hops, 0 for the same member, or -1 when the
+    *         members are unknown or further apart than maxHops
+    */
+   public static int distance(SocialGraph graph, String a, String b, int maxHops) {
+      int x = graph.id(a);
+      int y = graph.id(b);
+      if (x < 0 || y < 0)
+         return -1;
+      if (x == y)
+         return 0;
+      graph.readLock().lock();
+      Scratch s = SCRATCH.get();
+      try{
+         s.ensureNodes(graph.nodeCountLocked());
+         return search(graph, s, x, y, maxHops);
+      }finally{
+         s.clear();
+         graph.readLock().unlock();
+      }//end try
+   }//end distance
+
+   private static int search(SocialGraph graph, Scratch s, int x, int y, int maxHops) {
+      int sizeA = 1, sizeB = 1;
+      int depthA = 0, depthB = 0;
+      s.frontierA[0] = x;
+      s.frontierB[0] = y;
+      s.mark(s.seenA, x);
+      s.mark(s.seenB, y);
+
+      while (sizeA > 0 && sizeB > 0 && depthA + depthB < maxHops){
+         // grow whichever side has fewer edges to follow
+         boolean growA = frontierWork(graph, s.frontierA, sizeA) <= frontierWork(graph, s.frontierB, sizeB);
+         int[] frontier = growA ? s.frontierA : s.frontierB;
+         int size = growA ? sizeA : sizeB;
+         long[] mine = growA ? s.seenA : s.seenB;
+         long[] other = growA ? s.seenB : s.seenA;
+
+         int nextSize = 0;
+         for (int f = 0; f < size; ++f){
+            int node = frontier[f];
+            int[] adj = graph.adjacency(node);
+            for (int i = 0, n = graph.degree(node); i < n; ++i){
+               int v = adj[i];
+               if (isSet(other, v))
+                  return depthA + depthB + 1;
+               if (!isSet(mine, v)){
+                  s.mark(mine, v);
+                  if (nextSize == s.next.length)
+                     s.next = Arrays.copyOf(s.next, nextSize * 2);
+                  s.next[nextSize++] = v;
+               }//end if
+            }//end for
+         }//end for
+
+         // the new level becomes this side's frontier
+         int[] swap = frontier;
+         if (growA){
+            s.frontierA = s.next;
+            sizeA = nextSize;
+            ++depthA;
+         }else{
+            s.frontierB = s.next;
+            sizeB = nextSize;
+            ++depthB;
+         }//end if
+         s.next = swap;
+      }//end while
+      return -1;
+   }//end search
+
+   private static long frontierWork(SocialGraph graph, int[] frontier, int size) {
+      long work = 0;
+      for (int i = 0; i < size; ++i)
+         work += graph.degree(frontier[i]);
+      return work;
+   }
+
+   /**
+    * @param graph the social graph
+    * @param a one member
+    * @param b the other member
+    * @return the connections the two members have in common, sorted by userId
+    */
+   public static String[] mutualConnections(SocialGraph graph, String a, String b) {
+      return graph.mutualFriends(a, b);
+   }
+
+}//end PathFinder
@@ -14,6 +14,7 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -21,8 +22,15 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BooleanSupplier;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -31,8 +39,58 @@ import java.util.ArrayList;
  */
 public class ProfNetwork {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // pool of physical database connections shared by every operation.
+   private ConnectionPool _pool = null;
+
+   // replicas serving the read-only queries, or null when reads go to the primary.
+   private ReplicaRouter _replicas = null;
+
+   // shards holding the members and their connections, or null for a single database.
+   private ShardRouter _shards = null;
+
+   // latency, row and byte counts of every query, by SQL template.
+   private final QueryMetrics _metrics = new QueryMetrics();
+
+   // group-committed writes of the profile and connection updates, or null
+   // when they are written synchronously.
+   private WriteBehindQueue _writeBehind = null;
+
+   // reads of each thread answered by a replica, see replicaReads()
+   private final ThreadLocal<long[]> _replicaReads = ThreadLocal.withInitial(() -> new long[1]);
+
+   // results of read queries shared between sessions, or null when disabled.
+   private ResultCache _resultCache = null;
+
+   // logged-in members and the cached data of the screens they visit.
+   private final SessionManager _sessions = new SessionManager(this);
+
+   // trigram index of userIds and names behind findProfile, or null when not loaded.
+   private ProfileSearchIndex _search = null;
+
+   // accepted connections held in memory, or null when not loaded.
+   private SocialGraph _graph = null;
+
+   // "people you may know" over the social graph, or null when not loaded.
+   private Recommender _recommender = null;
+
+   // sending and reading messages, or null when disabled.
+   private Messaging _messaging = null;
+
+   // allocators of the sequences used through sequence().
+   private final Map<String, SequenceAllocator> _sequences = new ConcurrentHashMap<String, SequenceAllocator>();
+
+   // rows per page of the friend and request lists, changeable from the menus.
+   static int pageSize = config("pageSize", 20);
+
+   // longest chain of connections searched when showing hop distances.
+   static final int MAX_HOPS = config("maxHops", 6);
+
+   // format used by executeQueryAndPrintResult.
+   private ResultRenderer.Mode _outputMode =
+      ResultRenderer.Mode.parse(System.getProperty("profnetwork.output", "tsv"));
+
+   // rows fetched per round trip by streamed queries.
+   static final int FETCH_SIZE = config("fetchSize", 256);
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
@@ -42,6 +100,23 @@ public class ProfNetwork {
    /**
     * Creates a new instance of ProfNetwork
     *
+    * The size and timeouts of the connection pool can be tuned with the
+    * profnetwork.pool.min, profnetwork.pool.max, profnetwork.pool.idleTimeoutMs,
+    * profnetwork.pool.borrowTimeoutMs, profnetwork.pool.validateAfterMs and
+    * profnetwork.pool.statementCacheSize system properties.
+    *
+    * With -Dprofnetwork.writeBehind=true profile and connection updates are
+    * group committed through a WriteBehindQueue, tuned with
+    * profnetwork.writeBehind.capacity, profnetwork.writeBehind.batchSize,
+    * profnetwork.writeBehind.flushMs and profnetwork.writeBehind.offerTimeoutMs.
+    *
+    * With -Dprofnetwork.resultCache=true query results are cached, up to
+    * profnetwork.resultCache.maxMb megabytes (default 64).
+    *
+    * With -Dprofnetwork.shards=host:port/db,host:port/db the members and
+    * their connections are spread over those databases by a hash of the
+    * userId; messages, sequences and the tools stay on this database.
+    *
     * @param hostname the MySQL or PostgreSQL server hostname
     * @param database the name of the database
     * @param username the user name used to login to the database
@@ -53,172 +128,1492 @@ public class ProfNetwork {
       System.out.print("Connecting to database...");
       try{
          // constructs the connection URL
-         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+         String host = System.getProperty("profnetwork.host", "localhost");
+         String url = "jdbc:postgresql://" + host + ":" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // open the pool of physical connections
+         this._pool = new ConnectionPool(url, user, passwd,
+            config("pool.min", 1),
+            config("pool.max", 8),
+            config("pool.idleTimeoutMs", 300000),
+            config("pool.borrowTimeoutMs", 5000),
+            config("pool.validateAfterMs", 1000),
+            config("pool.statementCacheSize", 64));
+
+         // read-only queries go to the replicas listed as host:port,host:port
+         String replicas = System.getProperty("profnetwork.replicas", "").trim();
+         if (!replicas.isEmpty()){
+            List<String> urls = new ArrayList<String>();
+            for (String endpoint : replicas.split(","))
+               urls.add("jdbc:postgresql://" + endpoint.trim() + "/" + dbname);
+            this._replicas = new ReplicaRouter(urls, user, passwd,
+               config("pool.max", 8),
+               config("replica.healthCheckMs", 2000),
+               config("replica.maxLagMs", 10000),
+               config("replica.pinMs", 2000));
+            System.out.println("Reading from " + urls.size() + " replica(s): " + replicas);
+         }//end if
+
+         // members and connections are spread over the shards listed as host:port/db,host:port/db
+         String shards = System.getProperty("profnetwork.shards", "").trim();
+         if (!shards.isEmpty()){
+            List<String> urls = new ArrayList<String>();
+            for (String endpoint : shards.split(","))
+               urls.add("jdbc:postgresql://" + endpoint.trim());
+            this._shards = new ShardRouter(urls, user, passwd, config("pool.max", 8));
+            routeToShards(this._shards);
+            System.out.println("Sharding members over " + urls.size() + " database(s): " + shards);
+         }//end if
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
          System.out.println("Make sure you started postgres on this machine");
          System.exit(-1);
       }//end catch
+
+      if (Boolean.parseBoolean(System.getProperty("profnetwork.resultCache", "false")))
+         this._resultCache = new ResultCache(config("resultCache.maxMb", 64) * 1024L * 1024L, this::replicaReads);
+
+      if (Boolean.parseBoolean(System.getProperty("profnetwork.writeBehind", "false")))
+         this._writeBehind = new WriteBehindQueue(this,
+            config("writeBehind.capacity", 10000),
+            config("writeBehind.batchSize", 256),
+            config("writeBehind.flushMs", 5),
+            config("writeBehind.offerTimeoutMs", 5000));
+
+      // friend lists are served from memory once the graph is loaded
+      if (Boolean.parseBoolean(System.getProperty("profnetwork.graph", "true"))){
+         System.out.print("Loading social graph...");
+         try{
+            this._graph = SocialGraph.load(this);
+            System.out.println("Done (" + this._graph.size() + " members)");
+         }catch (SQLException e){
+            System.err.println("Warning - Unable to load the social graph: " + e.getMessage());
+         }//end try
+      }//end if
+
+      // suggestions are scored from the graph and the members' affiliations
+      if (this._graph != null && Boolean.parseBoolean(System.getProperty("profnetwork.recommend", "true"))){
+         try{
+            this._recommender = Recommender.load(this, this._graph);
+         }catch (SQLException e){
+            System.err.println("Warning - Unable to load the recommendations: " + e.getMessage());
+         }//end try
+      }//end if
+
+      // messages need the unread counters and the inbox and sent indexes,
+      // created beforehand with --migrate
+      if (Boolean.parseBoolean(System.getProperty("profnetwork.messaging", "true"))){
+         try{
+            this._messaging = Messaging.open(this);
+         }catch (SQLException e){
+            System.err.println("Warning - Unable to prepare messaging: " + e.getMessage());
+         }//end try
+      }//end if
+
+      // members are searched by part of their userId or name in memory
+      if (Boolean.parseBoolean(System.getProperty("profnetwork.search", "true"))){
+         System.out.print("Building search index...");
+         try{
+            this._search = ProfileSearchIndex.load(this);
+            System.out.println("Done (" + this._search.size() + " members)");
+         }catch (SQLException e){
+            System.err.println("Warning - Unable to build the search index: " + e.getMessage());
+         }//end try
+      }//end if
    }//end ProfNetwork
 
    /**
-    * Method to execute an update SQL statement.  Update SQL instructions
-    * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+    * @return the per-query latency metrics
+    */
+   public QueryMetrics getMetrics() {
+      return this._metrics;
+   }
+
+   /**
+    * @return the replica router, or null when every query goes to the primary
+    */
+   public ReplicaRouter getReplicaRouter() {
+      return this._replicas;
+   }
+
+   /**
+    * @return the shard router, or null when everything is in one database
+    */
+   public ShardRouter getShardRouter() {
+      return this._shards;
+   }
+
+   /**
+    * @return the query-result cache, or null when it is disabled
+    */
+   public ResultCache getResultCache() {
+      return this._resultCache;
+   }
+
+   /**
+    * @return the login sessions and per-member cache
+    */
+   public SessionManager getSessions() {
+      return this._sessions;
+   }
+
+   /**
+    * @return the member search index, or null when it is not loaded
+    */
+   public ProfileSearchIndex getSearchIndex() {
+      return this._search;
+   }
+
+   /**
+    * @return the messaging operations, or null when disabled
+    */
+   public Messaging getMessaging() {
+      return this._messaging;
+   }
+
+   /**
+    * @return the connection recommender, or null when it is not loaded
+    */
+   public Recommender getRecommender() {
+      return this._recommender;
+   }
+
+   /**
+    * @return the in-memory social graph, or null when it is not loaded
+    */
+   public SocialGraph getGraph() {
+      return this._graph;
+   }
+
+   /**
+    * Reads an integer setting from the profnetwork.* system properties.
+    *
+    * @param key the setting name without the profnetwork. prefix
+    * @param def the value used when the property is not set
+    * @return the configured value
+    */
+   static int config(String key, int def) {
+      return Integer.getInteger("profnetwork." + key, def);
+   }
+
+   /**
+    * Work done on a connection borrowed from the pool.
+    */
+   interface ConnectionWork<T> {
+      T run(ConnectionPool.PooledConnection pc) throws SQLException;
+   }
+
+   /**
+    * Borrows a connection from the pool, runs the given work on it and
+    * hands the connection back, whatever the outcome.
+    *
+    * @param work the statements to run
+    * @return the value produced by the work
+    * @throws java.sql.SQLException when no connection is available or the work failed
+    */
+   <T> T withConnection(ConnectionWork<T> work) throws SQLException {
+      ConnectionPool.PooledConnection pc = this._pool.borrow();
+      try{
+         return work.run(pc);
+      }catch (SQLException e){
+         pc.checkFatal(e);
+         throw e;
+      }finally{
+         this._pool.release(pc);
+      }//end try
+   }//end withConnection
+
+   /**
+    * Runs a query on a healthy replica when it is read-only and replicas
+    * are configured, and on the primary otherwise.  A replica whose
+    * connection fails is taken out of the rotation and the query is run
+    * again on the primary.  The work must therefore not pass anything on
+    * before it returns; see the overload taking handedOver.
+    *
+    * @param sql the statement the work runs, to tell whether it is read-only
+    * @param work the statements to run
+    * @return the value produced by the work
+    * @throws java.sql.SQLException when no connection is available or the work failed
+    */
+   <T> T withReadConnection(String sql, ConnectionWork<T> work) throws SQLException {
+      return withReadConnection(sql, new Object[0], work);
+   }
+
+   /**
+    * Runs a query on the shard of its userId when it is routed to the
+    * shards, and as withReadConnection(sql, work) otherwise.  Queries run
+    * on every shard are gathered by executeQueryAndStream,
+    * executeQueryAndReturnResult and executeQueryAndReturnColumns only.
+    *
+    * @param sql the statement the work runs, to tell where it goes
+    * @param params the values for its placeholders, holding the userId
+    * @param work the statements to run
+    * @return the value produced by the work
+    * @throws java.sql.SQLException when no connection is available or the work failed
+    */
+   <T> T withReadConnection(String sql, Object[] params, ConnectionWork<T> work) throws SQLException {
+      return withReadConnection(sql, params, work, null);
+   }
+
+   /**
+    * Runs a query as withReadConnection(sql, params, work), except that a
+    * replica failing after the work has passed results on is not retried
+    * on the primary, which would pass them on a second time; the failure
+    * is thrown instead.
+    *
+    * @param sql the statement the work runs, to tell where it goes
+    * @param params the values for its placeholders, holding the userId
+    * @param work the statements to run
+    * @param handedOver true once the work has passed results on, or null
+    *        when running it again is always safe
+    * @return the value produced by the work
+    * @throws java.sql.SQLException when no connection is available or the work failed
+    */
+   <T> T withReadConnection(String sql, Object[] params, ConnectionWork<T> work,
+                            BooleanSupplier handedOver) throws SQLException {
+      if (sharded(sql)){
+         if (this._shards.isScatter(sql))
+            throw new IllegalStateException("Runs on every shard: " + sql);
+         return this._shards.onKeyShard(sql, params, work);
+      }//end if
+      ReplicaRouter.Replica replica = this._replicas == null || !ReplicaRouter.readOnly(sql) ? null : this._replicas.pick();
+      if (replica == null)
+         return withConnection(work);
+      ConnectionPool.PooledConnection pc;
+      try{
+         pc = replica.pool.borrow();
+      }catch (SQLException e){
+         // a replica whose pool is only busy stays in the rotation
+         if (connectionFailed(e))
+            this._replicas.markDown(replica);
+         return withConnection(work);
+      }//end try
+      try{
+         T result = work.run(pc);
+         ++this._replicaReads.get()[0];
+         return result;
+      }catch (SQLException e){
+         pc.checkFatal(e);
+         if (!connectionFailed(e))
+            throw e;
+         this._replicas.markDown(replica);
+         if (handedOver != null && handedOver.getAsBoolean())
+            throw e;
+      }finally{
+         replica.pool.release(pc);
+      }//end try
+      return withConnection(work);
+   }//end withReadConnection
+
+   // true for the SQLSTATE class 08 errors of a connection that failed
+   static boolean connectionFailed(SQLException e) {
+      String state = e.getSQLState();
+      return state != null && state.startsWith("08");
+   }
+
+   /**
+    * Counts the reads of the current thread answered by a replica.  A
+    * replica may lag behind the primary, so a result read while the count
+    * changed is not kept by the result cache or the session cache, where
+    * it would outlive the invalidation of the write it missed.
+    *
+    * @return the reads answered by a replica so far, 0 without replicas
+    */
+   long replicaReads() {
+      return this._replicas == null ? 0 : this._replicaReads.get()[0];
+   }
+
+   // true if the statement goes to the shards rather than this database
+   private boolean sharded(String sql) {
+      return this._shards != null && this._shards.routes(sql);
+   }
+
+   /**
+    * Registers the statements that read or write the members and their
+    * connections with the shard router: each by the placeholders holding
+    * its userIds, or to run on every shard.
+    *
+    * @param shards the shard router
+    */
+   static void routeToShards(ShardRouter shards) {
+      shards.route(SQL_CREATE_USER, 0);
+      shards.route(SQL_LOGIN, 0);
+      shards.route(SQL_CHANGE_PASSWORD, 1);
+      shards.route(SQL_UPDATE_EMAIL, 1);
+      shards.route(SQL_ADD_EDUCATION, 0);
+      shards.route(ProfileLoader.PROFILE_QUERY, 0);
+      shards.route(SQL_FRIENDS, 0);
+      shards.route(SQL_FRIENDS_AFTER, 0);
+      shards.route(SQL_FRIENDS_BEFORE, 0);
+      shards.route(SQL_PENDING_REQUESTS, 0);
+      shards.route(SQL_PENDING_AFTER, 0);
+      shards.route(SQL_PENDING_BEFORE, 0);
+      shards.route(SQL_PENDING_COUNT, 0);
+      // an edge is written on the shards of both members
+      shards.route(SQL_SEND_REQUEST, 0, 1);
+      shards.route(SQL_ACCEPT_REQUEST, 0, 1);
+      shards.route(SQL_REJECT_REQUEST, 0, 1);
+      // answered on the member's shard, then copied by answered()
+      shards.route(SQL_ANSWER_ALL, 1);
+      shards.route(SQL_ANSWER_SELECTED, 1);
+      shards.scatter(SQL_FIND_MEMBERS);
+      shards.scatter(SQL_MATCHING_AMONG);
+      shards.scatter(SocialGraph.LOAD_QUERY);
+      shards.scatter(ProfileSearchIndex.LOAD_QUERY);
+      shards.scatter(Recommender.COMPANY_QUERY);
+      shards.scatter(Recommender.INSTITUTION_QUERY);
+   }//end routeToShards
+
+   // sends the reads of this thread to the primary for a while after a write
+   private void pinToPrimary() {
+      if (this._replicas != null)
+         this._replicas.pin();
+   }
+
+   /**
+    * Method to execute an update SQL statement.  Update SQL instructions
+    * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+    *
+    * @param sql the input SQL string
+    * @throws java.sql.SQLException when update failed
+    */
+   public void executeUpdate (String sql) throws SQLException {
+      pinToPrimary();
+      long start = System.nanoTime();
+      int rows = -1;
+      try{
+         rows = withConnection(pc -> {
+            // creates a statement object, closed even when the update fails
+            try (Statement stmt = pc.getConnection().createStatement ()){
+               // issues the update instruction
+               return stmt.executeUpdate (sql);
+            }//end try
+         });
+      }finally{
+         invalidate(sql);
+         this._metrics.record(QueryMetrics.normalize(sql), start, rows, 0);
+      }//end try
+   }//end executeUpdate
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and outputs the results to
+    * standard out.
+    *
+    * @param query the input query string
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult (String query) throws SQLException {
+      return executeQueryAndPrintResult(query, new Object[0]);
+   }//end executeQuery
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns the results as
+    * a list of records. Each record in turn is a list of attribute values
+    *
+    * @param query the input query string
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
+      long start = System.nanoTime();
+      List<List<String>> result = null;
+      try{
+         result = withReadConnection(query, pc -> {
+            // creates a statement object, closed even when the query fails
+            try (Statement stmt = pc.getConnection().createStatement ()){
+               // issues the query instruction
+               ResultSet rs = stmt.executeQuery (query);
+
+               /*
+                ** obtains the metadata object for the returned result set.  The metadata
+                ** contains row and column info.
+                */
+               ResultSetMetaData rsmd = rs.getMetaData ();
+               int numCol = rsmd.getColumnCount ();
+
+               // iterates through the result set and saves the data returned by the query.
+               List<List<String>> rows  = new ArrayList<List<String>>();
+               while (rs.next()){
+                  List<String> record = new ArrayList<String>();
+                  for (int i=1; i<=numCol; ++i)
+                     record.add(rs.getString (i));
+                  rows.add(record);
+               }//end while
+               return rows;
+            }//end try
+         });
+         return result;
+      }finally{
+         this._metrics.record(QueryMetrics.normalize(query), start,
+                              result == null ? -1 : result.size(), byteCount(result));
+      }//end try
+   }//end executeQueryAndReturnResult
+
+   // characters of column data in a materialized result
+   private static long byteCount(List<List<String>> result) {
+      if (result == null)
+         return 0;
+      long bytes = 0;
+      for (List<String> record : result)
+         for (String value : record)
+            if (value != null)
+               bytes += value.length();
+      return bytes;
+   }
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns the number of results
+    *
+    * @param query the input query string
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (String query) throws SQLException {
+      long start = System.nanoTime();
+      int rows = -1;
+      final long[] bytes = new long[1];
+      try{
+         rows = withReadConnection(query, pc -> {
+            // creates a statement object, closed even when the query fails
+            try (Statement stmt = pc.getConnection().createStatement ()){
+               // issues the query instruction
+               ResultSet rs = stmt.executeQuery (query);
+
+               int rowCount = 0;
+
+               // iterates through the result set and count nuber of results.
+               if(rs.next()){
+                  rowCount++;
+                  bytes[0] = rowBytes(rs);
+               }//end while
+               return rowCount;
+            }//end try
+         });
+         return rows;
+      }finally{
+         this._metrics.record(QueryMetrics.normalize(query), start, rows, bytes[0]);
+      }//end try
+   }
+
+   /**
+    * Binds the given values to the ? placeholders of a prepared statement,
+    * in order.
+    *
+    * @param stmt the prepared statement
+    * @param params the values for the placeholders
+    * @throws java.sql.SQLException when a value cannot be bound
+    */
+   static void bind(PreparedStatement stmt, Object[] params) throws SQLException {
+      for (int i = 0; i < params.length; ++i)
+         stmt.setObject(i + 1, params[i]);
+   }
+
+   /**
+    * Writes strings as a PostgreSQL array literal, to be bound as one
+    * parameter and read with CAST(? AS text[]), so a statement can take
+    * any number of values without changing its SQL text.
+    *
+    * @param values the strings; each is trimmed
+    * @return the array literal
+    */
+   static String textArray(Iterable<String> values) {
+      StringBuilder sb = new StringBuilder("{");
+      for (String v : values){
+         if (sb.length() > 1)
+            sb.append(',');
+         sb.append('"');
+         String t = v.trim();
+         for (int c = 0; c < t.length(); ++c){
+            char ch = t.charAt(c);
+            if (ch == '"' || ch == '\\')
+               sb.append('\\');
+            sb.append(ch);
+         }
+         sb.append('"');
+      }//end for
+      return sb.append('}').toString();
+   }//end textArray
+
+   /**
+    * Method to execute a parameterized update SQL statement.  The statement
+    * is prepared once per pooled connection and reused by later calls with
+    * the same SQL template.
+    *
+    * @param sql the SQL template with ? placeholders
+    * @param params the values for the placeholders
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      pinToPrimary();
+      long start = System.nanoTime();
+      int rows = -1;
+      try{
+         ConnectionWork<Integer> work = pc -> {
+            PreparedStatement stmt = pc.prepare(sql);
+            bind(stmt, params);
+            return stmt.executeUpdate ();
+         };
+         rows = sharded(sql) ? this._shards.onKeyShards(sql, params, work) : withConnection(work);
+         return rows;
+      }finally{
+         invalidate(sql);
+         this._metrics.record(sql, start, rows, 0);
+      }//end try
+   }//end executeUpdate
+
+   /**
+    * Tells the result cache that a statement writing to the database has
+    * run, so results read from the tables it names are no longer served.
+    *
+    * @param sql the statement
+    */
+   void invalidate (String sql) {
+      if (this._resultCache != null)
+         this._resultCache.invalidate(sql);
+   }
+
+   /**
+    * Method to execute a parameterized query and output the results to
+    * standard out.  Rows are streamed through executeQueryAndStream into a
+    * ResultRenderer, so printing a large table never holds more than one
+    * fetch of rows and writes to the terminal in large buffered chunks.
+    * The format is chosen with setOutputMode().
+    *
+    * @param query the SQL template with ? placeholders
+    * @param params the values for the placeholders
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      ResultRenderer renderer = ResultRenderer.toStdout(this._outputMode);
+      try{
+         return executeQueryAndStream(query, renderer, params);
+      }finally{
+         try{
+            renderer.finish();
+         }catch (IOException e){
+            System.err.println(e.getMessage());
+         }//end try
+      }//end try
+   }//end executeQueryAndPrintResult
+
+   /**
+    * Sets the format used by executeQueryAndPrintResult.  The default comes
+    * from the profnetwork.output system property (tsv, table, csv or json).
+    *
+    * @param mode the output format
+    */
+   public void setOutputMode (ResultRenderer.Mode mode) {
+      this._outputMode = mode;
+   }
+
+   /**
+    * Callback receiving the rows of a streamed query one at a time.
+    */
+   public interface RowHandler {
+      /**
+       * Called once per row, with the ResultSet positioned on that row.
+       * The row must be consumed before returning: the ResultSet moves on
+       * afterwards.
+       *
+       * @param rs the result set positioned on the current row
+       * @return true to keep reading, false to stop early
+       * @throws java.sql.SQLException when a column cannot be read
+       */
+      boolean row(ResultSet rs) throws SQLException;
+
+      /**
+       * Characters of column data the handler has read so far, reported
+       * to the query metrics.  A handler that does not count them returns
+       * -1, and executeQueryAndStream reads every column of every row once
+       * more to count them; handlers on hot paths should count instead.
+       *
+       * @return the characters read, or -1 when not counted
+       */
+      default long bytesRead() {
+         return -1;
+      }
+   }
+
+   /**
+    * Method to execute a parameterized query and hand each row to a
+    * callback as it arrives, instead of collecting the whole result.
+    *
+    * The query runs inside a transaction with a fetch size set
+    * (profnetwork.fetchSize, default 256), which makes the PostgreSQL
+    * driver read the result through a server-side cursor.  At most one
+    * fetch of rows is held in memory at any time, whatever the size of the
+    * result, and the first row reaches the handler as soon as the first
+    * fetch returns.
+    *
+    * A query run on every shard streams from all of them at once; the
+    * handler is called by one shard at a time, in no particular order.
+    *
+    * The characters of column data handed over are recorded in the query
+    * metrics, as counted by the handler's bytesRead().
+    *
+    * @param query the SQL template with ? placeholders
+    * @param handler the callback receiving each row
+    * @param params the values for the placeholders
+    * @return the number of rows handed to the callback
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndStream (String query, RowHandler handler, Object... params) throws SQLException {
+      long start = System.nanoTime();
+      int rows = -1;
+      RowHandler counted = handler.bytesRead() < 0 ? new ByteCounter(handler) : handler;
+      try{
+         if (sharded(query) && this._shards.isScatter(query)){
+            rows = scatterStream(query, counted, params);
+            return rows;
+         }//end if
+         // once a row reached the handler, a replica failure cannot be retried on the primary
+         final boolean[] delivered = new boolean[1];
+         RowHandler tracked = rs -> {
+            delivered[0] = true;
+            return counted.row(rs);
+         };
+         rows = withReadConnection(query, params, streamWork(query, tracked, params), () -> delivered[0]);
+         return rows;
+      }finally{
+         this._metrics.record(query, start, rows, Math.max(0, counted.bytesRead()));
+      }//end try
+   }//end executeQueryAndStream
+
+   /**
+    * Counts the column data of the rows handed to a handler that does not
+    * count it itself.  Rows of a scattered query reach it one at a time.
+    */
+   private static final class ByteCounter implements RowHandler {
+      private final RowHandler handler;
+      private long bytes = 0;
+
+      ByteCounter(RowHandler handler) {
+         this.handler = handler;
+      }
+
+      public boolean row(ResultSet rs) throws SQLException {
+         this.bytes += rowBytes(rs);
+         return this.handler.row(rs);
+      }
+
+      public long bytesRead() {
+         return this.bytes;
+      }
+   }//end ByteCounter
+
+   // streams the rows of a query through a cursor on the connection it is given
+   private static ConnectionWork<Integer> streamWork (String query, RowHandler handler, Object[] params) {
+      return pc -> {
+         Connection conn = pc.getConnection();
+         // cursors only stay open inside a transaction
+         conn.setAutoCommit(false);
+         try{
+            PreparedStatement stmt = pc.prepare(query);
+            bind(stmt, params);
+            stmt.setFetchSize(FETCH_SIZE);
+            ResultSet rs = stmt.executeQuery ();
+            int rowCount = 0;
+            try{
+               while (rs.next()){
+                  ++rowCount;
+                  if (!handler.row(rs))
+                     break;
+               }//end while
+            }finally{
+               rs.close ();
+            }//end try
+            conn.commit();
+            return rowCount;
+         }finally{
+            if (!conn.getAutoCommit()){
+               conn.rollback();
+               conn.setAutoCommit(true);
+            }//end if
+         }//end try
+      };
+   }//end streamWork
+
+   // streams a query from every shard at once, handing the rows over one at a time
+   private int scatterStream (String query, RowHandler handler, Object[] params) throws SQLException {
+      final boolean[] stopped = new boolean[1];
+      RowHandler gather = rs -> {
+         synchronized (stopped){
+            if (!stopped[0] && !handler.row(rs))
+               stopped[0] = true;
+            return !stopped[0];
+         }
+      };
+      int rows = 0;
+      for (int count : this._shards.onEveryShard(streamWork(query, gather, params)))
+         rows += count;
+      return rows;
+   }//end scatterStream
+
+   /**
+    * Method to execute a parameterized query and return the first column
+    * of its n-th row, reading no further than that row.
+    *
+    * @param query the SQL template with ? placeholders
+    * @param index the zero-based position of the row
+    * @param params the values for the placeholders
+    * @return the value, or null when the query has fewer rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public String executeQueryAndReturnRow (String query, int index, Object... params) throws SQLException {
+      final String[] found = new String[1];
+      if (index < 0)
+         return null;
+      executeQueryAndStream(query, new RowHandler() {
+         private int seen = 0;
+
+         public boolean row(ResultSet rs) throws SQLException {
+            if (seen++ < index)
+               return true;
+            found[0] = rs.getString(1);
+            return false;
+         }
+
+         public long bytesRead() {
+            return found[0] == null ? 0 : found[0].length();
+         }
+      }, params);
+      return found[0];
+   }//end executeQueryAndReturnRow
+
+   /**
+    * Method to execute a parameterized query and return the results as a
+    * list of records.  With the result cache enabled the records may be
+    * shared with other callers and must not be modified.
+    *
+    * @param query the SQL template with ? placeholders
+    * @param params the values for the placeholders
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      if (this._resultCache != null)
+         return this._resultCache.get(query, params, () -> queryResult(query, params), ProfNetwork::byteCount);
+      return queryResult(query, params);
+   }//end executeQueryAndReturnResult
+
+   // runs the query behind executeQueryAndReturnResult
+   private List<List<String>> queryResult (String query, Object[] params) throws SQLException {
+      long start = System.nanoTime();
+      List<List<String>> result = null;
+      try{
+         if (sharded(query) && this._shards.isScatter(query)){
+            List<List<String>> gathered = new ArrayList<List<String>>();
+            scatterStream(query, rs -> {
+               int numCol = rs.getMetaData ().getColumnCount ();
+               List<String> record = new ArrayList<String>(numCol);
+               for (int i=1; i<=numCol; ++i)
+                  record.add(rs.getString (i));
+               return gathered.add(record);
+            }, params);
+            result = gathered;
+            return result;
+         }//end if
+         result = withReadConnection(query, params, pc -> {
+            PreparedStatement stmt = pc.prepare(query);
+            bind(stmt, params);
+            ResultSet rs = stmt.executeQuery ();
+            int numCol = rs.getMetaData ().getColumnCount ();
+
+            // iterates through the result set and saves the data returned by the query.
+            List<List<String>> rows  = new ArrayList<List<String>>();
+            while (rs.next()){
+               List<String> record = new ArrayList<String>(numCol);
+               for (int i=1; i<=numCol; ++i)
+                  record.add(rs.getString (i));
+               rows.add(record);
+            }//end while
+            rs.close ();
+            return rows;
+         });
+         return result;
+      }finally{
+         this._metrics.record(query, start, result == null ? -1 : result.size(), byteCount(result));
+      }//end try
+   }//end queryResult
+
+   /**
+    * Method to execute a parameterized query and return the results in
+    * compact typed columns, from the result cache when it is enabled.
+    *
+    * @param query the SQL template with ? placeholders
+    * @param params the values for the placeholders
+    * @return the query result
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public ColumnarResult executeQueryAndReturnColumns (String query, Object... params) throws SQLException {
+      if (this._resultCache != null)
+         return this._resultCache.get(query, params, () -> queryColumns(query, params), ColumnarResult::byteSize);
+      return queryColumns(query, params);
+   }//end executeQueryAndReturnColumns
+
+   // runs the query behind executeQueryAndReturnColumns
+   private ColumnarResult queryColumns (String query, Object[] params) throws SQLException {
+      long start = System.nanoTime();
+      ColumnarResult result = null;
+      try{
+         if (sharded(query) && this._shards.isScatter(query)){
+            ColumnarResult gathered = new ColumnarResult();
+            scatterStream(query, gathered::row, params);
+            result = gathered;
+            return result;
+         }//end if
+         result = withReadConnection(query, params, pc -> {
+            PreparedStatement stmt = pc.prepare(query);
+            bind(stmt, params);
+            ResultSet rs = stmt.executeQuery ();
+            try{
+               return ColumnarResult.read(rs);
+            }finally{
+               rs.close ();
+            }//end try
+         });
+         return result;
+      }finally{
+         this._metrics.record(query, start, result == null ? -1 : result.rowCount(),
+                              result == null ? 0 : result.byteSize());
+      }//end try
+   }//end queryColumns
+
+   /**
+    * Method to execute a parameterized query and return the first column
+    * of every row.
+    *
+    * @param query the SQL template with ? placeholders
+    * @param params the values for the placeholders
+    * @return the values
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public String[] executeQueryAndReturnColumn (String query, Object... params) throws SQLException {
+      ColumnarResult rows = executeQueryAndReturnColumns(query, params);
+      String[] values = new String[rows.rowCount()];
+      for (int r = 0; r < values.length; ++r)
+         values[r] = rows.getString(r, 0);
+      return values;
+   }//end executeQueryAndReturnColumn
+
+   /**
+    * Method to execute a parameterized query and return whether it
+    * returned any row.
+    *
+    * @param query the SQL template with ? placeholders
+    * @param params the values for the placeholders
+    * @return 1 if the query returned a row, 0 otherwise
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (String query, Object... params) throws SQLException {
+      long start = System.nanoTime();
+      int rows = -1;
+      final long[] bytes = new long[1];
+      try{
+         rows = withReadConnection(query, params, pc -> {
+            PreparedStatement stmt = pc.prepare(query);
+            bind(stmt, params);
+            ResultSet rs = stmt.executeQuery ();
+            int rowCount = 0;
+            if (rs.next()){
+               rowCount = 1;
+               bytes[0] = rowBytes(rs);
+            }//end if
+            rs.close ();
+            return rowCount;
+         });
+         return rows;
+      }finally{
+         this._metrics.record(query, start, rows, bytes[0]);
+      }//end try
+   }
+
+   // characters of column data in the current row
+   private static long rowBytes(ResultSet rs) throws SQLException {
+      int numCol = rs.getMetaData ().getColumnCount ();
+      long bytes = 0;
+      for (int i=1; i<=numCol; ++i){
+         String value = rs.getString (i);
+         if (value != null)
+            bytes += value.length();
+      }//end for
+      return bytes;
+   }
+
+   /**
+    * Method to check whether a parameterized query matches at least one
+    * row.  The query is wrapped as SELECT EXISTS(...), so the server stops
+    * at the first match and only a single boolean comes back to the client.
+    * Write the template as SELECT 1 FROM ... WHERE ..., without selecting
+    * any columns.
+    *
+    * @param query the SQL template with ? placeholders
+    * @param params the values for the placeholders
+    * @return true if the query matches a row
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean exists (String query, Object... params) throws SQLException {
+      final String existsQuery = "SELECT EXISTS(" + query + ")";
+      long start = System.nanoTime();
+      int rows = -1;
+      try{
+         // routed like the query it wraps
+         boolean found = withReadConnection(query, params, pc -> {
+            PreparedStatement stmt = pc.prepare(existsQuery);
+            bind(stmt, params);
+            ResultSet rs = stmt.executeQuery ();
+            boolean match = rs.next() && rs.getBoolean(1);
+            rs.close ();
+            return match;
+         });
+         rows = 1;
+         return found;
+      }finally{
+         // a single boolean comes back, printed as t or f
+         this._metrics.record(existsQuery, start, rows, rows);
+      }//end try
+   }//end exists
+
+   /**
+    * Method to fetch the last value from sequence. This
+    * method issues the query to the DBMS and returns the current
+    * value of sequence used for autogenerated keys
+    *
+    * currval() is local to a database session, so this only sees the value
+    * generated by an insert that ran on the same pooled connection.  The
+    * pool hands back the most recently returned connection first, which
+    * keeps that true for a single-threaded caller.
+    *
+    * New code should take keys from sequence() before inserting, or read
+    * them back with executeUpdateReturning(), rather than pay this extra
+    * round trip after each insert.
+    *
+    * @param sequence name of the DB sequence
+    * @return current value of a sequence
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int getCurrSeqVal(String sequence) throws SQLException {
+      final String query = "Select currval(CAST(? AS regclass))";
+      long start = System.nanoTime();
+      int rows = -1;
+      try{
+         int value = withConnection(pc -> {
+            PreparedStatement stmt = pc.prepare(query);
+            stmt.setString(1, sequence);
+            ResultSet rs = stmt.executeQuery ();
+            int current = -1;
+            if (rs.next())
+               current = rs.getInt(1);
+            rs.close ();
+            return current;
+         });
+         rows = 1;
+         return value;
+      }finally{
+         this._metrics.record(query, start, rows, 0);
+      }//end try
+   }
+
+   /**
+    * Returns the allocator handing out values of a sequence from reserved
+    * blocks of profnetwork.sequence.blockSize (default 100) values.
+    *
+    * @param sequence name of the DB sequence
+    * @return the allocator, shared by every caller
+    */
+   public SequenceAllocator sequence(String sequence) {
+      return this._sequences.computeIfAbsent(sequence,
+         name -> new SequenceAllocator(this, name, config("sequence.blockSize", 100)));
+   }
+
+   /**
+    * Method to execute an INSERT, UPDATE or DELETE with a RETURNING clause
+    * and return the rows it produced, such as generated keys.
+    *
+    * @param sql the SQL template with ? placeholders and a RETURNING clause
+    * @param params the values for the placeholders
+    * @return the returned rows
+    * @throws java.sql.SQLException when the statement failed
+    */
+   public ColumnarResult executeUpdateReturning (String sql, Object... params) throws SQLException {
+      pinToPrimary();
+      long start = System.nanoTime();
+      ColumnarResult result = null;
+      try{
+         ConnectionWork<ColumnarResult> work = pc -> {
+            PreparedStatement stmt = pc.prepare(sql);
+            bind(stmt, params);
+            ResultSet rs = stmt.executeQuery ();
+            try{
+               return ColumnarResult.read(rs);
+            }finally{
+               rs.close ();
+            }//end try
+         };
+         // on the shard of the first key only
+         result = sharded(sql) ? this._shards.onKeyShard(sql, params, work) : withConnection(work);
+         return result;
+      }finally{
+         invalidate(sql);
+         this._metrics.record(sql, start, result == null ? -1 : result.rowCount(),
+                              result == null ? 0 : result.byteSize());
+      }//end try
+   }//end executeUpdateReturning
+
+   /**
+    * Method to execute one statement for many rows of values as a JDBC
+    * batch in a single transaction, such as inserts with keys taken from
+    * sequence().
+    *
+    * @param sql the SQL template with ? placeholders
+    * @param rows the values for the placeholders, one array per execution
+    * @return the row count of each execution
+    * @throws java.sql.SQLException when the batch failed; nothing is written
+    */
+   public int[] executeBatch (String sql, List<Object[]> rows) throws SQLException {
+      pinToPrimary();
+      long start = System.nanoTime();
+      int[] counts = null;
+      try{
+         counts = withConnection(pc -> {
+            Connection conn = pc.getConnection();
+            conn.setAutoCommit(false);
+            try{
+               PreparedStatement stmt = pc.prepare(sql);
+               try{
+                  for (Object[] values : rows){
+                     bind(stmt, values);
+                     stmt.addBatch();
+                  }//end for
+                  int[] result = stmt.executeBatch();
+                  conn.commit();
+                  return result;
+               }finally{
+                  // the statement is cached on the connection: a batch left
+                  // behind by a failure would run with the next one
+                  stmt.clearBatch();
+               }//end try
+            }finally{
+               if (!conn.getAutoCommit()){
+                  conn.rollback();
+                  conn.setAutoCommit(true);
+               }//end if
+            }//end try
+         });
+         return counts;
+      }finally{
+         invalidate(sql);
+         this._metrics.record(sql, start, counts == null ? -1 : counts.length, 0);
+      }//end try
+   }//end executeBatch
+
+   /**
+    * Method to close the connection pool and every idle physical connection.
+    */
+   public void cleanup(){
+      if (this._writeBehind != null){
+         this._writeBehind.close ();
+      }//end if
+      this._metrics.close ();
+      if (this._replicas != null){
+         this._replicas.close ();
+      }//end if
+      if (this._shards != null){
+         this._shards.close ();
+      }//end if
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
+   }//end cleanup
+
+   // SQL behind the menu operations, shared with the tools that run the
+   // same operations without the menus
+   static final String SQL_CREATE_USER = "INSERT INTO USR (userId, password, email, name, dateOfBirth) VALUES (?, ?, ?, ?, CAST(? AS DATE))";
+   static final String SQL_LOGIN = "SELECT 1 FROM USR WHERE userId = ? AND password = ?";
+   static final String SQL_CHANGE_PASSWORD = "UPDATE USR SET password = ? WHERE userId = ?";
+   static final String SQL_UPDATE_EMAIL = "UPDATE usr set email = ? WHERE userid = ?";
+   static final String SQL_ADD_EDUCATION = "INSERT INTO educational_details(userId, instituitionName, major, degree, startdate, enddate) values(?, ?, ?, ?, CAST(? AS DATE), CAST(? AS DATE))";
+   static final String SQL_FRIENDS = "SELECT userid FROM (SELECT connectionid AS userid FROM connection_usr WHERE userID = ? AND status = 'Accept' UNION ALL SELECT userid FROM connection_usr WHERE connectionid = ? AND status = 'Accept') f ORDER BY userid";
+   static final String SQL_PENDING_REQUESTS = "SELECT userid FROM connection_usr WHERE connectionid = ? AND status = 'Request' ORDER BY userid";
+   // keyset pages of the two lists: the keys after a cursor in ascending
+   // order, or before it in descending order
+   static final String SQL_FRIENDS_AFTER = "SELECT userid FROM (SELECT connectionid AS userid FROM connection_usr WHERE userID = ? AND status = 'Accept' AND connectionid > ? UNION ALL SELECT userid FROM connection_usr WHERE connectionid = ? AND status = 'Accept' AND userid > ?) f ORDER BY userid LIMIT ?";
+   static final String SQL_FRIENDS_BEFORE = "SELECT userid FROM (SELECT connectionid AS userid FROM connection_usr WHERE userID = ? AND status = 'Accept' AND connectionid < ? UNION ALL SELECT userid FROM connection_usr WHERE connectionid = ? AND status = 'Accept' AND userid < ?) f ORDER BY userid DESC LIMIT ?";
+   static final String SQL_PENDING_AFTER = "SELECT userid FROM connection_usr WHERE connectionid = ? AND status = 'Request' AND userid > ? ORDER BY userid LIMIT ?";
+   static final String SQL_PENDING_BEFORE = "SELECT userid FROM connection_usr WHERE connectionid = ? AND status = 'Request' AND userid < ? ORDER BY userid DESC LIMIT ?";
+   static final String SQL_PENDING_COUNT = "SELECT count(*) FROM connection_usr WHERE connectionid = ? AND status = 'Request'";
+   // members whose userId or name matches a LIKE pattern, twice, up to a limit
+   static final String SQL_FIND_MEMBERS = "SELECT userId, name FROM USR WHERE userId ILIKE ? OR name ILIKE ? ORDER BY userId LIMIT ?";
+   // the members of a text[] literal whose userId or name matches a LIKE pattern, twice
+   static final String SQL_MATCHING_AMONG = "SELECT userId FROM USR WHERE userId = ANY (CAST(? AS text[])) AND (userId ILIKE ? OR name ILIKE ?)";
+   static final String SQL_SEND_REQUEST = "INSERT INTO connection_usr (userId, connectionId, status) VALUES (?, ?, 'Request')";
+   static final String SQL_ACCEPT_REQUEST = "UPDATE connection_usr SET status = 'Accept' WHERE userid = ? AND connectionid = ?";
+   static final String SQL_REJECT_REQUEST = "UPDATE connection_usr SET status = 'Reject' WHERE userid = ? AND connectionid = ?";
+   // many pending requests at once: new status, member, then the requesters as a text[] literal or a LIKE pattern
+   static final String SQL_ANSWER_ALL = "UPDATE connection_usr SET status = ? WHERE connectionid = ? AND status = 'Request' RETURNING userid";
+   static final String SQL_ANSWER_SELECTED = "UPDATE connection_usr SET status = ? WHERE connectionid = ? AND status = 'Request' AND userid = ANY (CAST(? AS text[])) RETURNING userid";
+   static final String SQL_ANSWER_MATCHING = "UPDATE connection_usr SET status = ? WHERE connectionid = ? AND status = 'Request' AND userid IN (SELECT userId FROM USR WHERE userId ILIKE ? OR name ILIKE ?) RETURNING userid";
+
+   /**
+    * Checks a member's login credentials.
+    *
+    * @param login the member's userId
+    * @param password the member's password
+    * @return true if they match an existing member
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean authenticate (String login, String password) throws SQLException {
+      return exists(SQL_LOGIN, login, password);
+   }
+
+   /**
+    * Adds a new member and makes it searchable.
+    *
+    * @throws java.sql.SQLException when the insert failed
+    */
+   public void createUser (String login, String password, String email, String name, String dateOfBirth) throws SQLException {
+      executeUpdate(SQL_CREATE_USER, login, password, email, name, dateOfBirth);
+      if (this._search != null)
+         this._search.add(login, name);
+   }
+
+   /**
+    * Runs an update through the write-behind queue when it is enabled, and
+    * straight away otherwise.  Updates routed to the shards always run
+    * straight away, as the queue commits to this database only.
+    *
+    * @param sql the SQL template with ? placeholders
+    * @param params the values for the placeholders
+    * @return a future completed with the row count once the update is
+    *         committed, which may be Statement.SUCCESS_NO_INFO from the queue
+    */
+   CompletableFuture<Integer> write (String sql, Object... params) {
+      pinToPrimary();
+      if (this._writeBehind != null && !sharded(sql))
+         return this._writeBehind.submit(sql, params);
+      CompletableFuture<Integer> done = new CompletableFuture<Integer>();
+      try{
+         done.complete(executeUpdate(sql, params));
+      }catch (SQLException e){
+         done.completeExceptionally(e);
+      }//end try
+      return done;
+   }//end write
+
+   /**
+    * Waits for a write to be committed.
+    *
+    * @param write the future returned by one of the asynchronous methods
+    * @return the value of the future
+    * @throws java.sql.SQLException when the write failed
+    */
+   static <T> T await (CompletableFuture<T> write) throws SQLException {
+      try{
+         return write.get();
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for a write", e);
+      }catch (ExecutionException e){
+         if (e.getCause() instanceof SQLException)
+            throw (SQLException) e.getCause();
+         throw new SQLException(e.getCause());
+      }//end try
+   }//end await
+
+   /**
+    * Replaces a member's password and ends every session of the member.
+    *
+    * @throws java.sql.SQLException when the update failed
+    */
+   public void setPassword (String userId, String password) throws SQLException {
+      await(setPasswordAsync(userId, password, null));
+   }
+
+   /**
+    * Replaces a member's password and ends the member's other sessions.
+    *
+    * @param token the session changing the password, which stays open
+    * @throws java.sql.SQLException when the update failed
+    */
+   public void setPassword (String userId, String password, String token) throws SQLException {
+      await(setPasswordAsync(userId, password, token));
+   }
+
+   /**
+    * Replaces a member's password without waiting for the commit.  Once
+    * committed, every session of the member but the given one ends.
+    *
+    * @param token the session changing the password, or null to end them all
+    * @return a future completed with the row count once committed
+    */
+   public CompletableFuture<Integer> setPasswordAsync (String userId, String password, String token) {
+      return write(SQL_CHANGE_PASSWORD, password, userId).thenApply(rows -> {
+         this._sessions.passwordChanged(userId, token);
+         return rows;
+      });
+   }
+
+   /**
+    * Replaces a member's email address.
+    *
+    * @throws java.sql.SQLException when the update failed
+    */
+   public void setEmail (String userId, String email) throws SQLException {
+      await(setEmailAsync(userId, email));
+   }
+
+   /**
+    * Replaces a member's email address without waiting for the commit.
+    *
+    * @return a future completed with the row count once committed
+    */
+   public CompletableFuture<Integer> setEmailAsync (String userId, String email) {
+      return write(SQL_UPDATE_EMAIL, email, userId).thenApply(rows -> {
+         this._sessions.profileChanged(userId);
+         return rows;
+      });
+   }
+
+   /**
+    * Adds an education entry to a member's profile.
     *
-    * @param sql the input SQL string
-    * @throws java.sql.SQLException when update failed
+    * @throws java.sql.SQLException when the insert failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
-
-      // close the instruction
-      stmt.close ();
-   }//end executeUpdate
+   public void addEducation (String userId, String institution, String major, String degree,
+                             String startDate, String endDate) throws SQLException {
+      await(addEducationAsync(userId, institution, major, degree, startDate, endDate));
+   }
 
    /**
-    * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and outputs the results to
-    * standard out.
+    * Adds an education entry without waiting for the commit.
     *
-    * @param query the input query string
-    * @return the number of rows returned
-    * @throws java.sql.SQLException when failed to execute the query
+    * @return a future completed with the row count once committed
     */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-	 if(outputHeader){
-	    for(int i = 1; i <= numCol; i++){
-		System.out.print(rsmd.getColumnName(i) + "\t");
-	    }
-	    System.out.println();
-	    outputHeader = false;
-	 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
-   }//end executeQuery
+   public CompletableFuture<Integer> addEducationAsync (String userId, String institution, String major,
+                                                        String degree, String startDate, String endDate) {
+      return write(SQL_ADD_EDUCATION, userId, institution, major, degree, startDate, endDate).thenApply(rows -> {
+         this._sessions.profileChanged(userId);
+         if (this._recommender != null)
+            this._recommender.addInstitution(userId, institution);
+         return rows;
+      });
+   }
 
    /**
-    * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and returns the results as
-    * a list of records. Each record in turn is a list of attribute values
+    * Sends a connection request and records it in the social graph.
     *
-    * @param query the input query string
-    * @return the query result as a list of records
-    * @throws java.sql.SQLException when failed to execute the query
+    * @param from the member sending the request
+    * @param to the member receiving it
+    * @throws java.sql.SQLException when the insert failed
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public void sendRequest (String from, String to) throws SQLException {
+      await(sendRequestAsync(from, to));
+   }
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+   /**
+    * Sends a connection request without waiting for the commit.  The
+    * social graph is updated once the request is committed.
+    *
+    * @return a future completed with the row count once committed
+    */
+   public CompletableFuture<Integer> sendRequestAsync (String from, String to) {
+      return write(SQL_SEND_REQUEST, from, to).thenApply(rows -> {
+         if (this._graph != null)
+            this._graph.addRequest(from, to);
+         this._sessions.requestsChanged(to);
+         return rows;
+      });
+   }
 
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-          List<String> record = new ArrayList<String>();
-         for (int i=1; i<=numCol; ++i)
-            record.add(rs.getString (i));
-         result.add(record);
-      }//end while
-      stmt.close ();
-      return result;
-   }//end executeQueryAndReturnResult
+   /**
+    * Accepts a pending connection request and records it in the social graph.
+    *
+    * @param requester the member who sent the request
+    * @param userId the member accepting it
+    * @return true if a pending request was updated
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean acceptRequest (String requester, String userId) throws SQLException {
+      return await(acceptRequestAsync(requester, userId));
+   }
 
    /**
-    * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and returns the number of results
+    * Accepts a pending connection request without waiting for the commit.
+    * A request whose row count the driver did not report counts as updated.
     *
-    * @param query the input query string
-    * @return the number of rows returned
-    * @throws java.sql.SQLException when failed to execute the query
+    * @return a future completed with true if a pending request was updated
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+   public CompletableFuture<Boolean> acceptRequestAsync (String requester, String userId) {
+      return write(SQL_ACCEPT_REQUEST, requester, userId).thenApply(rows -> {
+         boolean updated = rows > 0 || rows == Statement.SUCCESS_NO_INFO;
+         if (updated && this._graph != null)
+            this._graph.addConnection(requester, userId);
+         if (updated)
+            this._sessions.connectionAccepted(requester, userId);
+         return updated;
+      });
+   }
 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+   /**
+    * Denies a pending connection request and records it in the social graph.
+    *
+    * @param requester the member who sent the request
+    * @param userId the member denying it
+    * @return true if a pending request was updated
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean rejectRequest (String requester, String userId) throws SQLException {
+      return await(rejectRequestAsync(requester, userId));
+   }
 
-       int rowCount = 0;
+   /**
+    * Denies a pending connection request without waiting for the commit.
+    * A request whose row count the driver did not report counts as updated.
+    *
+    * @return a future completed with true if a pending request was updated
+    */
+   public CompletableFuture<Boolean> rejectRequestAsync (String requester, String userId) {
+      return write(SQL_REJECT_REQUEST, requester, userId).thenApply(rows -> {
+         boolean updated = rows > 0 || rows == Statement.SUCCESS_NO_INFO;
+         if (updated && this._graph != null)
+            this._graph.rejectConnection(requester, userId);
+         if (updated)
+            this._sessions.requestsChanged(userId);
+         return updated;
+      });
+   }
 
-       // iterates through the result set and count nuber of results.
-       if(rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+   /**
+    * Accepts or denies many pending requests to a member with one UPDATE,
+    * so they commit together; the social graph and the session cache are
+    * then updated once for the whole set.  With shards the requesters'
+    * copies of the edges are updated afterwards, on their own shards.
+    *
+    * @param userId the member the requests were sent to
+    * @param requesters the members whose requests to answer, or null for all
+    * @param accept true to accept, false to deny
+    * @return the members whose requests were answered
+    * @throws java.sql.SQLException when the update failed; nothing is changed
+    */
+   public String[] answerRequests (String userId, List<String> requesters, boolean accept) throws SQLException {
+      String status = accept ? "Accept" : "Reject";
+      if (requesters == null)
+         return answered(userId, executeUpdateReturning(SQL_ANSWER_ALL, status, userId), accept);
+      if (requesters.isEmpty())
+         return new String[0];
+      return answered(userId, executeUpdateReturning(SQL_ANSWER_SELECTED, status, userId, textArray(requesters)), accept);
    }
 
    /**
-    * Method to fetch the last value from sequence. This
-    * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * Accepts or denies the pending requests to a member from members whose
+    * userId or name contains a text, with one UPDATE.  With shards the
+    * matching requesters are looked up first and answered with
+    * answerRequests.
     *
-    * @param sequence name of the DB sequence
-    * @return current value of a sequence
-    * @throws java.sql.SQLException when failed to execute the query
+    * @param userId the member the requests were sent to
+    * @param filter the text to look for, ignoring case
+    * @param accept true to accept, false to deny
+    * @return the members whose requests were answered
+    * @throws java.sql.SQLException when the update failed; nothing is changed
     */
-   public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
+   public String[] answerMatchingRequests (String userId, String filter, boolean accept) throws SQLException {
+      String pattern = likePattern(filter);
+      if (this._shards != null){
+         // the requesters' names are on their own shards: find the matching
+         // ones among the pending requesters first
+         String[] pending = executeQueryAndReturnColumn(SQL_PENDING_REQUESTS, userId);
+         if (pending.length == 0)
+            return pending;
+         return answerRequests(userId, Arrays.asList(
+            executeQueryAndReturnColumn(SQL_MATCHING_AMONG, textArray(Arrays.asList(pending)), pattern, pattern)), accept);
+      }//end if
+      return answered(userId, executeUpdateReturning(SQL_ANSWER_MATCHING, accept ? "Accept" : "Reject",
+                                                     userId, pattern, pattern), accept);
+   }
 
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+   /**
+    * @param text the text to look for
+    * @return a LIKE pattern matching values that contain the text
+    */
+   static String likePattern (String text) {
+      return "%" + text.trim().replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * Finds members whose userId or name contains a text, reading every
+    * shard at once when the members are sharded.
+    *
+    * @param text the text to look for, ignoring case
+    * @param limit the most members returned
+    * @return userId and name of each member, by userId
+    * @throws java.sql.SQLException when failed to execute the query
     */
-   public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
+   public List<String[]> findMembers (String text, int limit) throws SQLException {
+      String pattern = likePattern(text);
+      ColumnarResult rows = executeQueryAndReturnColumns(SQL_FIND_MEMBERS, pattern, pattern, limit);
+      List<String[]> members = new ArrayList<String[]>(rows.rowCount());
+      for (int r = 0; r < rows.rowCount(); ++r)
+         members.add(new String[]{ rows.getString(r, 0), rows.getString(r, 1) });
+      // each shard sent its own first rows
+      members.sort((a, b) -> a[0].compareTo(b[0]));
+      return members.size() > limit ? members.subList(0, limit) : members;
+   }//end findMembers
+
+   // records a set of answered requests in the graph and the session cache;
+   // with shards the requesters' copies of the edges are updated too
+   private String[] answered (String userId, ColumnarResult rows, boolean accept) throws SQLException {
+      String[] requesters = new String[rows.rowCount()];
+      for (int r = 0; r < requesters.length; ++r)
+         requesters[r] = rows.getString(r, 0);
+      if (requesters.length == 0)
+         return requesters;
+      if (this._shards != null){
+         int home = this._shards.shardOf(userId);
+         List<String> others = new ArrayList<String>();
+         for (String requester : requesters)
+            if (this._shards.shardOf(requester) != home)
+               others.add(requester);
+         if (!others.isEmpty()){
+            Object[] params = { accept ? "Accept" : "Reject", userId, textArray(others) };
+            try{
+               this._shards.onShardsOf(others, pc -> {
+                  PreparedStatement stmt = pc.prepare(SQL_ANSWER_SELECTED);
+                  bind(stmt, params);
+                  stmt.execute();
+                  return 0;
+               });
+            }finally{
+               invalidate(SQL_ANSWER_SELECTED);
+            }//end try
          }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
-   }//end cleanup
+      }//end if
+      if (this._graph != null){
+         if (accept)
+            this._graph.addConnections(userId, requesters);
+         else
+            this._graph.rejectConnections(userId, requesters);
+      }//end if
+      this._sessions.requestsAnswered(userId, requesters, accept);
+      return requesters;
+   }//end answered
+
+   /**
+    * Loads the PostgreSQL JDBC driver.  A JDBC 4 driver on the class path
+    * registers itself; loading the class covers older ones too.
+    *
+    * @throws java.lang.ClassNotFoundException when the driver is missing
+    */
+   static void loadDriver () throws ClassNotFoundException {
+      Class.forName ("org.postgresql.Driver");
+   }
 
    /**
     * The main execution method
@@ -226,12 +1621,38 @@ public class ProfNetwork {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      boolean bulkImport = (args.length == 6 || args.length == 7) && args[3].equals("--import");
+      boolean server = args.length == 5 && args[3].equals("--server");
+      boolean recommend = (args.length == 5 || args.length == 6) && args[3].equals("--recommend");
+      boolean rebalance = (args.length == 4 || args.length == 5) && args[3].equals("--rebalance");
+      boolean migrate = args.length == 4 && args[3].equals("--migrate");
+      if (args.length != 3 && !bulkImport && !server && !recommend && !rebalance && !migrate) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             ProfNetwork.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [--import <table> <file.csv> [chunkRows] | --server <listenPort>" +
+            " | --recommend <file.csv> [perMember] | --rebalance [chunkRows] | --migrate]");
+         return;
+      }//end if
+      if (bulkImport) {
+         BulkImport(args);
+         return;
+      }//end if
+      if (server) {
+         Serve(args);
+         return;
+      }//end if
+      if (recommend) {
+         RecommendAll(args);
+         return;
+      }//end if
+      if (migrate) {
+         Migrate(args);
+         return;
+      }//end if
+      if (rebalance) {
+         Rebalance(args);
          return;
       }//end if
 
@@ -239,7 +1660,7 @@ public class ProfNetwork {
       ProfNetwork esql = null;
       try{
          // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
+         loadDriver ();
          // instantiate the ProfNetwork object and creates a physical
          // connection.
          String dbname = args[0];
@@ -255,37 +1676,45 @@ public class ProfNetwork {
             System.out.println("1. Create user");
             System.out.println("2. Log in");
             System.out.println("9. < EXIT");
-            String authorisedUser = null;
+            String session = null;
             switch (readChoice()){
                case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
+               case 2: session = LogIn(esql); break;
                case 9: keepon = false; break;
                default : System.out.println("Unrecognized choice!"); break;
             }//end switch
-            if (authorisedUser != null) {
+            if (session != null) {
               boolean usermenu = true;
               while(usermenu) {
+                // the session expires after a while without use
+                String authorisedUser = esql.getSessions().userId(session);
+                if (authorisedUser == null) {
+                   System.out.println("Your session has expired, please log in again");
+                   break;
+                }
                 System.out.println("MAIN MENU");
                 System.out.println("---------");
                 System.out.println("1. Goto Friend List");
                 System.out.println("2. Update Profile");
-                System.out.println("3. Write a new message");
+                System.out.println("3. Messages" + unreadLabel(esql, authorisedUser));
                 System.out.println("4. Send Friend Request");
                 System.out.println("5. View Profile");
                 System.out.println("6. Find Profile");
-                System.out.println("7. View Friend Requests");
+                System.out.println("7. View Friend Requests" + pendingLabel(esql, authorisedUser));
+                System.out.println("8. People You May Know");
                 System.out.println(".........................");
                 System.out.println("9. Log out");
                 switch (readChoice()){
 //havent coded for yet
                    case 1: listOfFriends(esql,authorisedUser); break;
-                   case 2: UpdateProfile(esql,authorisedUser); break;
-                   //case 3: NewMessage(esql); break;
+                   case 2: UpdateProfile(esql,authorisedUser,session); break;
+                   case 3: Messages(esql, authorisedUser); break;
                    case 4: SendRequest(esql, authorisedUser); break;
                    case 5: viewProfile(esql, authorisedUser); break;
                    case 6: findProfile(esql, authorisedUser); break;
                    case 7: PendingRequests(esql, authorisedUser); break;
-                   case 9: usermenu = false; break;
+                   case 8: Recommendations(esql, authorisedUser); break;
+                   case 9: usermenu = false; esql.getSessions().logout(session); break;
                    default : System.out.println("Unrecognized choice!"); break;
                 }
               }
@@ -307,6 +1736,168 @@ public class ProfNetwork {
       }//end try
    }//end main
 
+   /*
+    * Loads a CSV file into a table without the interactive menus
+    * <dbname> <port> <user> --import <table> <file.csv> [chunkRows]
+    **/
+   public static void BulkImport(String[] args){
+      ProfNetwork esql = null;
+      try{
+         loadDriver ();
+         // the importer does not need the social graph, the search index or messaging
+         System.setProperty("profnetwork.graph", "false");
+         System.setProperty("profnetwork.search", "false");
+         System.setProperty("profnetwork.messaging", "false");
+         esql = new ProfNetwork (args[0], args[1], args[2], "");
+         int chunkRows = args.length == 7 ? Integer.parseInt(args[6]) : 10000;
+         long start = System.nanoTime();
+         long rows = new BulkLoader(esql, args[4], java.nio.file.Paths.get(args[5]), chunkRows).run();
+         double secs = (System.nanoTime() - start) / 1e9;
+         System.out.printf("Imported %d records into %s in %.1fs (%.0f rows/sec)%n",
+                           rows, args[4], secs, rows / Math.max(secs, 1e-9));
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         if(esql != null)
+            esql.cleanup ();
+      }//end try
+   }//end BulkImport
+
+   /*
+    * Creates the tables and indexes the program adds to the schema, once,
+    * instead of at every start
+    * <dbname> <port> <user> --migrate
+    **/
+   public static void Migrate(String[] args){
+      ProfNetwork esql = null;
+      try{
+         loadDriver ();
+         System.setProperty("profnetwork.graph", "false");
+         System.setProperty("profnetwork.search", "false");
+         System.setProperty("profnetwork.messaging", "false");
+         esql = new ProfNetwork (args[0], args[1], args[2], "");
+         long start = System.nanoTime();
+         Messaging.migrate(esql);
+         System.out.printf("Migrated in %.1fs%n", (System.nanoTime() - start) / 1e9);
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         if(esql != null)
+            esql.cleanup ();
+      }//end try
+   }//end Migrate
+
+   /*
+    * Serves the menu operations over TCP instead of the keyboard
+    * <dbname> <port> <user> --server <listenPort>
+    **/
+   public static void Serve(String[] args){
+      ProfNetwork esql = null;
+      try{
+         loadDriver ();
+         esql = new ProfNetwork (args[0], args[1], args[2], "");
+         new ProfNetworkServer(esql, Integer.parseInt(args[4])).serve();
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         if(esql != null)
+            esql.cleanup ();
+      }//end try
+   }//end Serve
+
+   /*
+    * Writes the suggestions for every member to a CSV file of
+    * userId,suggestedId,score,mutual,companies,institutions rows
+    * <dbname> <port> <user> --recommend <file.csv> [perMember]
+    **/
+   public static void RecommendAll(String[] args){
+      ProfNetwork esql = null;
+      try{
+         loadDriver ();
+         // scoring needs the graph but not the search index
+         System.setProperty("profnetwork.search", "false");
+         esql = new ProfNetwork (args[0], args[1], args[2], "");
+         if(esql.getRecommender() == null){
+            System.err.println("The social graph is not loaded");
+            return;
+         }
+         int perMember = args.length == 6 ? Integer.parseInt(args[5]) : config("recommend.results", 10);
+         long start = System.nanoTime();
+         int members;
+         try(final java.io.PrintWriter out = new java.io.PrintWriter(java.nio.file.Files.newBufferedWriter(java.nio.file.Paths.get(args[4])))){
+            out.println("userId,suggestedId,score,mutual,companies,institutions");
+            members = esql.getRecommender().recommendAll(perMember, (userId, recs) -> {
+               for(Recommender.Recommendation r : recs)
+                  out.println(userId + "," + r.userId + "," + String.format(java.util.Locale.ROOT, "%.1f", r.score)
+                              + "," + r.mutual + "," + r.companies + "," + r.institutions);
+            });
+            if(out.checkError())
+               throw new java.io.IOException("Unable to write " + args[4]);
+         }
+         System.out.printf("Scored %d members in %.1fs%n", members, (System.nanoTime() - start) / 1e9);
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         if(esql != null)
+            esql.cleanup ();
+      }//end try
+   }//end RecommendAll
+
+   /*
+    * Moves members and connections to the shards listed in
+    * profnetwork.shards, offline, after shards were added
+    * <dbname> <port> <user> --rebalance [chunkRows]
+    **/
+   public static void Rebalance(String[] args){
+      ProfNetwork esql = null;
+      try{
+         loadDriver ();
+         // nothing is served while rows move
+         System.setProperty("profnetwork.graph", "false");
+         System.setProperty("profnetwork.search", "false");
+         System.setProperty("profnetwork.messaging", "false");
+         esql = new ProfNetwork (args[0], args[1], args[2], "");
+         if(esql.getShardRouter() == null){
+            System.err.println("Set -Dprofnetwork.shards to the list of shards to rebalance over");
+            return;
+         }
+         int chunkRows = args.length == 5 ? Integer.parseInt(args[4]) : 1000;
+         long start = System.nanoTime();
+         String moved = new ShardRebalancer(esql.getShardRouter(), chunkRows).run();
+         System.out.printf("%s in %.1fs%n", moved, (System.nanoTime() - start) / 1e9);
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         if(esql != null)
+            esql.cleanup ();
+      }//end try
+   }//end Rebalance
+
+   /*
+    * The number of unread messages shown next to the menu entry
+    **/
+   public static String unreadLabel(ProfNetwork esql, String authorisedUser){
+      try{
+         int n = esql.getMessaging() == null ? 0 : esql.getMessaging().unreadCount(authorisedUser);
+         return n == 0 ? "" : " (" + n + " unread)";
+      }catch(SQLException e){
+         return "";
+      }//end try
+   }//end unreadLabel
+
+   /*
+    * The number of waiting requests shown next to the menu entry, from the
+    * session cache
+    **/
+   public static String pendingLabel(ProfNetwork esql, String authorisedUser){
+      try{
+         int n = esql.getSessions().pendingCount(authorisedUser);
+         return n == 0 ? "" : " (" + n + ")";
+      }catch(SQLException e){
+         return "";
+      }//end try
+   }//end pendingLabel
+
    public static void Greeting(){
       System.out.println(
          "\n\n*******************************************************\n" +
@@ -352,9 +1943,7 @@ public class ProfNetwork {
          String dob = in.readLine();
 
 	 //Creating empty contact\block lists for a user
-	 String query = String.format("INSERT INTO USR (userId, password, email, name, dateOfBirth) VALUES ('%s','%s','%s', '%s', '%s')", login, password, email, fname, dob);
-
-         esql.executeUpdate(query);
+         esql.createUser(login, password, email, fname, dob);
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -372,11 +1961,7 @@ public class ProfNetwork {
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USR WHERE userId = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-	 if (userNum > 0)
-		return login;
-         return null;
+	 return esql.getSessions().login(login, password);
       }catch(Exception e){
          System.err.println (e.getMessage ());
          return null;
@@ -386,7 +1971,7 @@ public class ProfNetwork {
 // Rest of the functions definition go in here
 //!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!
 
- public static void UpdateProfile(ProfNetwork esql, String authorisedUser){
+ public static void UpdateProfile(ProfNetwork esql, String authorisedUser, String session){
 
         System.out.println("UPDATE PROFILE");
         System.out.println("---------");
@@ -400,7 +1985,7 @@ public class ProfNetwork {
 
         switch (readChoice()){
 
-           case 1: ChangePassword(esql,authorisedUser);
+           case 1: ChangePassword(esql,authorisedUser,session);
            break;          
            case 2: UpdateEducation(esql, authorisedUser); 
            break;
@@ -413,7 +1998,7 @@ public class ProfNetwork {
         }
       }
 
-      public static void ChangePassword(ProfNetwork esql, String authorisedUser){
+      public static void ChangePassword(ProfNetwork esql, String authorisedUser, String session){
 
         System.out.println("\tCHANGE PASSWORD");
         System.out.println("---------");
@@ -425,8 +2010,8 @@ public class ProfNetwork {
           System.out.print("\tEnter new password: ");
           String new_password = in.readLine();
 
-         String query = String.format("UPDATE USR SET password = '%s' WHERE userId = '%s'", new_password, authorisedUser);
-          esql.executeUpdate(query);
+          // other logins of the member end; this one stays open
+          esql.setPassword(authorisedUser, new_password, session);
           System.out.print("\tPASSWORD CHANGED! ");
 
            }
@@ -454,8 +2039,7 @@ public class ProfNetwork {
           String start = in.readLine();
           System.out.print("\tEnter end date (YYYY/MM/DD): ");
           String end = in.readLine();
-          String query = String.format("INSERT INTO educational_details(userId, instituitionName, major, degree, startdate, enddate) values('%s','%s','%s', '%s', '%s', '%s')", authorisedUser, school, major, degree, start, end);
-          esql.executeUpdate(query);
+          esql.addEducation(authorisedUser, school, major, degree, start, end);
           
          
   
@@ -479,8 +2063,7 @@ public class ProfNetwork {
           
           System.out.print("\tEnter new email: ");
           String emailUpdate = in.readLine();
-          String query = String.format("UPDATE usr set email = '%s' WHERE userid = '"+authorisedUser+"'",emailUpdate);
-			esql.executeUpdate(query);
+			esql.setEmail(authorisedUser, emailUpdate);
         
           
          
@@ -500,79 +2083,129 @@ public class ProfNetwork {
 	    System.out.println("\tLIST OF FRIENDS");
        System.out.println("---------");
      try{
-       
-       
-      
-
-        
-       List<List<String>> listFriends1 = new ArrayList<List<String>>();
-       String query = String.format("SELECT connectionid AS userid FROM connection_usr WHERE userID = '%s' AND status	= '%s' UNION ALL SELECT userid FROM connection_usr WHERE connectionid = '%s' AND status= '%s'", 
-						   authorisedUser, "Accept", authorisedUser, "Accept");
-       listFriends1 = esql.executeQueryAndReturnResult(query);
-       if(listFriends1.isEmpty()){
+       // one page at a time, from the graph when it is loaded and with
+       // keyset queries otherwise; the number typed is resolved against
+       // the page shown
+       SocialGraph graph = esql.getGraph();
+       KeysetPager pager = new KeysetPager(graph != null ? KeysetPager.of(graph.friends(authorisedUser)) :
+          (cursor, forward, limit) -> esql.executeQueryAndReturnColumn(forward ? SQL_FRIENDS_AFTER : SQL_FRIENDS_BEFORE,
+                                                                      authorisedUser, cursor, authorisedUser, cursor, limit),
+          pageSize);
+       pager.first();
+       boolean browsing = true;
+       while(browsing){
+          if(pager.size() == 0 && !pager.hasPrevious()){
 				System.out.println("You have no connections at this time\n");
+				return;
 			}
-       
-       System.out.println("\nList of Friends/Connections: ");
-       int num;
-       for(int i = 0; i < listFriends1.size(); ++i){
-            num = i + 1;
-						System.out.println(""+num+": " + ""+listFriends1.get(i).get(0)+"");
-					}
-          
+          System.out.println("\nList of Friends/Connections (page " + pager.pageNumber() + "): ");
+          for(int i = 0; i < pager.size(); ++i)
+               System.out.println(""+(i+1)+": " + pager.get(i));
+
           System.out.println("\t1. View a profile");
+          if(pager.hasNext())
+					System.out.println("\t2. Next page");
+          if(pager.hasPrevious())
+					System.out.println("\t3. Previous page");
+					System.out.println("\t4. Change page size");
 					System.out.println("\t9. Got to main menu\n");
         int choice;
        switch(esql.readChoice()){
 						case 1: System.out.print("Please enter the number of the connection you wish to view:");
 								choice = Integer.parseInt(esql.in.readLine().trim()) - 1;
 								System.out.println();
-              //////////////////////////////////////////////		
-              //
-              // VIEW PROFILE
-              //
-              //
-              //
-              //prof.ViewUserProfile(esql, currentUser, result.get(usrChoice).get(0));
+								String friend = pager.get(choice);
+								Profile profile = friend == null ? null : esql.getSessions().profile(friend);
+								if(profile == null){
+									System.out.println("Try again");
+									break;
+								}
+								printProfile(profile);
+								browsing = false;
 								break;
-						case 9:  break;
-						default: System.out.println("Try again");	
+						case 2: if(!pager.next()) System.out.println("This is the last page"); break;
+						case 3: if(!pager.previous()) System.out.println("This is the first page"); break;
+						case 4: pageSize = readPageSize(); pager.setPageSize(pageSize); break;
+						case 9: browsing = false; break;
+						default: System.out.println("Try again");
+       }
        }
-     
-               
-               
-       
-       
 	   }
      catch(Exception e){
 		   System.err.println(e.getMessage());
-		   
 	   }
    }
-      
-      
+
+   /*
+    * Asks for the number of rows per page of the friend and request lists
+    **/
+   public static int readPageSize() throws IOException {
+       System.out.print("Rows per page: ");
+       try{
+           return Math.max(1, Integer.parseInt(in.readLine().trim()));
+       }catch(NumberFormatException e){
+           System.out.println("Not a number, keeping " + pageSize);
+           return pageSize;
+       }
+   }
+
+
     public static void findProfile(ProfNetwork esql, String authorisedUser){
 
         System.out.println("\tFIND A PROFILE");
         System.out.println("---------");
 
         try{
-          
-          System.out.print("\tPlease enter User ID: ");
+          ProfileSearchIndex index = esql.getSearchIndex();
+          System.out.print("\tPlease enter part of a User ID or name: ");
           String username = in.readLine();
-          
-          String query = String.format("SELECT * FROM USR WHERE userId = '%s'", username);
-          int results = esql.executeQuery(query);
-          if(results == 0){
+
+          // the best matches from the search index, closest members first
+          // among equals; without the index the members whose User ID or
+          // name contains the text, read from every shard at once
+          if(index == null){
+            List<String[]> members = esql.findMembers(username, config("search.results", 10));
+            if(members.isEmpty()){
+              System.out.println("\tNo matching members ");
+              return;
+            }
+            for(int i = 0; i < members.size(); ++i)
+              System.out.println("\t" + (i+1) + ". " + members.get(i)[0] + "  " + members.get(i)[1]);
+            System.out.print("\tPlease enter the number of the profile to view, or 0 to go back: ");
+            int choice = Integer.parseInt(in.readLine().trim()) - 1;
+            if(choice < 0 || choice >= members.size())
+              return;
+            username = members.get(choice)[0];
+          }
+          else{
+            List<ProfileSearchIndex.Match> matches =
+               index.search(username, authorisedUser, esql.getGraph(), config("search.results", 10));
+            if(matches.isEmpty()){
+              System.out.println("\tNo matching members ");
+              return;
+            }
+            for(int i = 0; i < matches.size(); ++i){
+              ProfileSearchIndex.Match m = matches.get(i);
+              System.out.println("\t" + (i+1) + ". " + m.userId + "  " + m.name
+                                 + (m.hops > 0 ? "  (" + m.hops + (m.hops == 1 ? " connection" : " connections") + " away)" : ""));
+            }
+            System.out.print("\tPlease enter the number of the profile to view, or 0 to go back: ");
+            int choice = Integer.parseInt(in.readLine().trim()) - 1;
+            if(choice < 0 || choice >= matches.size())
+              return;
+            username = matches.get(choice).userId;
+          }
+
+          // the profile load doubles as the existence check
+          Profile profile = esql.getSessions().profile(username);
+          if(profile == null){
             System.out.print("\tUsername not found ");
           }
           else{
-            //DISPLAY PROFILE NOT COMPLETE;
             System.out.print("\tUser found ");
+            printDistance(esql, authorisedUser, profile.userId);
+            printProfile(profile);
           }
-
-
-        
       }
        catch(Exception e){
          System.err.println (e.getMessage ());
@@ -580,115 +2213,391 @@ public class ProfNetwork {
     }
 		
 	public static void viewProfile(ProfNetwork esql, String authorisedUser){
-
-	   String query = String.format("SELECT email, name, dateOfBirth FROM USR WHERE userId='" +authorisedUser + "'");
-	   List<List<String> > udetails = new ArrayList<List<String> >();
 	   try{
-	       System.out.println(ANSI_GREEN + "\n\n-----------USER PROFILE-----------" + ANSI_RESET);
-		   udetails = esql.executeQueryAndReturnResult(query);
-		   System.out.println("\nNAME: " + udetails.get(0).get(1) + "");
-	   	   System.out.println("Email: " + udetails.get(0).get(0) + "");
-		   System.out.println("Date of Birth: " + udetails.get(0).get(2) + "");
-           System.out.println("----------------------------------");
+		   Profile profile = esql.getSessions().profile(authorisedUser);
+		   if(profile == null){
+		       System.out.println(ANSI_RED + "\nProfile not found" + ANSI_RESET);
+		       return;
+		   }
+		   printProfile(profile);
 	   }catch(Exception e){
 		   System.err.println(e.getMessage());
 	   }
+   }//end
 
-	   query = String.format("SELECT company, role, location, startdate, enddate FROM WORK_EXPR WHERE userId='" + authorisedUser + "'");
-	   List<List<String> > wdetails = new ArrayList<List<String> >();
-	   try{
-		   wdetails = esql.executeQueryAndReturnResult(query);
-		   System.out.println(ANSI_GREEN + "\n----------WORK EXPERIENCE---------\n" + ANSI_RESET);
-		   if(wdetails.isEmpty()){
-		       System.out.println(ANSI_RED + "\nNo Work Experience" + ANSI_RESET);
+	/*
+	 * Prints how many connections separate two members and how many
+	 * connections they share, when the social graph is loaded
+	 **/
+	public static void printDistance(ProfNetwork esql, String authorisedUser, String other){
+	   SocialGraph graph = esql.getGraph();
+	   if(graph == null || other == null)
+	       return;
+	   int hops = PathFinder.distance(graph, authorisedUser, other, MAX_HOPS);
+	   if(hops < 0)
+	       System.out.println("\n" + other.trim() + " is not within " + MAX_HOPS + " connections of you");
+	   else if(hops > 0)
+	       System.out.println("\n" + other.trim() + " is " + hops + (hops == 1 ? " connection" : " connections") + " away from you ("
+	                          + PathFinder.mutualConnections(graph, authorisedUser, other).length + " mutual)");
+   }//end
+
+	public static void printProfile(Profile profile){
+	   System.out.println(ANSI_GREEN + "\n\n-----------USER PROFILE-----------" + ANSI_RESET);
+	   System.out.println("\nNAME: " + profile.name + "");
+	   System.out.println("Email: " + profile.email + "");
+	   System.out.println("Date of Birth: " + profile.dateOfBirth + "");
+	   System.out.println("----------------------------------");
+
+	   System.out.println(ANSI_GREEN + "\n----------WORK EXPERIENCE---------\n" + ANSI_RESET);
+	   if(profile.work.isEmpty()){
+	       System.out.println(ANSI_RED + "\nNo Work Experience" + ANSI_RESET);
+	   }
+	   else{
+	       for(Profile.WorkEntry w : profile.work){
+			   System.out.println("\nCompany: " + w.company + "");
+		       System.out.println("Role: " + w.role + "");
+		       System.out.println("Location: " + w.location +"");
+		       System.out.println("Start Date: " + w.startDate +"");
+		       System.out.println("End Date: " + w.endDate +"");
 		   }
-	       else{
-		       for(int i=0; i<wdetails.size(); i++){
-				   System.out.println("\nCompany: " + wdetails.get(i).get(0) + "");
-			       System.out.println("Role: " + wdetails.get(i).get(1) + "");
-			       System.out.println("Location: " + wdetails.get(i).get(2) +"");
-			       System.out.println("Start Date: " + wdetails.get(i).get(3) +"");
-			       System.out.println("End Date: " + wdetails.get(i).get(4) +"");
-			   }
-	      }
-	      System.out.println("----------------------------------");
-	   }catch(Exception e){
-		   System.err.println(e.getMessage());
 	   }
+	   System.out.println("----------------------------------");
 
-	   query = String.format("SELECT instituitionName, major, degree, startdate, enddate FROM EDUCATIONAL_DETAILS WHERE userId='" + authorisedUser + "'");
-	   List<List<String> > edetails = new ArrayList<List<String> >();
-	   try{
-		   edetails = esql.executeQueryAndReturnResult(query);
-		   System.out.println(ANSI_GREEN + "\n-------EDUCATION EXPERIENCE-------" + ANSI_RESET);
-	       if(edetails.isEmpty()){
-	           System.out.println(ANSI_RED + "\nNo Education Experience\n" + ANSI_RESET);
-	       }
-            else{
-			   for(int i=0; i<edetails.size(); i++){
-				   System.out.println("\nInstitution Name: " + edetails.get(i).get(0) + "");
-				   System.out.println("Major: " + edetails.get(i).get(1) + "");
-				   System.out.println("Degree: " + edetails.get(i).get(2) + "");
-				   System.out.println("Start Date: " + edetails.get(i).get(3) + "");
-				   System.out.println("End Date: " + edetails.get(i).get(4) + "");
-			   }
+	   System.out.println(ANSI_GREEN + "\n-------EDUCATION EXPERIENCE-------" + ANSI_RESET);
+	   if(profile.education.isEmpty()){
+	       System.out.println(ANSI_RED + "\nNo Education Experience\n" + ANSI_RESET);
+	   }
+	   else{
+		   for(Profile.EducationEntry e : profile.education){
+			   System.out.println("\nInstitution Name: " + e.institution + "");
+			   System.out.println("Major: " + e.major + "");
+			   System.out.println("Degree: " + e.degree + "");
+			   System.out.println("Start Date: " + e.startDate + "");
+			   System.out.println("End Date: " + e.endDate + "");
 		   }
-		   System.out.println("----------------------------------");
-	   }catch(Exception e){
-		   System.err.println(e.getMessage());
 	   }
+	   System.out.println("----------------------------------");
    }//end
    
    public static void SendRequest(ProfNetwork esql, String authorisedUser){
        System.out.print("Enter the userid of the person to connect with:");
        try{
            String uidreq = esql.in.readLine();
-           String query = String.format("INSERT INTO connection_usr (userId, connectionId, status) " + "VALUES('"+authorisedUser+"', '"+uidreq+"', 'Request')");
-           esql.executeUpdate(query);
+           printDistance(esql, authorisedUser, uidreq);
+           esql.sendRequest(authorisedUser, uidreq);
            System.out.println("Your request has been sent to " + uidreq);
        } catch(Exception e){
            System.err.println(e.getMessage());
        }
    }
    
+   /*
+    * Lists the members suggested to connect with and sends a request to
+    * the one picked
+    **/
+   public static void Recommendations(ProfNetwork esql, String authorisedUser){
+       Recommender recommender = esql.getRecommender();
+       if(recommender == null){
+           System.out.println("Suggestions are not available");
+           return;
+       }
+       try{
+           List<Recommender.Recommendation> recs = recommender.recommend(authorisedUser, config("recommend.results", 10));
+           if(recs.isEmpty()){
+               System.out.println("No suggestions yet, add some connections first");
+               return;
+           }
+           System.out.println("People You May Know: ");
+           for(int i = 0; i < recs.size(); ++i){
+               Recommender.Recommendation r = recs.get(i);
+               System.out.println(""+(i+1)+". " + r.userId + "  (" + r.mutual + " mutual"
+                                  + (r.companies > 0 ? ", same company" : "")
+                                  + (r.institutions > 0 ? ", same school" : "") + ")");
+           }
+           System.out.print("Please enter the number of the member to view, or 0 to go back: ");
+           int choice = Integer.parseInt(in.readLine().trim()) - 1;
+           if(choice < 0 || choice >= recs.size())
+               return;
+           String other = recs.get(choice).userId;
+           Profile profile = esql.getSessions().profile(other);
+           if(profile != null)
+               printProfile(profile);
+           System.out.print("Send a connection request to " + other + "? (y/n): ");
+           if(in.readLine().trim().equalsIgnoreCase("y")){
+               esql.sendRequest(authorisedUser, other);
+               System.out.println("Your request has been sent to " + other);
+           }
+       }catch(Exception e){
+           System.err.println(e.getMessage());
+       }
+   }//end Recommendations
+
+   public static void Messages(ProfNetwork esql, String authorisedUser){
+       if(esql.getMessaging() == null){
+           System.out.println("Messaging is not available");
+           return;
+       }
+       boolean browsing = true;
+       while(browsing){
+           System.out.println("MESSAGES");
+           System.out.println("---------");
+           System.out.println("1. Write a new message");
+           System.out.println("2. Write to all connections");
+           System.out.println("3. Inbox" + unreadLabel(esql, authorisedUser));
+           System.out.println("4. Sent messages");
+           System.out.println("9. Go to main menu");
+           switch (readChoice()){
+               case 1: NewMessage(esql, authorisedUser); break;
+               case 2: BroadcastMessage(esql, authorisedUser); break;
+               case 3: MessageFolder(esql, authorisedUser, true); break;
+               case 4: MessageFolder(esql, authorisedUser, false); break;
+               case 9: browsing = false; break;
+               default : System.out.println("Unrecognized choice!"); break;
+           }
+       }
+   }//end Messages
+
+   public static void NewMessage(ProfNetwork esql, String authorisedUser){
+       try{
+           System.out.print("Enter the userids to send to, separated by commas: ");
+           List<String> to = new ArrayList<String>();
+           for(String id : in.readLine().split(",")){
+               id = id.trim();
+               if(id.isEmpty())
+                   continue;
+               if(esql.getSessions().profile(id) == null){
+                   System.out.println("Username " + id + " not found");
+                   return;
+               }
+               to.add(id);
+           }
+           if(to.isEmpty())
+               return;
+           System.out.print("Enter your message: ");
+           String contents = in.readLine();
+           esql.getMessaging().send(authorisedUser, to, contents);
+           System.out.println("Your message has been sent");
+       }catch(Exception e){
+           System.err.println(e.getMessage());
+       }
+   }//end NewMessage
+
+   public static void BroadcastMessage(ProfNetwork esql, String authorisedUser){
+       try{
+           System.out.print("Enter your message to all your connections: ");
+           String contents = in.readLine();
+           int n = esql.getMessaging().broadcast(authorisedUser, contents);
+           System.out.println("Your message has been sent to " + n + (n == 1 ? " connection" : " connections"));
+       }catch(Exception e){
+           System.err.println(e.getMessage());
+       }
+   }//end BroadcastMessage
+
+   /*
+    * Pages through the inbox or the sent messages, newest first, to open
+    * or delete them
+    **/
+   public static void MessageFolder(ProfNetwork esql, String authorisedUser, boolean inbox){
+       try{
+           Messaging messaging = esql.getMessaging();
+           Messaging.Folder folder = inbox ? messaging.inbox(authorisedUser) : messaging.sent(authorisedUser);
+           KeysetPager pager = new KeysetPager(folder, pageSize);
+           pager.first();
+           boolean browsing = true;
+           while(browsing){
+            if(pager.size() == 0 && !pager.hasPrevious()){
+               System.out.println(inbox ? "Your inbox is empty." : "You have not sent any messages.");
+               return;
+            }
+            System.out.println((inbox ? "Inbox" : "Sent Messages") + " (page " + pager.pageNumber() + "): ");
+            for(int i = 0; i < pager.size(); ++i){
+               Messaging.Message m = folder.message(pager.get(i));
+               System.out.println(""+(i+1)+". " + (inbox ? "From " + m.senderId : "To " + m.receiverId)
+                                  + "  " + m.sendTime + (inbox && m.isUnread() ? "  (new)" : ""));
+            }
+            System.out.println("\n\n---------");
+            System.out.println("1. Open Message");
+            System.out.println("2. Delete Message");
+            if(pager.hasNext())
+               System.out.println("3. Next page");
+            if(pager.hasPrevious())
+               System.out.println("4. Previous page");
+            System.out.println("5. Change page size");
+            System.out.println("9. Go back");
+            Messaging.Message selected;
+            switch (readChoice()){
+               case 1:  System.out.print("Please enter the number of the message to open: ");
+                        selected = folder.message(pager.get(Integer.parseInt(in.readLine().trim())-1));
+                        if(selected == null){
+                            System.out.println("Unrecognized choice!");
+                            break;
+                        }
+                        Messaging.Message m = messaging.open(authorisedUser, selected.msgId);
+                        if(m == null){
+                            System.out.println("This message has been deleted");
+                        }else{
+                            System.out.println("\nFrom: " + m.senderId + "\nTo: " + m.receiverId + "\nSent: " + m.sendTime);
+                            System.out.println("\n" + m.contents + "\n");
+                        }
+                        pager.refresh();
+                        break;
+               case 2:  System.out.print("Please enter the number of the message to delete: ");
+                        selected = folder.message(pager.get(Integer.parseInt(in.readLine().trim())-1));
+                        if(selected == null){
+                            System.out.println("Unrecognized choice!");
+                            break;
+                        }
+                        if(messaging.delete(authorisedUser, selected.msgId, inbox))
+                            System.out.println("Message deleted");
+                        pager.refresh();
+                        break;
+               case 3:  if(!pager.next()) System.out.println("This is the last page"); break;
+               case 4:  if(!pager.previous()) System.out.println("This is the first page"); break;
+               case 5:  pageSize = readPageSize(); pager.setPageSize(pageSize); break;
+               case 9:  browsing = false; break;
+               default: System.out.println("Unrecognized choice!"); break;
+            }
+           }
+       }catch(Exception e){
+           System.err.println(e.getMessage());
+       }
+   }//end MessageFolder
+
+   /*
+    * Asks whether a set of requests is to be accepted or denied
+    * @return true to accept
+    **/
+   public static boolean readAccept() throws IOException {
+       System.out.print("Accept or deny them? (a/d): ");
+       return in.readLine().trim().toLowerCase().startsWith("a");
+   }
+
+   /*
+    * Prints how many requests of a batch were answered
+    **/
+   public static void printAnswered(int answered, int selected, boolean accepted){
+       System.out.println((accepted ? "Accepted " : "Denied ") + answered + (answered == 1 ? " request" : " requests"));
+       if(answered < selected)
+           System.out.println((selected - answered) + " of them were no longer pending");
+   }
+
    public static void PendingRequests(ProfNetwork esql, String authorisedUser){
-       List<List<String>> cdetails = new ArrayList<List<String>>();
        try{
-           String query = String.format("SELECT userid FROM connection_usr WHERE connectionid = '"+authorisedUser+"' AND status = 'Request'");
-           cdetails = esql.executeQueryAndReturnResult(query);
-           if(cdetails.isEmpty()){
+           // one page of requests at a time, read with keyset queries; the
+           // selected request is resolved against the page shown
+           KeysetPager pager = new KeysetPager((cursor, forward, limit) ->
+               esql.executeQueryAndReturnColumn(forward ? SQL_PENDING_AFTER : SQL_PENDING_BEFORE,
+                                                authorisedUser, cursor, limit), pageSize);
+           pager.first();
+           boolean browsing = true;
+           while(browsing){
+            if(pager.size() == 0 && !pager.hasPrevious()){
                System.out.println("You have no connection requests.");
-           }
-           else{
-               System.out.println("Connection Requests: ");
-               int count = 1;
-               for(int i = 0; i < cdetails.size(); i++){
-						System.out.println(""+count+". " + ""+cdetails.get(i).get(0)+"");
-						count++;
-			    }
+               return;
+            }
+            System.out.println("Connection Requests (page " + pager.pageNumber() + "): ");
+            for(int i = 0; i < pager.size(); ++i){
+               System.out.println(""+(i+1)+". " + pager.get(i));
+            }
             System.out.println("\n\n---------");
             System.out.println("1. Accept Request");
             System.out.println("2. Deny Request");
+            if(pager.hasNext())
+               System.out.println("3. Next page");
+            if(pager.hasPrevious())
+               System.out.println("4. Previous page");
+            System.out.println("5. Change page size");
+            System.out.println("6. Accept or deny several requests on this page");
+            System.out.println("7. Accept or deny all requests");
+            System.out.println("8. Accept or deny requests matching a name or User ID");
+            System.out.println("9. Go to main menu");
             int menusel = 0;
+            String requester;
+            String[] answered;
             switch (readChoice()){
                case 1:  System.out.print("Please enter the number of the connection to accept: ");
                         menusel = Integer.parseInt(esql.in.readLine().trim())-1;
-                        query = String.format("UPDATE connection_usr SET status = 'Accept' WHERE userid = '"+cdetails.get(menusel).get(0)+"' AND connectionid = '"+authorisedUser+"'");
+                        requester = pager.get(menusel);
+                        if(requester == null){
+                            System.out.println("Unrecognized choice!");
+                            break;
+                        }
                         try{
-                            esql.executeUpdate(query);
+                            esql.acceptRequest(requester, authorisedUser);
                         } catch(Exception e){
                             System.err.println(e.getMessage());
                         }
+                        pager.refresh();
                         break;
                case 2:  System.out.print("Please enter the number of the connection to deny: ");
                         menusel = Integer.parseInt(esql.in.readLine().trim())-1;
-                        query = String.format("UPDATE connection_usr SET status = 'Reject' WHERE userid = '"+cdetails.get(menusel).get(0)+"' AND connectionid = '"+authorisedUser+"'");
+                        requester = pager.get(menusel);
+                        if(requester == null){
+                            System.out.println("Unrecognized choice!");
+                            break;
+                        }
                         try{
-                            esql.executeUpdate(query);
+                            esql.rejectRequest(requester, authorisedUser);
                         } catch(Exception e){
                             System.err.println(e.getMessage());
                         }
+                        pager.refresh();
                         break;
+               case 3:  if(!pager.next()) System.out.println("This is the last page"); break;
+               case 4:  if(!pager.previous()) System.out.println("This is the first page"); break;
+               case 5:  pageSize = readPageSize(); pager.setPageSize(pageSize); break;
+               case 6:  System.out.print("Please enter the numbers of the requests, such as 1,3,5-8: ");
+                        List<String> selected = new ArrayList<String>();
+                        String invalid = null;
+                        for(String part : in.readLine().split(",")){
+                            String[] range = part.trim().split("-");
+                            if(range[0].isEmpty())
+                                continue;
+                            int from, to;
+                            try{
+                                from = Integer.parseInt(range[0].trim());
+                                to = range.length > 1 ? Integer.parseInt(range[1].trim()) : from;
+                            }catch(NumberFormatException e){
+                                invalid = part.trim();
+                                break;
+                            }
+                            if(range.length > 2 || from > to){
+                                invalid = part.trim();
+                                break;
+                            }
+                            // only the requests shown on this page can be picked
+                            for(int i = Math.max(from, 1); i <= Math.min(to, pager.size()); ++i)
+                                if(!selected.contains(pager.get(i-1)))
+                                    selected.add(pager.get(i-1));
+                        }
+                        if(invalid != null){
+                            System.out.println("Invalid range: " + invalid);
+                            break;
+                        }
+                        if(selected.isEmpty()){
+                            System.out.println("No requests selected");
+                            break;
+                        }
+                        boolean acceptSelected = readAccept();
+                        answered = esql.answerRequests(authorisedUser, selected, acceptSelected);
+                        printAnswered(answered.length, selected.size(), acceptSelected);
+                        pager.refresh();
+                        break;
+               case 7:  boolean acceptAll = readAccept();
+                        answered = esql.answerRequests(authorisedUser, null, acceptAll);
+                        printAnswered(answered.length, answered.length, acceptAll);
+                        pager.first();
+                        break;
+               case 8:  System.out.print("Please enter part of a name or User ID: ");
+                        String filter = in.readLine();
+                        if(filter.trim().isEmpty())
+                            break;
+                        boolean acceptMatching = readAccept();
+                        answered = esql.answerMatchingRequests(authorisedUser, filter, acceptMatching);
+                        printAnswered(answered.length, answered.length, acceptMatching);
+                        pager.first();
+                        break;
+               case 9:  browsing = false; break;
                default : System.out.println("Unrecognized choice!"); break;
             }//end switch
            }
@@ -696,7 +2605,7 @@ public class ProfNetwork {
            System.out.println(e.getMessage());
        }
    }
-   
+
 public static final String ANSI_RESET = "\u001B[0m";
 public static final String ANSI_BLACK = "\u001B[30m";
 public static final String ANSI_RED = "\u001B[31m";
@@ -0,0 +1,238 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * This class seeds a local PostgreSQL database with a synthetic social
+ * graph for the JMH benchmarks of the jmh module, and holds the
+ * data-access paths behind the ProfNetwork menus that they measure:
+ *
+ *    java -jar jmh/target/benchmarks.jar -prof gc -p dbname=<db> -p user=<user>
+ *
+ * Seeded members are named with the "#b" prefix and removed at the end.
+ * WorkloadDriver seeds its database the same way, which is why this class
+ * still compiles into the application jar with the other top-level sources.
+ *
+ */
+public class ProfNetworkBench {
+
+   // userId prefix of every seeded member
+   static final String PREFIX = "#b";
+
+   /**
+    * One benchmarked operation.
+    */
+   interface Op {
+      Object run(ThreadLocalRandom rnd, int thread) throws Exception;
+   }
+
+   /**
+    * A database seeded with a synthetic social graph and the operations
+    * benchmarked on it.  The JMH benchmarks of the jmh module reach this
+    * class by reflection, since classes in a named package cannot refer to
+    * the default package, and only through JDK types: the constructor,
+    * names(), op() and close().
+    */
+   public static class Fixture implements AutoCloseable {
+      private final ProfNetwork esql;
+      private final boolean keep;
+      private final Map<String, Op> ops = new LinkedHashMap<String, Op>();
+
+      /**
+       * Connects and seeds the database.
+       *
+       * @param dbname the name of the database
+       * @param port the port of the local server
+       * @param user the user name used to login to the database
+       * @param users members to seed
+       * @param degree connection rows per member
+       * @param threads threads that will run the operations, to size the pool
+       * @param keep true to leave the seeded data in place on close
+       * @throws Exception when the database cannot be reached or seeded
+       */
+      public Fixture(String dbname, String port, String user, int users, int degree, int threads, boolean keep) throws Exception {
+         ProfNetwork.loadDriver();
+         // the graph is loaded below, once the seed data is in place
+         System.setProperty("profnetwork.graph", "false");
+         System.setProperty("profnetwork.search", "false");
+         if (System.getProperty("profnetwork.pool.max") == null)
+            System.setProperty("profnetwork.pool.max", Integer.toString(Math.max(8, threads * 2)));
+         this.esql = new ProfNetwork(dbname, port, user, "");
+         this.keep = keep;
+         try{
+            seed(this.esql, users, degree);
+         }catch (SQLException e){
+            this.esql.cleanup();
+            throw e;
+         }//end try
+         final ProfNetwork esql = this.esql;
+         final SocialGraph graph = SocialGraph.load(esql);
+
+         this.ops.put("login", (rnd, t) ->
+            esql.authenticate(member(rnd, users), "pw"));
+         this.ops.put("viewProfile", (rnd, t) ->
+            ProfileLoader.load(esql, member(rnd, users)));
+         this.ops.put("listOfFriends.sql", (rnd, t) -> {
+            String u = member(rnd, users);
+            return esql.executeQueryAndStream(ProfNetwork.SQL_FRIENDS, rs -> true, u, u);
+         });
+         this.ops.put("listOfFriends.graph", (rnd, t) ->
+            graph.friends(member(rnd, users)));
+         this.ops.put("pendingRequests", (rnd, t) ->
+            esql.executeQueryAndStream(ProfNetwork.SQL_PENDING_REQUESTS, rs -> true, member(rnd, users)));
+         this.ops.put("sendRequest", (rnd, t) -> {
+            // each thread requests a member of its own, removed again straight away
+            String target = PREFIX + "t" + t;
+            String from = member(rnd, users);
+            esql.executeUpdate(ProfNetwork.SQL_SEND_REQUEST, from, target);
+            return esql.executeUpdate("DELETE FROM connection_usr WHERE userId = ? AND connectionId = ?", from, target);
+         });
+         this.ops.put("materialize.list", (rnd, t) ->
+            esql.executeQueryAndReturnResult(
+               "SELECT userId, connectionId, status FROM connection_usr WHERE userId >= ? ORDER BY userId LIMIT 1000",
+               member(rnd, users)));
+         this.ops.put("materialize.stream", (rnd, t) ->
+            esql.executeQueryAndStream(
+               "SELECT userId, connectionId, status FROM connection_usr WHERE userId >= ? ORDER BY userId LIMIT 1000",
+               rs -> { rs.getString(1); rs.getString(2); rs.getString(3); return true; },
+               member(rnd, users)));
+      }//end Fixture
+
+      /**
+       * @return the names of the operations
+       */
+      public List<String> names() {
+         return new ArrayList<String>(this.ops.keySet());
+      }
+
+      /**
+       * Prepares an operation for one measuring thread.
+       *
+       * @param name the operation
+       * @param thread the index of the thread, from 0
+       * @return one call of the operation, returning its result
+       * @throws java.sql.SQLException when the member the thread's send
+       *         requests target cannot be created
+       */
+      public Callable<Object> op(String name, final int thread) throws SQLException {
+         final Op op = this.ops.get(name);
+         if (op == null)
+            throw new IllegalArgumentException("No benchmark " + name + ", expected one of " + this.ops.keySet());
+         if (name.equals("sendRequest"))
+            this.esql.executeUpdate(
+               "INSERT INTO USR (userId, password, email, name, dateOfBirth) SELECT ?, 'pw', 'bench', 'bench', DATE '1990-01-01' " +
+               "WHERE NOT EXISTS (SELECT 1 FROM USR WHERE userId = ?)", PREFIX + "t" + thread, PREFIX + "t" + thread);
+         return () -> op.run(ThreadLocalRandom.current(), thread);
+      }//end op
+
+      /**
+       * Removes the seeded data, unless asked to keep it, and disconnects.
+       *
+       * @throws java.sql.SQLException when the data cannot be deleted
+       */
+      public void close() throws SQLException {
+         try{
+            if (!this.keep)
+               removeSeed(this.esql);
+         }finally{
+            this.esql.cleanup();
+         }//end try
+      }
+
+   }//end Fixture
+
+   /**
+    * Parses key=value arguments.
+    *
+    * @param args the command line
+    * @param from index of the first key=value argument
+    * @return the options by key
+    */
+   static Map<String, String> options(String[] args, int from) {
+      Map<String, String> opts = new HashMap<String, String>();
+      for (int i = from; i < args.length; ++i){
+         int eq = args[i].indexOf('=');
+         if (eq <= 0)
+            throw new IllegalArgumentException("Expected key=value but found " + args[i]);
+         opts.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+      }
+      return opts;
+   }
+
+   /**
+    * @param rnd the random source
+    * @param users the number of seeded members
+    * @return the userId of a random seeded member
+    */
+   static String member(ThreadLocalRandom rnd, int users) {
+      return PREFIX + (1 + rnd.nextInt(users));
+   }
+
+   /**
+    * Seeds members #b1..#bN, each with one work and one education entry and
+    * about degree connection rows to random other members, nine in ten of
+    * them accepted.  The data is generated by the server with set-based
+    * statements, so seeding a large graph takes seconds.
+    *
+    * @param esql the database access object
+    * @param users members to create
+    * @param degree connection rows per member
+    * @throws java.sql.SQLException when the data cannot be inserted
+    */
+   public static void seed(ProfNetwork esql, final int users, final int degree) throws SQLException {
+      removeSeed(esql);
+      // one connection throughout, so the random seed applies to every statement
+      esql.withConnection(pc -> {
+         pc.prepare("SELECT setseed(0.42)").execute();
+         run(pc,
+            "INSERT INTO USR (userId, password, email, name, dateOfBirth) " +
+            "SELECT ? || g, 'pw', 'member' || g || '@example.com', 'Member ' || g, DATE '1970-01-01' + (g % 12000) " +
+            "FROM generate_series(1, ?) g", PREFIX, users);
+         run(pc,
+            "INSERT INTO WORK_EXPR (userId, company, role, location, startDate, endDate) " +
+            "SELECT ? || g, 'Company ' || (g % 500), 'Engineer', 'Riverside', DATE '2015-01-01', DATE '2020-01-01' " +
+            "FROM generate_series(1, ?) g", PREFIX, users);
+         run(pc,
+            "INSERT INTO EDUCATIONAL_DETAILS (userId, instituitionName, major, degree, startdate, enddate) " +
+            "SELECT ? || g, 'University ' || (g % 200), 'Computer Science', 'BS', DATE '2010-09-01', DATE '2014-06-01' " +
+            "FROM generate_series(1, ?) g", PREFIX, users);
+         run(pc,
+            "INSERT INTO connection_usr (userId, connectionId, status) " +
+            "SELECT ? || e.a, ? || e.b, CASE WHEN random() < 0.9 THEN 'Accept' ELSE 'Request' END " +
+            "FROM (SELECT DISTINCT g AS a, 1 + floor(random() * ?)::int AS b " +
+            "      FROM generate_series(1, ?) g, generate_series(1, ?) k) e " +
+            "WHERE e.a <> e.b ON CONFLICT DO NOTHING",
+            PREFIX, PREFIX, users, users, Math.max(1, degree / 2));
+         return null;
+      });
+      ResultCache cache = esql.getResultCache();
+      if (cache != null)
+         cache.clear();
+   }//end seed
+
+   private static void run(ConnectionPool.PooledConnection pc, String sql, Object... params) throws SQLException {
+      java.sql.PreparedStatement stmt = pc.prepare(sql);
+      ProfNetwork.bind(stmt, params);
+      stmt.executeUpdate();
+   }
+
+   /**
+    * Removes every seeded member and the rows that refer to them.
+    *
+    * @param esql the database access object
+    * @throws java.sql.SQLException when the data cannot be deleted
+    */
+   public static void removeSeed(ProfNetwork esql) throws SQLException {
+      String like = PREFIX + "%";
+      esql.executeUpdate("DELETE FROM connection_usr WHERE userId LIKE ? OR connectionId LIKE ?", like, like);
+      esql.executeUpdate("DELETE FROM WORK_EXPR WHERE userId LIKE ?", like);
+      esql.executeUpdate("DELETE FROM EDUCATIONAL_DETAILS WHERE userId LIKE ?", like);
+      esql.executeUpdate("DELETE FROM USR WHERE userId LIKE ?", like);
+   }
+
+}//end ProfNetworkBench
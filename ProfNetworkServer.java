@@ -0,0 +1,370 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class serves the ProfNetwork operations to many clients at once over
+ * a line-based TCP protocol, instead of the single-user stdin menus.
+ *
+ * Each request is one line of tab-separated fields, the command first.
+ * Each response is one line: OK followed by a tab and a JSON value, or ERR
+ * followed by a tab and a message.  A command that fails answers ERR and
+ * the connection stays open.  Every command but CREATE, LOGIN, RESUME,
+ * LOGOUT and QUIT needs a logged-in member.
+ *
+ *    CREATE   login password email name dateOfBirth
+ *    LOGIN    login password          returns a session token
+ *    RESUME   token                   continues a session from another connection
+ *    LOGOUT
+ *    FRIENDS
+ *    PROFILE  [userId]
+ *    FIND     userId
+ *    SEARCH   text                    members matching part of a userId or name
+ *    RECOMMEND                        members suggested to connect with
+ *    PASSWORD newPassword             ends the member's other sessions
+ *    EMAIL    newEmail
+ *    EDUCATION institution major degree startDate endDate
+ *    REQUEST  userId
+ *    PENDING
+ *    ACCEPT   userId
+ *    DENY     userId
+ *    METRICS
+ *    QUIT
+ *
+ * Every connection runs on its own virtual thread when the JVM has them
+ * (Java 21 and later) and on a pooled platform thread otherwise.  All
+ * sessions share the ProfNetwork connection pool, so the database sees at
+ * most profnetwork.pool.max connections however many clients are attached.
+ * The session token of the logged-in member is kept in the Session of each
+ * connection and resolved through the SessionManager on every command, so
+ * sessions expire like they do in the menus.
+ *
+ */
+public class ProfNetworkServer {
+
+   /**
+    * The state of one client connection.
+    */
+   static class Session {
+      // the session token of the logged-in member, or null
+      String token = null;
+   }
+
+   private final ProfNetwork esql;
+   private final int port;
+   private final AtomicInteger sessions = new AtomicInteger();
+
+   /**
+    * @param esql the database access object shared by every session
+    * @param port the TCP port to listen on
+    */
+   public ProfNetworkServer(ProfNetwork esql, int port) {
+      this.esql = esql;
+      this.port = port;
+   }
+
+   /**
+    * Accepts clients until the process is stopped.
+    *
+    * @throws java.io.IOException when the port cannot be opened
+    */
+   public void serve() throws IOException {
+      InetAddress bind = InetAddress.getByName(System.getProperty("profnetwork.server.bind", "127.0.0.1"));
+      ExecutorService executor = sessionExecutor();
+      try (ServerSocket server = new ServerSocket(this.port, ProfNetwork.config("server.backlog", 1024), bind)){
+         System.out.println("Listening on " + server.getLocalSocketAddress());
+         while (true){
+            final Socket socket = server.accept();
+            executor.execute(() -> handle(socket));
+         }//end while
+      }finally{
+         executor.shutdownNow();
+      }//end try
+   }//end serve
+
+   // one virtual thread per task when available, otherwise a cached pool
+   static ExecutorService sessionExecutor() {
+      try{
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      }catch (ReflectiveOperationException e){
+         System.out.println("Virtual threads are not available, using platform threads");
+         return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "ProfNetworkServer-session");
+            t.setDaemon(true);
+            return t;
+         });
+      }//end try
+   }
+
+   private void handle(Socket socket) {
+      this.sessions.incrementAndGet();
+      Session session = new Session();
+      try (Socket s = socket;
+           BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+           BufferedWriter out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))){
+         s.setSoTimeout(ProfNetwork.config("server.idleTimeoutSec", 600) * 1000);
+         String line;
+         while ((line = in.readLine()) != null){
+            String[] f = line.split("\t", -1);
+            if (f[0].equalsIgnoreCase("QUIT"))
+               break;
+            String response;
+            try{
+               response = "OK\t" + execute(session, f);
+            }catch (IllegalArgumentException | IllegalStateException e){
+               response = "ERR\t" + e.getMessage();
+            }catch (SQLException e){
+               response = "ERR\t" + String.valueOf(e.getMessage()).replace('\n', ' ');
+            }catch (RuntimeException e){
+               // a bug in one command must not cost the client its session
+               response = "ERR\t" + String.valueOf(e).replace('\n', ' ');
+            }//end try
+            out.write(response);
+            out.write('\n');
+            out.flush();
+         }//end while
+      }catch (SocketTimeoutException e){
+         // idle client, drop it
+      }catch (IOException e){
+         // client went away
+      }finally{
+         this.sessions.decrementAndGet();
+      }//end try
+   }//end handle
+
+   /**
+    * Runs one command for a session.
+    *
+    * @param session the client's session
+    * @param f the fields of the request line, the command first
+    * @return the JSON value sent back after OK
+    * @throws java.sql.SQLException when the database operation failed
+    */
+   String execute(Session session, String[] f) throws SQLException {
+      switch (f[0].toUpperCase()){
+         case "CREATE":
+            args(f, 5);
+            this.esql.createUser(f[1], f[2], f[3], f[4], f[5]);
+            return "true";
+         case "LOGIN":
+            args(f, 2);
+            String token = this.esql.getSessions().login(f[1], f[2]);
+            if (token == null)
+               throw new IllegalArgumentException("invalid login or password");
+            session.token = token;
+            return json(token);
+         case "RESUME":
+            args(f, 1);
+            if (this.esql.getSessions().userId(f[1]) == null)
+               throw new IllegalArgumentException("unknown or expired session");
+            session.token = f[1];
+            return "true";
+         case "LOGOUT":
+            this.esql.getSessions().logout(session.token);
+            session.token = null;
+            return "true";
+         default:
+            break;
+      }//end switch
+
+      // everything else needs a logged-in member
+      String user = this.esql.getSessions().userId(session.token);
+      if (user == null)
+         throw new IllegalStateException(session.token == null ? "not logged in" : "session expired");
+      switch (f[0].toUpperCase()){
+         case "FRIENDS":
+            return jsonArray(friends(user));
+         case "PROFILE":
+            return profileJson(f.length > 1 && !f[1].isEmpty() ? f[1] : user, user);
+         case "FIND":
+            args(f, 1);
+            return profileJson(f[1], user);
+         case "SEARCH":
+            args(f, 1);
+            return search(f[1], user);
+         case "RECOMMEND":
+            return recommend(user);
+         case "PASSWORD":
+            args(f, 1);
+            this.esql.setPassword(user, f[1], session.token);
+            return "true";
+         case "EMAIL":
+            args(f, 1);
+            this.esql.setEmail(user, f[1]);
+            return "true";
+         case "EDUCATION":
+            args(f, 5);
+            this.esql.addEducation(user, f[1], f[2], f[3], f[4], f[5]);
+            return "true";
+         case "REQUEST":
+            args(f, 1);
+            this.esql.sendRequest(user, f[1]);
+            return "true";
+         case "PENDING":
+            final List<String> pending = new ArrayList<String>();
+            this.esql.executeQueryAndStream(ProfNetwork.SQL_PENDING_REQUESTS, rs -> {
+               pending.add(rs.getString(1).trim());
+               return true;
+            }, user);
+            return jsonArray(pending);
+         case "ACCEPT":
+            args(f, 1);
+            return Boolean.toString(this.esql.acceptRequest(f[1], user));
+         case "DENY":
+            args(f, 1);
+            return Boolean.toString(this.esql.rejectRequest(f[1], user));
+         case "METRICS":
+            ResultCache cache = this.esql.getResultCache();
+            ReplicaRouter replicas = this.esql.getReplicaRouter();
+            ShardRouter shards = this.esql.getShardRouter();
+            return json(this.esql.getMetrics().dump() + this.esql.getSessions().stats() + "\n"
+                        + (cache == null ? "" : cache.stats() + "\n")
+                        + (replicas == null ? "" : replicas.stats() + "\n")
+                        + (shards == null ? "" : shards.stats() + "\n"));
+         default:
+            throw new IllegalArgumentException("unknown command " + f[0]);
+      }//end switch
+   }//end execute
+
+   private static void args(String[] f, int n) {
+      if (f.length != n + 1)
+         throw new IllegalArgumentException(f[0] + " expects " + n + " argument" + (n == 1 ? "" : "s"));
+   }
+
+   private List<String> friends(String user) throws SQLException {
+      SocialGraph graph = this.esql.getGraph();
+      List<String> friends = new ArrayList<String>();
+      for (String friend : graph != null ? graph.friends(user) : this.esql.getSessions().friends(user))
+         friends.add(friend);
+      return friends;
+   }
+
+   private String search(String text, String viewer) throws SQLException {
+      ProfileSearchIndex index = this.esql.getSearchIndex();
+      StringBuilder sb = new StringBuilder("[");
+      if (index == null){
+         // without the index, USR is scanned on every shard
+         for (String[] m : this.esql.findMembers(text, ProfNetwork.config("search.results", 10))){
+            if (sb.length() > 1)
+               sb.append(',');
+            sb.append("{\"userId\":").append(json(m[0]))
+              .append(",\"name\":").append(json(m[1])).append('}');
+         }
+         return sb.append(']').toString();
+      }//end if
+      for (ProfileSearchIndex.Match m : index.search(text, viewer, this.esql.getGraph(), ProfNetwork.config("search.results", 10))){
+         if (sb.length() > 1)
+            sb.append(',');
+         sb.append("{\"userId\":").append(json(m.userId))
+           .append(",\"name\":").append(json(m.name))
+           .append(",\"hops\":").append(m.hops).append('}');
+      }
+      return sb.append(']').toString();
+   }
+
+   private String recommend(String user) {
+      Recommender recommender = this.esql.getRecommender();
+      if (recommender == null)
+         throw new IllegalStateException("the social graph is not loaded");
+      StringBuilder sb = new StringBuilder("[");
+      for (Recommender.Recommendation r : recommender.recommend(user, ProfNetwork.config("recommend.results", 10))){
+         if (sb.length() > 1)
+            sb.append(',');
+         sb.append("{\"userId\":").append(json(r.userId))
+           .append(",\"mutual\":").append(r.mutual)
+           .append(",\"companies\":").append(r.companies)
+           .append(",\"institutions\":").append(r.institutions).append('}');
+      }
+      return sb.append(']').toString();
+   }
+
+   private String profileJson(String userId, String viewer) throws SQLException {
+      Profile p = this.esql.getSessions().profile(userId);
+      if (p == null)
+         throw new IllegalArgumentException("no such member " + userId);
+      StringBuilder sb = new StringBuilder(256);
+      sb.append("{\"userId\":").append(json(p.userId))
+        .append(",\"name\":").append(json(p.name))
+        .append(",\"email\":").append(json(p.email))
+        .append(",\"dateOfBirth\":").append(json(p.dateOfBirth));
+      SocialGraph graph = this.esql.getGraph();
+      if (graph != null)
+         sb.append(",\"hops\":").append(PathFinder.distance(graph, viewer, p.userId, ProfNetwork.MAX_HOPS));
+      sb.append(",\"work\":[");
+      for (int i = 0; i < p.work.size(); ++i){
+         Profile.WorkEntry w = p.work.get(i);
+         sb.append(i == 0 ? "{" : ",{")
+           .append("\"company\":").append(json(w.company))
+           .append(",\"role\":").append(json(w.role))
+           .append(",\"location\":").append(json(w.location))
+           .append(",\"startDate\":").append(json(w.startDate))
+           .append(",\"endDate\":").append(json(w.endDate)).append('}');
+      }
+      sb.append("],\"education\":[");
+      for (int i = 0; i < p.education.size(); ++i){
+         Profile.EducationEntry e = p.education.get(i);
+         sb.append(i == 0 ? "{" : ",{")
+           .append("\"institution\":").append(json(e.institution))
+           .append(",\"major\":").append(json(e.major))
+           .append(",\"degree\":").append(json(e.degree))
+           .append(",\"startDate\":").append(json(e.startDate))
+           .append(",\"endDate\":").append(json(e.endDate)).append('}');
+      }
+      return sb.append("]}").toString();
+   }//end profileJson
+
+   /**
+    * @param value a string, or null
+    * @return the value as a JSON string literal
+    */
+   static String json(String value) {
+      if (value == null)
+         return "null";
+      StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+      for (int i = 0; i < value.length(); ++i){
+         char c = value.charAt(i);
+         if (c == '"' || c == '\\')
+            sb.append('\\').append(c);
+         else if (c == '\n')
+            sb.append("\\n");
+         else if (c == '\t')
+            sb.append("\\t");
+         else if (c < 0x20)
+            sb.append(String.format("\\u%04x", (int) c));
+         else
+            sb.append(c);
+      }
+      return sb.append('"').toString();
+   }
+
+   static String jsonArray(Iterable<String> values) {
+      StringBuilder sb = new StringBuilder("[");
+      for (String v : values){
+         if (sb.length() > 1)
+            sb.append(',');
+         sb.append(json(v));
+      }
+      return sb.append(']').toString();
+   }
+
+   /**
+    * @return the number of clients currently connected
+    */
+   public int activeSessions() {
+      return this.sessions.get();
+   }
+
+}//end ProfNetworkServer
@@ -0,0 +1,63 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class holds everything shown on a member's profile page: the USR
+ * row together with the member's WORK_EXPR and EDUCATIONAL_DETAILS rows.
+ *
+ */
+public class Profile {
+
+   /**
+    * One WORK_EXPR row.
+    */
+   public static class WorkEntry {
+      public final String company;
+      public final String role;
+      public final String location;
+      public final String startDate;
+      public final String endDate;
+
+      public WorkEntry(String company, String role, String location, String startDate, String endDate) {
+         this.company = company;
+         this.role = role;
+         this.location = location;
+         this.startDate = startDate;
+         this.endDate = endDate;
+      }
+   }//end WorkEntry
+
+   /**
+    * One EDUCATIONAL_DETAILS row.
+    */
+   public static class EducationEntry {
+      public final String institution;
+      public final String major;
+      public final String degree;
+      public final String startDate;
+      public final String endDate;
+
+      public EducationEntry(String institution, String major, String degree, String startDate, String endDate) {
+         this.institution = institution;
+         this.major = major;
+         this.degree = degree;
+         this.startDate = startDate;
+         this.endDate = endDate;
+      }
+   }//end EducationEntry
+
+   public final String userId;
+   public final String name;
+   public final String email;
+   public final String dateOfBirth;
+   public final List<WorkEntry> work = new ArrayList<WorkEntry>();
+   public final List<EducationEntry> education = new ArrayList<EducationEntry>();
+
+   public Profile(String userId, String name, String email, String dateOfBirth) {
+      this.userId = userId;
+      this.name = name;
+      this.email = email;
+      this.dateOfBirth = dateOfBirth;
+   }
+
+}//end Profile
@@ -0,0 +1,92 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * This class loads a complete Profile in a single round trip to the
+ * database.  The three SELECTs on USR, WORK_EXPR and EDUCATIONAL_DETAILS
+ * are sent as one multi-statement prepared statement; the PostgreSQL driver
+ * ships them in one batch and the three result sets come back together.
+ * Each result set is read into a ColumnarResult, which also strips the
+ * blanks char(n) columns are padded with.
+ *
+ */
+public class ProfileLoader {
+
+   static final String PROFILE_QUERY =
+      "SELECT userId, name, email, dateOfBirth FROM USR WHERE userId = ?;" +
+      "SELECT company, role, location, startdate, enddate FROM WORK_EXPR WHERE userId = ?;" +
+      "SELECT instituitionName, major, degree, startdate, enddate FROM EDUCATIONAL_DETAILS WHERE userId = ?";
+
+   /**
+    * Loads the profile of the given member.
+    *
+    * @param esql the database access object
+    * @param userId the member to load
+    * @return the profile, or null when no such member exists
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static Profile load(ProfNetwork esql, String userId) throws SQLException {
+      ResultCache cache = esql.getResultCache();
+      if (cache != null)
+         return cache.get(PROFILE_QUERY, new Object[]{ userId }, () -> query(esql, userId), ProfileLoader::byteSize);
+      return query(esql, userId);
+   }//end load
+
+   private static Profile query(ProfNetwork esql, String userId) throws SQLException {
+      long start = System.nanoTime();
+      Profile loaded = null;
+      long rows = -1;
+      final long[] bytes = new long[1];
+      try{
+         loaded = esql.withReadConnection(PROFILE_QUERY, new Object[]{ userId }, pc -> {
+            PreparedStatement stmt = pc.prepare(PROFILE_QUERY);
+            stmt.setString(1, userId);
+            stmt.setString(2, userId);
+            stmt.setString(3, userId);
+            stmt.execute();
+
+            // first result: the USR row
+            Profile profile = null;
+            ResultSet rs = stmt.getResultSet();
+            ColumnarResult usr = ColumnarResult.read(rs);
+            rs.close();
+            bytes[0] = usr.bytesRead();
+            if (usr.rowCount() > 0)
+               profile = new Profile(usr.getString(0, 0), usr.getString(0, 1),
+                                     usr.getString(0, 2), usr.getString(0, 3));
+
+            // second result: work experience
+            stmt.getMoreResults();
+            rs = stmt.getResultSet();
+            ColumnarResult work = ColumnarResult.read(rs);
+            rs.close();
+            bytes[0] += work.bytesRead();
+            for (int r = 0; profile != null && r < work.rowCount(); ++r)
+               profile.work.add(new Profile.WorkEntry(work.getString(r, 0), work.getString(r, 1),
+                  work.getString(r, 2), work.getString(r, 3), work.getString(r, 4)));
+
+            // third result: education
+            stmt.getMoreResults();
+            rs = stmt.getResultSet();
+            ColumnarResult education = ColumnarResult.read(rs);
+            rs.close();
+            bytes[0] += education.bytesRead();
+            for (int r = 0; profile != null && r < education.rowCount(); ++r)
+               profile.education.add(new Profile.EducationEntry(education.getString(r, 0), education.getString(r, 1),
+                  education.getString(r, 2), education.getString(r, 3), education.getString(r, 4)));
+            return profile;
+         });
+         rows = loaded == null ? 0 : 1 + loaded.work.size() + loaded.education.size();
+         return loaded;
+      }finally{
+         esql.getMetrics().record(PROFILE_QUERY, start, rows, bytes[0]);
+      }//end try
+   }//end query
+
+   // rough size of a cached profile
+   private static long byteSize(Profile p) {
+      return p == null ? 16 : 256 + 256L * (p.work.size() + p.education.size());
+   }
+
+}//end ProfileLoader
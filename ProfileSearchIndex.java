@@ -0,0 +1,254 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class finds members by part of their userId or name without
+ * scanning USR, through a trigram index held in memory.
+ *
+ * The userId and the name of every member are lower-cased and cut into
+ * trigrams, each word padded with two blanks in front and one behind as
+ * pg_trgm does, and each trigram keeps the list of members having it.  A
+ * search collects the members sharing trigrams with the query and ranks
+ * them by the share of the query's trigrams they contain, so a query found
+ * inside a long userId or name scores as well as one matching all of a
+ * short one; trigram similarity, which falls with the length of the
+ * member's text, adds a little to order members containing it about equally.
+ * There is a bonus for an exact userId, a userId starting with the query
+ * and a name word starting with it; ties go to the member closest to the
+ * searching member in the social graph.
+ *
+ * The index is loaded once at startup and members created afterwards are
+ * added by ProfNetwork.createUser.
+ *
+ */
+public class ProfileSearchIndex {
+
+   /**
+    * One search result.
+    */
+   public static class Match {
+      public final String userId;
+      public final String name;
+      public final double score;
+      // connections between the searching member and this one, -1 if unknown
+      public final int hops;
+
+      Match(String userId, String name, double score, int hops) {
+         this.userId = userId;
+         this.name = name;
+         this.score = score;
+         this.hops = hops;
+      }
+   }//end Match
+
+   static final String LOAD_QUERY = "SELECT userId, name FROM USR";
+
+   // matches scoring lower than this are left out
+   static final double MIN_SCORE = 0.2;
+
+   // weight of trigram similarity, small enough to only break near ties in containment
+   static final double SIMILARITY_WEIGHT = 0.1;
+
+   private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+   private final HashMap<String, Integer> members = new HashMap<String, Integer>();
+   private final HashMap<Long, int[]> postings = new HashMap<Long, int[]>();
+   private String[] ids = new String[0];
+   private String[] names = new String[0];
+   // number of distinct trigrams of each member
+   private int[] gramCounts = new int[0];
+   private int count = 0;
+
+   // per-thread scratch of the shared-trigram counts
+   private static final ThreadLocal<int[]> SHARED = ThreadLocal.withInitial(() -> new int[0]);
+
+   /**
+    * Builds the index from USR.
+    *
+    * @param esql the database access object
+    * @return the index
+    * @throws java.sql.SQLException when USR cannot be read
+    */
+   public static ProfileSearchIndex load(ProfNetwork esql) throws SQLException {
+      final ProfileSearchIndex index = new ProfileSearchIndex();
+      esql.executeQueryAndStream(LOAD_QUERY, rs -> {
+         index.add(rs.getString(1), rs.getString(2));
+         return true;
+      });
+      return index;
+   }//end load
+
+   /**
+    * Adds a member, or replaces the name of one already indexed.
+    *
+    * @param userId the member's userId
+    * @param name the member's name, may be null
+    */
+   public void add(String userId, String name) {
+      if (userId == null)
+         return;
+      userId = userId.trim();
+      name = name == null ? "" : name.trim();
+      this.lock.writeLock().lock();
+      try{
+         Integer existing = this.members.get(userId);
+         if (existing != null){
+            if (name.equals(this.names[existing]))
+               return;
+            // the old trigrams stay in the postings; mark the old slot dead
+            this.ids[existing] = null;
+         }
+         int m = this.count++;
+         if (m == this.ids.length){
+            int cap = Math.max(16, m * 2);
+            this.ids = Arrays.copyOf(this.ids, cap);
+            this.names = Arrays.copyOf(this.names, cap);
+            this.gramCounts = Arrays.copyOf(this.gramCounts, cap);
+         }
+         this.ids[m] = userId;
+         this.names[m] = name;
+         this.members.put(userId, m);
+         long[] grams = trigrams(userId.toLowerCase(Locale.ROOT) + " " + name.toLowerCase(Locale.ROOT));
+         this.gramCounts[m] = grams.length;
+         for (long g : grams){
+            int[] list = this.postings.get(g);
+            if (list == null){
+               list = new int[4];
+               this.postings.put(g, list);
+            }else if (list[0] == list.length - 1){
+               list = Arrays.copyOf(list, list.length * 2);
+               this.postings.put(g, list);
+            }
+            // list[0] holds the size, members follow in increasing order
+            list[++list[0]] = m;
+         }
+      }finally{
+         this.lock.writeLock().unlock();
+      }//end try
+   }//end add
+
+   /**
+    * @param text lower-cased text
+    * @return its distinct trigrams, each packed into a long
+    */
+   static long[] trigrams(String text) {
+      long[] grams = new long[text.length() * 2 + 4];
+      int n = 0;
+      for (String word : text.split("[^\\p{L}\\p{N}#@._-]+")){
+         if (word.isEmpty())
+            continue;
+         String padded = "  " + word + " ";
+         for (int i = 0; i + 3 <= padded.length(); ++i){
+            if (n == grams.length)
+               grams = Arrays.copyOf(grams, n * 2);
+            grams[n++] = ((long) padded.charAt(i) << 32) | ((long) padded.charAt(i + 1) << 16) | padded.charAt(i + 2);
+         }
+      }
+      Arrays.sort(grams, 0, n);
+      int distinct = 0;
+      for (int i = 0; i < n; ++i)
+         if (distinct == 0 || grams[distinct - 1] != grams[i])
+            grams[distinct++] = grams[i];
+      return Arrays.copyOf(grams, distinct);
+   }//end trigrams
+
+   /**
+    * Finds the members best matching a partial userId or name.
+    *
+    * @param query part of a userId or name
+    * @param viewer the searching member, for the hop distances
+    * @param graph the social graph, or null when not loaded
+    * @param limit the most matches to return
+    * @return the matches, best first
+    */
+   public List<Match> search(String query, String viewer, SocialGraph graph, int limit) {
+      String q = query == null ? "" : query.trim().toLowerCase(Locale.ROOT);
+      if (q.isEmpty() || limit <= 0)
+         return Collections.emptyList();
+      long[] grams = trigrams(q);
+      // worst first, so the weakest of the best is at the head
+      PriorityQueue<Match> best = new PriorityQueue<Match>(limit + 1, (a, b) -> Double.compare(a.score, b.score));
+      List<Match> candidates = new ArrayList<Match>();
+      this.lock.readLock().lock();
+      try{
+         int[] shared = SHARED.get();
+         if (shared.length < this.count){
+            shared = new int[Math.max(this.count, shared.length * 2)];
+            SHARED.set(shared);
+         }
+         int[] touched = new int[64];
+         int nTouched = 0;
+         for (long g : grams){
+            int[] list = this.postings.get(g);
+            if (list == null)
+               continue;
+            for (int i = 1; i <= list[0]; ++i){
+               int m = list[i];
+               if (shared[m]++ == 0){
+                  if (nTouched == touched.length)
+                     touched = Arrays.copyOf(touched, nTouched * 2);
+                  touched[nTouched++] = m;
+               }
+            }
+         }//end for
+         for (int i = 0; i < nTouched; ++i){
+            int m = touched[i];
+            int common = shared[m];
+            shared[m] = 0;
+            if (this.ids[m] == null)
+               continue;
+            // containment of the query, then similarity to the whole text
+            double score = (double) common / grams.length
+                         + SIMILARITY_WEIGHT * common / (grams.length + this.gramCounts[m] - common);
+            String id = this.ids[m].toLowerCase(Locale.ROOT);
+            String name = " " + this.names[m].toLowerCase(Locale.ROOT);
+            if (id.equals(q))
+               score += 2;
+            else if (id.startsWith(q))
+               score += 1;
+            else if (name.contains(" " + q))
+               score += 0.5;
+            if (score < MIN_SCORE)
+               continue;
+            if (best.size() < limit * 2 || score > best.peek().score){
+               best.add(new Match(this.ids[m], this.names[m], score, -1));
+               if (best.size() > limit * 2)
+                  best.poll();
+            }
+         }//end for
+      }finally{
+         this.lock.readLock().unlock();
+      }//end try
+
+      // hop distances only for the short list, which is ranked again with them
+      for (Match m : best)
+         candidates.add(new Match(m.userId, m.name, m.score,
+                                  graph == null ? -1 : PathFinder.distance(graph, viewer, m.userId, ProfNetwork.MAX_HOPS)));
+      Collections.sort(candidates, (a, b) -> {
+         if (a.score != b.score)
+            return Double.compare(b.score, a.score);
+         int ha = a.hops < 0 ? Integer.MAX_VALUE : a.hops, hb = b.hops < 0 ? Integer.MAX_VALUE : b.hops;
+         return ha != hb ? Integer.compare(ha, hb) : a.userId.compareTo(b.userId);
+      });
+      return candidates.size() > limit ? new ArrayList<Match>(candidates.subList(0, limit)) : candidates;
+   }//end search
+
+   /**
+    * @return the number of members indexed
+    */
+   public int size() {
+      this.lock.readLock().lock();
+      try{
+         return this.members.size();
+      }finally{
+         this.lock.readLock().unlock();
+      }//end try
+   }
+
+}//end ProfileSearchIndex
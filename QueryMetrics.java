@@ -0,0 +1,311 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * This class records how long each query takes, how many rows it returns
+ * and how much data it fetches, keyed by the SQL template of the query.
+ *
+ * Latencies go into log-linear histograms in the style of HdrHistogram:
+ * every power of two is split into 64 linear buckets, so any recorded
+ * value is known to within about 1.6%.  Buckets are atomic counters and a
+ * recording is a map lookup plus a handful of atomic increments, without
+ * locks or allocation.  Queries slower than a threshold are also written
+ * to a slow-query log.
+ *
+ * Settings (system properties):
+ *    profnetwork.slowQueryMs          slow-query threshold, 0 to disable (default 500)
+ *    profnetwork.slowQueryLog         file to append slow queries to (default stderr)
+ *    profnetwork.metrics.file         file to write a snapshot of the metrics to
+ *    profnetwork.metrics.intervalSec  seconds between snapshots (default 60)
+ *
+ */
+public class QueryMetrics {
+
+   /**
+    * A lock-free log-linear latency histogram, in nanoseconds.
+    */
+   public static class LatencyHistogram {
+      // values below 2^SUB_BITS get a bucket each; every power of two above
+      // that is split into 2^(SUB_BITS-1) linear buckets
+      static final int SUB_BITS = 7;
+      static final int SUB_COUNT = 1 << SUB_BITS;
+      static final int HALF_COUNT = SUB_COUNT / 2;
+      // powers of two covered above the linear range
+      static final int MAGNITUDES = 40;
+
+      private final AtomicLongArray counts = new AtomicLongArray(MAGNITUDES * HALF_COUNT + SUB_COUNT);
+      private final LongAdder total = new LongAdder();
+      private final LongAdder sum = new LongAdder();
+      private final AtomicLong max = new AtomicLong();
+
+      /**
+       * @param nanos the latency to record
+       */
+      public void record(long nanos) {
+         if (nanos < 0)
+            nanos = 0;
+         this.counts.incrementAndGet(index(nanos));
+         this.total.increment();
+         this.sum.add(nanos);
+         long m;
+         while (nanos > (m = this.max.get()) && !this.max.compareAndSet(m, nanos))
+            ;
+      }
+
+      static int index(long value) {
+         int magnitude = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+         if (magnitude > MAGNITUDES)
+            return MAGNITUDES * HALF_COUNT + SUB_COUNT - 1;
+         return magnitude * HALF_COUNT + (int) (value >>> magnitude);
+      }
+
+      // highest value that falls in the given bucket
+      static long upperBound(int index) {
+         if (index < SUB_COUNT)
+            return index;
+         int magnitude = (index - HALF_COUNT) / HALF_COUNT;
+         long sub = index - (long) magnitude * HALF_COUNT;
+         return ((sub + 1) << magnitude) - 1;
+      }
+
+      /**
+       * @return the number of recorded values
+       */
+      public long count() {
+         return this.total.sum();
+      }
+
+      /**
+       * @return the largest recorded value
+       */
+      public long max() {
+         return this.max.get();
+      }
+
+      /**
+       * @return the mean of the recorded values
+       */
+      public double mean() {
+         long n = count();
+         return n == 0 ? 0 : (double) this.sum.sum() / n;
+      }
+
+      /**
+       * @param p a percentile between 0 and 100
+       * @return the value at that percentile, to within the bucket precision
+       */
+      public long percentile(double p) {
+         long n = count();
+         if (n == 0)
+            return 0;
+         long rank = Math.max(1, (long) Math.ceil(p / 100.0 * n));
+         long seen = 0;
+         for (int i = 0; i < this.counts.length(); ++i){
+            seen += this.counts.get(i);
+            if (seen >= rank)
+               return Math.min(upperBound(i), max());
+         }
+         return max();
+      }
+   }//end LatencyHistogram
+
+   /**
+    * Everything recorded for one query template.
+    */
+   public static class Stats {
+      public final String key;
+      public final LatencyHistogram latency = new LatencyHistogram();
+      public final LongAdder rows = new LongAdder();
+      public final LongAdder bytes = new LongAdder();
+      public final LongAdder errors = new LongAdder();
+      public final LongAdder slow = new LongAdder();
+
+      Stats(String key) {
+         this.key = key;
+      }
+   }//end Stats
+
+   // string and numeric literals, replaced by ? when normalizing raw SQL
+   private static final Pattern LITERALS =
+      Pattern.compile("'(?:[^']|'')*'|(?<![A-Za-z_0-9])-?\\d+(?:\\.\\d+)?");
+
+   private final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+   private final long slowNanos;
+   private final PrintStream slowLog;
+   private ScheduledExecutorService snapshots = null;
+
+   /**
+    * Creates the metrics registry from the profnetwork.* system properties
+    * and starts the periodic snapshot when a file is configured.
+    */
+   public QueryMetrics() {
+      this.slowNanos = TimeUnit.MILLISECONDS.toNanos(ProfNetwork.config("slowQueryMs", 500));
+      PrintStream log = System.err;
+      String logFile = System.getProperty("profnetwork.slowQueryLog");
+      if (logFile != null){
+         try{
+            log = new PrintStream(Files.newOutputStream(Paths.get(logFile),
+               java.nio.file.StandardOpenOption.CREATE, java.nio.file.StandardOpenOption.APPEND),
+               true, "UTF-8");
+         }catch (IOException e){
+            System.err.println("Warning - Unable to open slow query log: " + e.getMessage());
+         }//end try
+      }//end if
+      this.slowLog = log;
+
+      String snapshotFile = System.getProperty("profnetwork.metrics.file");
+      if (snapshotFile != null){
+         final Path path = Paths.get(snapshotFile);
+         int interval = Math.max(1, ProfNetwork.config("metrics.intervalSec", 60));
+         this.snapshots = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "QueryMetrics-snapshot");
+            t.setDaemon(true);
+            return t;
+         });
+         this.snapshots.scheduleWithFixedDelay(() -> {
+            try{
+               writeSnapshot(path);
+            }catch (IOException e){
+               System.err.println("Warning - Unable to write metrics snapshot: " + e.getMessage());
+            }//end try
+         }, interval, interval, TimeUnit.SECONDS);
+      }//end if
+   }
+
+   /**
+    * @param key the query template or operation name
+    * @return the statistics for that key, created on first use
+    */
+   public Stats stats(String key) {
+      Stats s = this.stats.get(key);
+      if (s == null)
+         s = this.stats.computeIfAbsent(key, Stats::new);
+      return s;
+   }
+
+   /**
+    * Records one execution.
+    *
+    * @param key the query template
+    * @param startNanos System.nanoTime() when the query started
+    * @param rows rows returned or affected, or -1 when the query failed
+    * @param bytes bytes of column data read by the caller
+    */
+   public void record(String key, long startNanos, long rows, long bytes) {
+      long nanos = System.nanoTime() - startNanos;
+      Stats s = stats(key);
+      s.latency.record(nanos);
+      if (rows < 0)
+         s.errors.increment();
+      else
+         s.rows.add(rows);
+      if (bytes > 0)
+         s.bytes.add(bytes);
+      if (this.slowNanos > 0 && nanos >= this.slowNanos){
+         s.slow.increment();
+         this.slowLog.printf("SLOW QUERY %.1fms rows=%d: %s%n", nanos / 1e6, rows, key);
+      }//end if
+   }
+
+   /**
+    * Turns raw SQL into a template by replacing its literals with ?, so
+    * queries that only differ by their values share one entry.
+    *
+    * @param sql the SQL text
+    * @return the normalized template
+    */
+   public static String normalize(String sql) {
+      return LITERALS.matcher(sql).replaceAll("?");
+   }
+
+   /**
+    * Writes a text table of every template, slowest p99 first.
+    *
+    * @param out where to write
+    * @throws java.io.IOException when the output cannot be written
+    */
+   public void dump(Writer out) throws IOException {
+      List<Stats> all = new ArrayList<Stats>(this.stats.values());
+      Collections.sort(all, (a, b) -> Long.compare(b.latency.percentile(99), a.latency.percentile(99)));
+      PrintWriter pw = new PrintWriter(out);
+      pw.printf("%10s %10s %10s %10s %10s %10s %12s %12s %8s %8s  %s%n",
+                "count", "mean us", "p50 us", "p90 us", "p99 us", "max us",
+                "rows", "bytes", "errors", "slow", "query");
+      for (Stats s : all){
+         LatencyHistogram h = s.latency;
+         pw.printf("%10d %10.1f %10.1f %10.1f %10.1f %10.1f %12d %12d %8d %8d  %s%n",
+                   h.count(), h.mean() / 1e3, h.percentile(50) / 1e3, h.percentile(90) / 1e3,
+                   h.percentile(99) / 1e3, h.max() / 1e3, s.rows.sum(), s.bytes.sum(),
+                   s.errors.sum(), s.slow.sum(), s.key);
+      }
+      pw.flush();
+   }
+
+   /**
+    * @return the text table written by dump()
+    */
+   public String dump() {
+      StringWriter out = new StringWriter();
+      try{
+         dump(out);
+      }catch (IOException e){
+         // cannot happen with a StringWriter
+      }//end try
+      return out.toString();
+   }
+
+   /**
+    * Replaces the given file with the current metrics.
+    *
+    * @param path the snapshot file
+    * @throws java.io.IOException when the file cannot be written
+    */
+   public void writeSnapshot(Path path) throws IOException {
+      Path tmp = Paths.get(path.toString() + ".tmp");
+      Files.write(tmp, dump().getBytes(StandardCharsets.UTF_8));
+      Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+   }
+
+   /**
+    * @return the statistics of every template seen so far
+    */
+   public Map<String, Stats> all() {
+      return Collections.unmodifiableMap(this.stats);
+   }
+
+   /**
+    * Stops the periodic snapshot, writing a final one.
+    */
+   public void close() {
+      if (this.snapshots != null){
+         this.snapshots.shutdownNow();
+         String file = System.getProperty("profnetwork.metrics.file");
+         try{
+            writeSnapshot(Paths.get(file));
+         }catch (IOException e){
+            // ignored.
+         }//end try
+      }//end if
+   }
+
+}//end QueryMetrics
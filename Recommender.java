@@ -0,0 +1,439 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class suggests members to connect with ("people you may know") from
+ * the SocialGraph.
+ *
+ * The candidates for a member are the connections of the member's
+ * connections.  Each scores one point per mutual connection, plus
+ * COMPANY_WEIGHT per company both have worked for and INSTITUTION_WEIGHT
+ * per institution both have studied at.  The member's own connections and
+ * anyone the member has a pending or rejected request with are left out.
+ *
+ * Mutual connections are counted in a primitive array indexed by node
+ * number.  For a member with many friends-of-friends the node numbers are
+ * split into ranges scored in parallel on a ForkJoinPool, each range with
+ * its own counts and its own top-K heap, and the heaps are merged at the
+ * end; since the adjacency lists are sorted, a range finds its part of
+ * each list with a binary search.  recommendAll() scores every member the
+ * same way in chunks, one member per worker at a time, so its memory is
+ * one counts array per worker plus the results of one chunk.
+ *
+ * The companies and institutions of every member are loaded once and the
+ * education entries added afterwards are recorded by ProfNetwork.
+ *
+ */
+public class Recommender {
+
+   /**
+    * One suggested member.
+    */
+   public static class Recommendation {
+      public final String userId;
+      public final double score;
+      public final int mutual;
+      public final int companies;
+      public final int institutions;
+
+      Recommendation(String userId, double score, int mutual, int companies, int institutions) {
+         this.userId = userId;
+         this.score = score;
+         this.mutual = mutual;
+         this.companies = companies;
+         this.institutions = institutions;
+      }
+   }//end Recommendation
+
+   /**
+    * Receives the suggestions of one member from recommendAll().
+    */
+   public interface Sink {
+      void accept(String userId, List<Recommendation> recommendations);
+   }
+
+   // score added per shared company and per shared institution
+   static final double COMPANY_WEIGHT = 1.0;
+   static final double INSTITUTION_WEIGHT = 0.5;
+
+   static final String COMPANY_QUERY = "SELECT userId, company FROM WORK_EXPR";
+   static final String INSTITUTION_QUERY = "SELECT userId, instituitionName FROM EDUCATIONAL_DETAILS";
+
+   // adjacency entries scanned by one range before a member is split further
+   static final int SPLIT_WORK = 1 << 15;
+
+   private static final int COMPANY = 0;
+   private static final int INSTITUTION = 1;
+
+   private final SocialGraph graph;
+   private final ForkJoinPool pool;
+   // companies and institutions as codes, kind in the low bit
+   private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<String, Integer>();
+   private final AtomicInteger nextCode = new AtomicInteger();
+   // sorted codes of each member; arrays are replaced, never changed
+   private final ConcurrentHashMap<String, int[]> affiliations = new ConcurrentHashMap<String, int[]>();
+
+   /**
+    * Per-thread counts of mutual connections, cleared after each use.
+    */
+   private static class Scratch {
+      int[] counts = new int[0];
+      int[] touched = new int[64];
+   }
+
+   private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+   /**
+    * The best K candidates seen, in a min-heap on parallel arrays so the
+    * weakest is at the root.
+    */
+   private static class TopK {
+      final int k;
+      final int[] nodes;
+      final double[] scores;
+      final int[] mutual;
+      final int[] shared;
+      int size = 0;
+
+      TopK(int k) {
+         this.k = k;
+         this.nodes = new int[k];
+         this.scores = new double[k];
+         this.mutual = new int[k];
+         this.shared = new int[k];
+      }
+
+      // true if entry i ranks below entry j; ties go to the lower node number
+      private boolean worse(int i, int j) {
+         return this.scores[i] != this.scores[j] ? this.scores[i] < this.scores[j] : this.nodes[i] > this.nodes[j];
+      }
+
+      void offer(int node, double score, int mutual, int shared) {
+         if (this.k == 0)
+            return;
+         boolean full = this.size == this.k;
+         if (full && (score < this.scores[0] || (score == this.scores[0] && node > this.nodes[0])))
+            return;
+         // a new entry goes at the end and rises, a replacement of the root sinks
+         int i = full ? 0 : this.size++;
+         this.nodes[i] = node;
+         this.scores[i] = score;
+         this.mutual[i] = mutual;
+         this.shared[i] = shared;
+         if (full)
+            down(i);
+         else
+            up(i);
+      }
+
+      private void up(int i) {
+         while (i > 0){
+            int parent = (i - 1) >>> 1;
+            if (!worse(i, parent))
+               break;
+            swap(i, parent);
+            i = parent;
+         }
+      }
+
+      private void down(int i) {
+         while (true){
+            int l = 2 * i + 1, r = l + 1, min = i;
+            if (l < this.size && worse(l, min))
+               min = l;
+            if (r < this.size && worse(r, min))
+               min = r;
+            if (min == i)
+               return;
+            swap(i, min);
+            i = min;
+         }
+      }
+
+      private void swap(int i, int j) {
+         int n = this.nodes[i]; this.nodes[i] = this.nodes[j]; this.nodes[j] = n;
+         double s = this.scores[i]; this.scores[i] = this.scores[j]; this.scores[j] = s;
+         int m = this.mutual[i]; this.mutual[i] = this.mutual[j]; this.mutual[j] = m;
+         int h = this.shared[i]; this.shared[i] = this.shared[j]; this.shared[j] = h;
+      }
+
+      TopK merge(TopK other) {
+         for (int i = 0; i < other.size; ++i)
+            offer(other.nodes[i], other.scores[i], other.mutual[i], other.shared[i]);
+         return this;
+      }
+   }//end TopK
+
+   /**
+    * @param graph the social graph the candidates come from
+    * @param pool the pool the scoring runs on
+    */
+   public Recommender(SocialGraph graph, ForkJoinPool pool) {
+      this.graph = graph;
+      this.pool = pool;
+   }
+
+   /**
+    * Builds a recommender over the common ForkJoinPool, reading the
+    * companies and institutions of every member.
+    *
+    * @param esql the database access object
+    * @param graph the social graph
+    * @return the recommender
+    * @throws java.sql.SQLException when the tables cannot be read
+    */
+   public static Recommender load(ProfNetwork esql, SocialGraph graph) throws SQLException {
+      final Recommender r = new Recommender(graph, ForkJoinPool.commonPool());
+      esql.executeQueryAndStream(COMPANY_QUERY, rs -> {
+         r.add(rs.getString(1), COMPANY, rs.getString(2));
+         return true;
+      });
+      esql.executeQueryAndStream(INSTITUTION_QUERY, rs -> {
+         r.add(rs.getString(1), INSTITUTION, rs.getString(2));
+         return true;
+      });
+      return r;
+   }//end load
+
+   /**
+    * Records a company a member has worked for.
+    *
+    * @param userId the member
+    * @param company the company
+    */
+   public void addCompany(String userId, String company) {
+      add(userId, COMPANY, company);
+   }
+
+   /**
+    * Records an institution a member has studied at.
+    *
+    * @param userId the member
+    * @param institution the institution
+    */
+   public void addInstitution(String userId, String institution) {
+      add(userId, INSTITUTION, institution);
+   }
+
+   private void add(String userId, int kind, String value) {
+      if (userId == null || value == null || value.trim().isEmpty())
+         return;
+      int code = this.codes.computeIfAbsent(kind + ":" + value.trim().toLowerCase(Locale.ROOT),
+                                            v -> this.nextCode.getAndIncrement()) * 2 + kind;
+      this.affiliations.compute(userId.trim(), (k, old) -> {
+         if (old == null)
+            return new int[] { code };
+         int pos = Arrays.binarySearch(old, code);
+         if (pos >= 0)
+            return old;
+         pos = -pos - 1;
+         int[] set = new int[old.length + 1];
+         System.arraycopy(old, 0, set, 0, pos);
+         set[pos] = code;
+         System.arraycopy(old, pos, set, pos + 1, old.length - pos);
+         return set;
+      });
+   }//end add
+
+   /**
+    * Suggests members for one member to connect with.
+    *
+    * @param userId the member
+    * @param k the most suggestions to return
+    * @return the suggestions, best first
+    */
+   public List<Recommendation> recommend(String userId, int k) {
+      int u = this.graph.id(userId);
+      if (u < 0 || k <= 0)
+         return Collections.emptyList();
+      this.graph.readLock().lock();
+      try{
+         int n = this.graph.nodeCountLocked();
+         int du = this.graph.degree(u);
+         int[] fu = this.graph.adjacency(u);
+         long work = 0;
+         for (int i = 0; i < du; ++i)
+            work += this.graph.degree(fu[i]);
+         int parts = (int) Math.min(this.pool.getParallelism() * 4L, Math.max(1, work / SPLIT_WORK));
+         TopK top = parts <= 1 ? scoreRange(u, 0, n, new TopK(k))
+                               : this.pool.invoke(new RangeTask(u, 0, n, parts, k));
+         return results(top);
+      }finally{
+         this.graph.readLock().unlock();
+      }//end try
+   }//end recommend
+
+   /**
+    * Suggests members for every member of the graph, handing each member's
+    * suggestions to the sink in node order.  Members are scored in chunks
+    * of profnetwork.recommend.chunk (default 4096) under the graph's read
+    * lock, which is released between chunks so updates are not held up,
+    * and only one chunk of results is held at a time.
+    *
+    * @param k the most suggestions per member
+    * @param sink receives the suggestions
+    * @return the number of members scored
+    */
+   public int recommendAll(int k, Sink sink) {
+      int chunk = Math.max(1, ProfNetwork.config("recommend.chunk", 4096));
+      int done = 0;
+      for (int lo = 0; ; lo += chunk){
+         List<List<Recommendation>> results;
+         String[] users;
+         this.graph.readLock().lock();
+         try{
+            int n = this.graph.nodeCountLocked();
+            if (lo >= n)
+               return done;
+            int hi = Math.min(n, lo + chunk);
+            users = new String[hi - lo];
+            for (int u = lo; u < hi; ++u)
+               users[u - lo] = this.graph.nameLocked(u);
+            results = this.pool.invoke(new MembersTask(lo, hi, k));
+         }finally{
+            this.graph.readLock().unlock();
+         }//end try
+         for (int i = 0; i < users.length; ++i)
+            sink.accept(users[i], results.get(i));
+         done += users.length;
+      }//end for
+   }//end recommendAll
+
+   /**
+    * Scores one member's candidates whose node numbers fall in a range,
+    * splitting the range while more than one part is wanted.
+    */
+   private final class RangeTask extends RecursiveTask<TopK> {
+      private static final long serialVersionUID = 1L;
+
+      final int u, lo, hi, parts, k;
+
+      RangeTask(int u, int lo, int hi, int parts, int k) {
+         this.u = u;
+         this.lo = lo;
+         this.hi = hi;
+         this.parts = parts;
+         this.k = k;
+      }
+
+      protected TopK compute() {
+         if (this.parts <= 1 || this.hi - this.lo < 2)
+            return scoreRange(this.u, this.lo, this.hi, new TopK(this.k));
+         int mid = this.lo + (this.hi - this.lo) / 2;
+         RangeTask left = new RangeTask(this.u, this.lo, mid, this.parts / 2, this.k);
+         left.fork();
+         TopK right = new RangeTask(this.u, mid, this.hi, this.parts - this.parts / 2, this.k).compute();
+         return right.merge(left.join());
+      }
+   }//end RangeTask
+
+   /**
+    * Scores a range of members, each on the thread that takes it.
+    */
+   private final class MembersTask extends RecursiveTask<List<List<Recommendation>>> {
+      private static final long serialVersionUID = 1L;
+
+      final int lo, hi, k;
+
+      MembersTask(int lo, int hi, int k) {
+         this.lo = lo;
+         this.hi = hi;
+         this.k = k;
+      }
+
+      protected List<List<Recommendation>> compute() {
+         if (this.hi - this.lo <= 64){
+            int n = graph.nodeCountLocked();
+            List<List<Recommendation>> out = new ArrayList<List<Recommendation>>(this.hi - this.lo);
+            for (int u = this.lo; u < this.hi; ++u)
+               out.add(results(scoreRange(u, 0, n, new TopK(this.k))));
+            return out;
+         }
+         int mid = this.lo + (this.hi - this.lo) / 2;
+         MembersTask left = new MembersTask(this.lo, mid, this.k);
+         left.fork();
+         List<List<Recommendation>> right = new MembersTask(mid, this.hi, this.k).compute();
+         List<List<Recommendation>> out = left.join();
+         out.addAll(right);
+         return out;
+      }
+   }//end MembersTask
+
+   // counts the mutual connections of u with every candidate in [lo, hi)
+   // and keeps the best in top; the caller holds the graph's read lock
+   private TopK scoreRange(int u, int lo, int hi, TopK top) {
+      Scratch s = SCRATCH.get();
+      if (s.counts.length < hi - lo)
+         s.counts = new int[Math.max(hi - lo, s.counts.length * 2)];
+      int[] counts = s.counts;
+      int nTouched = 0;
+      int du = this.graph.degree(u);
+      int[] fu = this.graph.adjacency(u);
+      for (int i = 0; i < du; ++i){
+         int f = fu[i];
+         int df = this.graph.degree(f);
+         int[] adj = this.graph.adjacency(f);
+         int j = lo == 0 ? 0 : Arrays.binarySearch(adj, 0, df, lo);
+         if (j < 0)
+            j = -j - 1;
+         for (; j < df && adj[j] < hi; ++j){
+            int v = adj[j];
+            if (counts[v - lo]++ == 0){
+               if (nTouched == s.touched.length)
+                  s.touched = Arrays.copyOf(s.touched, nTouched * 2);
+               s.touched[nTouched++] = v;
+            }
+         }
+      }//end for
+
+      int[] mine = this.affiliations.get(this.graph.nameLocked(u));
+      for (int i = 0; i < nTouched; ++i){
+         int v = s.touched[i];
+         int mutual = counts[v - lo];
+         counts[v - lo] = 0;
+         if (v == u || (du > 0 && Arrays.binarySearch(fu, 0, du, v) >= 0) || this.graph.requestedLocked(u, v))
+            continue;
+         int companies = 0, institutions = 0;
+         int[] theirs = mine == null ? null : this.affiliations.get(this.graph.nameLocked(v));
+         if (theirs != null){
+            // merge of two sorted code sets
+            for (int a = 0, b = 0; a < mine.length && b < theirs.length; ){
+               if (mine[a] < theirs[b])
+                  ++a;
+               else if (mine[a] > theirs[b])
+                  ++b;
+               else{
+                  if ((mine[a] & 1) == COMPANY)
+                     ++companies;
+                  else
+                     ++institutions;
+                  ++a;
+                  ++b;
+               }//end if
+            }//end for
+         }//end if
+         double score = mutual + COMPANY_WEIGHT * companies + INSTITUTION_WEIGHT * institutions;
+         top.offer(v, score, mutual, (companies << 16) | institutions);
+      }//end for
+      return top;
+   }//end scoreRange
+
+   // the heap's content, best first; the caller holds the graph's read lock
+   private List<Recommendation> results(TopK top) {
+      List<Recommendation> out = new ArrayList<Recommendation>(top.size);
+      for (int i = 0; i < top.size; ++i)
+         out.add(new Recommendation(this.graph.nameLocked(top.nodes[i]), top.scores[i], top.mutual[i],
+                                    top.shared[i] >>> 16, top.shared[i] & 0xffff));
+      Collections.sort(out, (a, b) -> a.score != b.score ? Double.compare(b.score, a.score) : a.userId.compareTo(b.userId));
+      return out;
+   }
+
+}//end Recommender
@@ -0,0 +1,225 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * This class spreads read-only queries over a set of replica servers while
+ * ProfNetwork keeps sending every write to the primary.
+ *
+ * Each replica has its own ConnectionPool.  Reads take the healthy
+ * replicas in turn; a replica is taken out of the rotation when one of its
+ * connections fails with an SQLSTATE 08 error, but not when its pool only
+ * had no connection free in time.  Every healthCheckMillis a background
+ * thread asks each replica how far it lags behind the primary, putting it
+ * back when it answers and lags less than maxLagMillis.  With no healthy
+ * replica reads go to the primary.
+ *
+ * Only SELECT statements, or strings of several like the one ProfileLoader
+ * sends, that use no sequence, take no lock and create no table count as
+ * read-only; anything else runs on the primary.
+ * A thread that has just written is pinned to the primary for pinMillis,
+ * so a session reads its own writes even when the replicas have not
+ * replayed them yet.  Sessions run on their own threads, both in the menus
+ * and in ProfNetworkServer, so pinning the thread pins the session.
+ * Results read from a replica are not kept by the result cache or the
+ * session cache, which would otherwise serve them to the writer as fresh.
+ *
+ */
+public class ReplicaRouter {
+
+   /**
+    * One replica server.
+    */
+   static final class Replica {
+      final String url;
+      final ConnectionPool pool;
+      volatile boolean healthy = true;
+      volatile long lagMillis = 0;
+      final LongAdder reads = new LongAdder();
+      final LongAdder failures = new LongAdder();
+
+      Replica(String url, ConnectionPool pool) {
+         this.url = url;
+         this.pool = pool;
+      }
+   }//end Replica
+
+   // what makes a SELECT write, lock or depend on the session
+   private static final Pattern NOT_READ_ONLY =
+      Pattern.compile("(?is)\\b(nextval|currval|setval|lastval|pg_advisory\\w*|into)\\b|\\bfor\\s+(update|share|no\\s+key\\s+update|key\\s+share)\\b");
+
+   // how far behind the primary a replica is; a replica that has replayed
+   // everything it received counts as current even when the primary is idle
+   private static final String LAG_QUERY =
+      "SELECT CASE WHEN NOT pg_is_in_recovery() OR pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+      "ELSE COALESCE(CAST(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000 AS bigint), 0) END";
+
+   private final Replica[] replicas;
+   private final AtomicInteger next = new AtomicInteger();
+   private final long maxLagMillis;
+   private final long pinNanos;
+   private final ThreadLocal<long[]> pinnedUntil = ThreadLocal.withInitial(() -> new long[1]);
+   private final ScheduledExecutorService checker;
+   private final LongAdder primaryReads = new LongAdder();
+
+   /**
+    * Opens a pool per replica, none of whose connections are opened before
+    * they are needed, and starts the health checks.
+    *
+    * @param urls the JDBC URLs of the replicas
+    * @param user the user name used to login to the replicas
+    * @param passwd the user login password
+    * @param poolMax maximum number of connections per replica
+    * @param healthCheckMillis time between health checks
+    * @param maxLagMillis replication lag above which a replica gets no reads
+    * @param pinMillis time a thread reads from the primary after writing, 0 for none
+    * @throws java.sql.SQLException when a pool cannot be created
+    */
+   public ReplicaRouter(List<String> urls, String user, String passwd, int poolMax,
+                        long healthCheckMillis, long maxLagMillis, long pinMillis) throws SQLException {
+      this.replicas = new Replica[urls.size()];
+      for (int i = 0; i < this.replicas.length; ++i)
+         this.replicas[i] = new Replica(urls.get(i),
+            new ConnectionPool(urls.get(i), user, passwd, 0, poolMax, 300000, 1000, 1000, 64));
+      this.maxLagMillis = maxLagMillis;
+      this.pinNanos = TimeUnit.MILLISECONDS.toNanos(pinMillis);
+      this.checker = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "ReplicaRouter-health");
+         t.setDaemon(true);
+         return t;
+      });
+      this.checker.scheduleWithFixedDelay(this::checkAll, 0, Math.max(100, healthCheckMillis), TimeUnit.MILLISECONDS);
+   }//end ReplicaRouter
+
+   /**
+    * @param sql a statement
+    * @return true if it may run on a replica
+    */
+   static boolean readOnly(String sql) {
+      String s = sql.trim();
+      if (!s.regionMatches(true, 0, "select", 0, 6))
+         return false;
+      // several statements only when all are SELECTs
+      int semi = s.indexOf(';');
+      if (semi >= 0 && semi < s.length() - 1 && !allSelects(s))
+         return false;
+      return !NOT_READ_ONLY.matcher(s).find();
+   }
+
+   // true if every statement of a multi-statement string is a SELECT
+   private static boolean allSelects(String s) {
+      for (String part : s.split(";")){
+         String p = part.trim();
+         if (!p.isEmpty() && !p.regionMatches(true, 0, "select", 0, 6))
+            return false;
+      }
+      return true;
+   }
+
+   /**
+    * Picks the replica for the next read.
+    *
+    * @return a healthy replica, or null when the read should go to the
+    *         primary because there is none or the thread is pinned
+    */
+   Replica pick() {
+      if (pinned() || this.replicas.length == 0){
+         this.primaryReads.increment();
+         return null;
+      }
+      int start = this.next.getAndIncrement() & Integer.MAX_VALUE;
+      for (int i = 0; i < this.replicas.length; ++i){
+         Replica r = this.replicas[(start + i) % this.replicas.length];
+         if (r.healthy){
+            r.reads.increment();
+            return r;
+         }
+      }
+      this.primaryReads.increment();
+      return null;
+   }//end pick
+
+   /**
+    * Takes a replica out of the rotation until a health check passes.
+    *
+    * @param r the replica whose connection failed
+    */
+   void markDown(Replica r) {
+      r.healthy = false;
+      r.failures.increment();
+   }
+
+   /**
+    * Sends the reads of the current thread to the primary for the pin window.
+    */
+   void pin() {
+      if (this.pinNanos > 0)
+         this.pinnedUntil.get()[0] = System.nanoTime() + this.pinNanos;
+   }
+
+   /**
+    * @return true while the current thread is pinned to the primary
+    */
+   boolean pinned() {
+      long until = this.pinnedUntil.get()[0];
+      return until != 0 && System.nanoTime() - until < 0;
+   }
+
+   private void checkAll() {
+      for (Replica r : this.replicas){
+         ConnectionPool.PooledConnection pc = null;
+         try{
+            pc = r.pool.borrow();
+            PreparedStatement stmt = pc.prepare(LAG_QUERY);
+            stmt.setQueryTimeout(5);
+            ResultSet rs = stmt.executeQuery();
+            rs.next();
+            r.lagMillis = rs.getLong(1);
+            rs.close();
+            r.healthy = this.maxLagMillis <= 0 || r.lagMillis <= this.maxLagMillis;
+         }catch (SQLException e){
+            if (pc != null)
+               pc.checkFatal(e);
+            // a borrow that only timed out, as the pool was busy, says
+            // nothing about the replica: its state is left as it was
+            if (pc != null || ProfNetwork.connectionFailed(e))
+               r.healthy = false;
+         }catch (RuntimeException e){
+            r.healthy = false;
+         }finally{
+            r.pool.release(pc);
+         }//end try
+      }//end for
+   }//end checkAll
+
+   /**
+    * Stops the health checks and closes the replica pools.
+    */
+   public void close() {
+      this.checker.shutdownNow();
+      for (Replica r : this.replicas)
+         r.pool.close();
+   }
+
+   /**
+    * @return one line per replica with its state and the reads it served
+    */
+   public String stats() {
+      StringBuilder sb = new StringBuilder();
+      sb.append("primary reads=").append(this.primaryReads.sum());
+      for (Replica r : this.replicas)
+         sb.append('\n').append(r.url).append(r.healthy ? " up" : " down")
+           .append(" lagMs=").append(r.lagMillis)
+           .append(" reads=").append(r.reads.sum())
+           .append(" failures=").append(r.failures.sum());
+      return sb.toString();
+   }
+
+}//end ReplicaRouter
@@ -0,0 +1,317 @@
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class keeps the results of read queries, keyed by SQL template and
+ * parameter values, so that the same lookup made by many sessions reaches
+ * the database once.
+ *
+ * Every entry is tagged with the ProfNetwork tables its SQL names.  Each
+ * table has a generation counter, bumped whenever a statement writing to
+ * the table has committed; an entry is only served while the generations
+ * of all its tables are the ones it was loaded under, so invalidation is a
+ * single increment and never has to find the entries involved.
+ *
+ * Loads are single-flight: when many threads miss on the same key at once,
+ * one runs the query and the others wait for its result.  The entries are
+ * held in a ConcurrentHashMap and the total size of the cached results is
+ * kept under a byte budget by a CLOCK sweep run by whichever thread
+ * crosses the budget, so no global lock is taken.
+ *
+ * A result read from a replica is not kept, nor handed to the threads
+ * waiting for it: the replica may not have replayed a write the
+ * generations already count, and the stale result would then be served as
+ * fresh.
+ *
+ * Cached results are shared between callers and must not be modified.
+ *
+ */
+public class ResultCache {
+
+   // tables whose writes are tracked; a query naming none of them is not cached
+   static final String[] TABLES = { "usr", "work_expr", "educational_details", "connection_usr", "message" };
+
+   private static final Pattern TABLE_NAMES =
+      Pattern.compile("(?i)\\b(usr|work_expr|educational_details|connection_usr|message)\\b");
+
+   // reads whose result changes without any write
+   private static final Pattern VOLATILE =
+      Pattern.compile("(?i)\\b(nextval|currval|setval|random|now|clock_timestamp|current_date|current_time|current_timestamp)\\b");
+
+   /**
+    * Loads a value on a miss.
+    */
+   interface Loader<T> {
+      T load() throws SQLException;
+   }
+
+   /**
+    * Estimates the bytes held by a loaded value.
+    */
+   interface Sizer<T> {
+      long bytes(T value);
+   }
+
+   private static final class Key {
+      final String sql;
+      final Object[] params;
+      final int hash;
+
+      Key(String sql, Object[] params) {
+         this.sql = sql;
+         this.params = params.clone();
+         this.hash = 31 * sql.hashCode() + Arrays.hashCode(this.params);
+      }
+
+      public int hashCode() {
+         return this.hash;
+      }
+
+      public boolean equals(Object o) {
+         if (!(o instanceof Key))
+            return false;
+         Key k = (Key) o;
+         return this.hash == k.hash && this.sql.equals(k.sql) && Arrays.equals(this.params, k.params);
+      }
+   }//end Key
+
+   private static final class Entry {
+      final int[] tables;
+      final long[] generations;
+      Object value;
+      long bytes;
+      volatile boolean referenced = true;
+
+      Entry(int[] tables, long[] generations) {
+         this.tables = tables;
+         this.generations = generations;
+      }
+   }//end Entry
+
+   private final ConcurrentHashMap<Key, CompletableFuture<Entry>> entries =
+      new ConcurrentHashMap<Key, CompletableFuture<Entry>>();
+   // table tags of each SQL template, worked out once
+   private final ConcurrentHashMap<String, int[]> tags = new ConcurrentHashMap<String, int[]>();
+   private final AtomicLongArray generations = new AtomicLongArray(TABLES.length);
+   private final AtomicLong bytes = new AtomicLong();
+   private final AtomicBoolean sweeping = new AtomicBoolean();
+   private final long maxBytes;
+   // reads of the current thread answered by a replica so far
+   private final LongSupplier replicaReads;
+
+   private final LongAdder hits = new LongAdder();
+   private final LongAdder misses = new LongAdder();
+   private final LongAdder evictions = new LongAdder();
+
+   /**
+    * @param maxBytes the most bytes of results to keep
+    */
+   public ResultCache(long maxBytes) {
+      this(maxBytes, () -> 0);
+   }
+
+   /**
+    * @param maxBytes the most bytes of results to keep
+    * @param replicaReads the reads of the current thread answered by a
+    *        replica so far; a result loaded while it changed is not kept
+    */
+   public ResultCache(long maxBytes, LongSupplier replicaReads) {
+      this.maxBytes = maxBytes;
+      this.replicaReads = replicaReads;
+   }
+
+   // indexes into TABLES of the tables named by a statement
+   private int[] tablesOf(String sql) {
+      int[] t = this.tags.get(sql);
+      if (t != null)
+         return t;
+      boolean[] found = new boolean[TABLES.length];
+      int n = 0;
+      Matcher m = TABLE_NAMES.matcher(sql);
+      while (m.find()){
+         int i = Arrays.asList(TABLES).indexOf(m.group(1).toLowerCase(Locale.ROOT));
+         if (!found[i]){
+            found[i] = true;
+            ++n;
+         }
+      }
+      t = new int[n];
+      for (int i = 0, j = 0; i < TABLES.length; ++i)
+         if (found[i])
+            t[j++] = i;
+      this.tags.putIfAbsent(sql, t);
+      return t;
+   }//end tablesOf
+
+   /**
+    * @param sql a query
+    * @return true if its results may be cached
+    */
+   boolean cacheable(String sql) {
+      return sql.trim().regionMatches(true, 0, "select", 0, 6)
+         && tablesOf(sql).length > 0 && !VOLATILE.matcher(sql).find();
+   }
+
+   /**
+    * Returns the cached result of a query, loading it on a miss.
+    *
+    * @param sql the SQL template
+    * @param params the values for the placeholders
+    * @param loader runs the query
+    * @param sizer estimates the size of the result
+    * @return the result
+    * @throws java.sql.SQLException when the query failed
+    */
+   @SuppressWarnings("unchecked")
+   public <T> T get(String sql, Object[] params, Loader<T> loader, Sizer<T> sizer) throws SQLException {
+      if (!cacheable(sql))
+         return loader.load();
+      Key key = new Key(sql, params);
+      while (true){
+         CompletableFuture<Entry> current = this.entries.get(key);
+         if (current != null){
+            Entry e = await(current);
+            if (e != null && fresh(e)){
+               e.referenced = true;
+               this.hits.increment();
+               return (T) e.value;
+            }
+         }
+         // nobody is loading a fresh copy: take over the key
+         CompletableFuture<Entry> mine = new CompletableFuture<Entry>();
+         boolean won = current == null ? this.entries.putIfAbsent(key, mine) == null
+                                        : this.entries.replace(key, current, mine);
+         if (!won)
+            continue;
+         this.misses.increment();
+         if (current != null && current.isDone() && !current.isCompletedExceptionally()
+             && current.join() != null)
+            release(current.join());
+         int[] tables = tablesOf(sql);
+         long[] seen = new long[tables.length];
+         for (int i = 0; i < tables.length; ++i)
+            seen[i] = this.generations.get(tables[i]);
+         Entry e = new Entry(tables, seen);
+         long replicaReads = this.replicaReads.getAsLong();
+         T value;
+         try{
+            value = loader.load();
+         }catch (SQLException | RuntimeException ex){
+            this.entries.remove(key, mine);
+            mine.completeExceptionally(ex);
+            throw ex;
+         }//end try
+         e.value = value;
+         if (this.replicaReads.getAsLong() != replicaReads){
+            // the waiting threads load their own copy, which their own
+            // callers can then tell came from a replica
+            this.entries.remove(key, mine);
+            mine.complete(null);
+            return value;
+         }//end if
+         e.bytes = 64 + sql.length() * 2L + sizer.bytes(value);
+         mine.complete(e);
+         if (this.bytes.addAndGet(e.bytes) > this.maxBytes)
+            sweep();
+         return value;
+      }//end while
+   }//end get
+
+   // waits for another thread's load; null when it failed
+   private static Entry await(CompletableFuture<Entry> f) throws SQLException {
+      try{
+         return f.get();
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for a cached query", e);
+      }catch (ExecutionException e){
+         return null;
+      }//end try
+   }
+
+   private boolean fresh(Entry e) {
+      for (int i = 0; i < e.tables.length; ++i)
+         if (this.generations.get(e.tables[i]) != e.generations[i])
+            return false;
+      return true;
+   }
+
+   private void release(Entry e) {
+      this.bytes.addAndGet(-e.bytes);
+   }
+
+   // CLOCK sweep: drops stale entries and entries not read since the last pass
+   private void sweep() {
+      if (!this.sweeping.compareAndSet(false, true))
+         return;
+      try{
+         long target = this.maxBytes - this.maxBytes / 10;
+         for (int pass = 0; pass < 2 && this.bytes.get() > target; ++pass){
+            Iterator<Map.Entry<Key, CompletableFuture<Entry>>> it = this.entries.entrySet().iterator();
+            while (it.hasNext() && this.bytes.get() > target){
+               Map.Entry<Key, CompletableFuture<Entry>> me = it.next();
+               CompletableFuture<Entry> f = me.getValue();
+               if (!f.isDone() || f.isCompletedExceptionally())
+                  continue;
+               // null for a replica read, which is on its way out
+               Entry e = f.join();
+               if (e == null)
+                  continue;
+               if (e.referenced && fresh(e)){
+                  e.referenced = false;
+                  continue;
+               }
+               if (this.entries.remove(me.getKey(), f)){
+                  release(e);
+                  this.evictions.increment();
+               }
+            }//end while
+         }//end for
+      }finally{
+         this.sweeping.set(false);
+      }//end try
+   }//end sweep
+
+   /**
+    * Invalidates every cached result that read a table written by the
+    * given statement.  Called once the statement has committed.
+    *
+    * @param sql a statement that changed data
+    */
+   public void invalidate(String sql) {
+      for (int t : tablesOf(sql))
+         this.generations.incrementAndGet(t);
+   }
+
+   /**
+    * Invalidates every cached result.
+    */
+   public void clear() {
+      for (int t = 0; t < TABLES.length; ++t)
+         this.generations.incrementAndGet(t);
+   }
+
+   /**
+    * @return one line of cache statistics
+    */
+   public String stats() {
+      long h = this.hits.sum(), m = this.misses.sum();
+      return String.format("resultCache entries=%d bytes=%d hits=%d misses=%d hitRate=%.1f%% evictions=%d",
+                           this.entries.size(), this.bytes.get(), h, m,
+                           h + m == 0 ? 0.0 : 100.0 * h / (h + m), this.evictions.sum());
+   }
+
+}//end ResultCache
@@ -0,0 +1,435 @@
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+/**
+ * This class writes the rows of a streamed query to a character stream in
+ * one of several output formats.  Everything goes through a single large
+ * buffer which is flushed in big chunks, instead of one synchronized
+ * PrintStream call per cell, and the column names are read from the
+ * ResultSetMetaData only once per result.
+ *
+ * A renderer handles one result and is not thread-safe.  A renderer on
+ * standard out fills a buffer of its own and takes its turn on standard out
+ * only to copy that buffer there, so a result that fits in the buffer holds
+ * the turn for one copy and not while the query runs.  A larger result keeps
+ * the turn from its first copy until finish(): the results of concurrent
+ * sessions never interleave.
+ *
+ */
+public class ResultRenderer implements ProfNetwork.RowHandler {
+
+   /**
+    * Supported output formats.
+    */
+   public enum Mode {
+      // tab separated values, the format of the original template
+      TSV,
+      // columns padded to widths sampled from the first rows
+      TABLE,
+      // comma separated values with RFC 4180 quoting
+      CSV,
+      // one JSON object per row
+      JSON;
+
+      /**
+       * @param name the mode name, in any case
+       * @return the matching mode, or TSV when the name is unknown
+       */
+      public static Mode parse(String name) {
+         for (Mode m : values())
+            if (m.name().equalsIgnoreCase(name))
+               return m;
+         return TSV;
+      }
+   }
+
+   // size of the output buffer, in chars
+   static final int BUFFER_SIZE = 1 << 16;
+
+   // widest column printed in TABLE mode
+   static final int MAX_TABLE_WIDTH = 40;
+
+   // buffered writer over standard out shared by every renderer
+   private static BufferedWriter stdout = null;
+
+   // held while a renderer copies its buffer to standard out; a semaphore
+   // rather than a lock, as rows of a result streamed from several shards
+   // arrive on several threads
+   private static final Semaphore STDOUT_TURN = new Semaphore(1);
+
+   private final Writer out;
+   private final Mode mode;
+   private final int sampleRows;
+
+   // the buffer of a renderer on standard out, null otherwise
+   private StdoutBuffer stdoutBuffer = null;
+
+   // column metadata cached from the first row
+   private int numCol = -1;
+   private String[] names;
+   private String[] jsonKeys;
+
+   // characters of column data read, for the query metrics
+   private long bytes = 0;
+
+   // TABLE mode: rows held back until the column widths are known
+   private List<String[]> sample;
+   private int[] widths;
+
+   /**
+    * Creates a renderer writing to the given stream.
+    *
+    * @param out where the rows are written; should be buffered
+    * @param mode the output format
+    * @param sampleRows rows used to size the columns in TABLE mode
+    */
+   public ResultRenderer(Writer out, Mode mode, int sampleRows) {
+      this.out = out;
+      this.mode = mode;
+      this.sampleRows = Math.max(1, sampleRows);
+   }
+
+   /**
+    * Creates a renderer writing to standard out through a buffer of its
+    * own.  The caller must call finish(), which copies out what is left.
+    *
+    * @param mode the output format
+    * @return the renderer
+    */
+   public static ResultRenderer toStdout(Mode mode) {
+      StdoutBuffer buffer = new StdoutBuffer();
+      ResultRenderer r = new ResultRenderer(buffer, mode, ProfNetwork.config("output.sampleRows", 200));
+      r.stdoutBuffer = buffer;
+      return r;
+   }
+
+   /**
+    * Opens a buffered writer over a file channel, for dumping a result
+    * straight to disk.  The caller closes the writer.
+    *
+    * @param path the file to create or truncate
+    * @return the writer
+    * @throws java.io.IOException when the file cannot be opened
+    */
+   public static Writer openFile(Path path) throws IOException {
+      FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      return new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8), BUFFER_SIZE);
+   }
+
+   // standard out, bypassing the PrintStream; System.out is flushed first so
+   // the two never interleave
+   private static synchronized Writer stdout() {
+      System.out.flush();
+      if (stdout == null)
+         stdout = new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), BUFFER_SIZE);
+      return stdout;
+   }
+
+   public boolean row(ResultSet rs) throws SQLException {
+      try{
+         if (this.numCol < 0)
+            readMetaData(rs.getMetaData());
+         switch (this.mode){
+            case TSV:   writeTsv(rs); break;
+            case CSV:   writeCsv(rs); break;
+            case JSON:  writeJson(rs); break;
+            case TABLE: addTableRow(rs); break;
+         }//end switch
+         return true;
+      }catch (IOException e){
+         throw new UncheckedIOException(e);
+      }//end try
+   }
+
+   public long bytesRead() {
+      return this.bytes;
+   }
+
+   // reads a column, counting its characters
+   private String value(ResultSet rs, int column) throws SQLException {
+      String value = rs.getString(column);
+      if (value != null)
+         this.bytes += value.length();
+      return value;
+   }
+
+   /**
+    * Writes out anything still held back and flushes the buffer.  Must be
+    * called once the result has been read, even when reading it failed.
+    *
+    * @throws java.io.IOException when the output cannot be written
+    */
+   public void finish() throws IOException {
+      try{
+         if (this.mode == Mode.TABLE && this.sample != null)
+            flushSample();
+         this.out.flush();
+      }finally{
+         if (this.stdoutBuffer != null)
+            this.stdoutBuffer.release();
+      }//end try
+   }
+
+   private void readMetaData(ResultSetMetaData rsmd) throws SQLException, IOException {
+      this.numCol = rsmd.getColumnCount();
+      this.names = new String[this.numCol];
+      for (int i = 0; i < this.numCol; ++i)
+         this.names[i] = rsmd.getColumnName(i + 1);
+
+      switch (this.mode){
+         case TSV:
+            for (int i = 0; i < this.numCol; ++i){
+               this.out.write(this.names[i]);
+               this.out.write('\t');
+            }
+            this.out.write('\n');
+            break;
+         case CSV:
+            for (int i = 0; i < this.numCol; ++i){
+               if (i > 0)
+                  this.out.write(',');
+               writeCsvValue(this.names[i]);
+            }
+            this.out.write('\n');
+            break;
+         case JSON:
+            // keys are escaped once and reused for every row
+            this.jsonKeys = new String[this.numCol];
+            for (int i = 0; i < this.numCol; ++i){
+               StringBuilder key = new StringBuilder(this.names[i].length() + 4);
+               key.append(i == 0 ? "{\"" : ",\"");
+               appendJsonEscaped(key, this.names[i]);
+               key.append("\":");
+               this.jsonKeys[i] = key.toString();
+            }
+            break;
+         case TABLE:
+            this.sample = new ArrayList<String[]>(this.sampleRows);
+            this.widths = new int[this.numCol];
+            for (int i = 0; i < this.numCol; ++i)
+               this.widths[i] = Math.max(1, Math.min(MAX_TABLE_WIDTH, this.names[i].length()));
+            break;
+      }//end switch
+   }
+
+   private void writeTsv(ResultSet rs) throws SQLException, IOException {
+      for (int i = 1; i <= this.numCol; ++i){
+         this.out.write(String.valueOf(value(rs, i)));
+         this.out.write('\t');
+      }
+      this.out.write('\n');
+   }
+
+   private void writeCsv(ResultSet rs) throws SQLException, IOException {
+      for (int i = 1; i <= this.numCol; ++i){
+         if (i > 1)
+            this.out.write(',');
+         String value = value(rs, i);
+         if (value != null)
+            writeCsvValue(value);
+      }
+      this.out.write('\n');
+   }
+
+   private void writeCsvValue(String value) throws IOException {
+      boolean quote = false;
+      for (int i = 0; i < value.length() && !quote; ++i){
+         char c = value.charAt(i);
+         quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+      }
+      if (!quote){
+         this.out.write(value);
+         return;
+      }
+      this.out.write('"');
+      for (int i = 0; i < value.length(); ++i){
+         char c = value.charAt(i);
+         if (c == '"')
+            this.out.write('"');
+         this.out.write(c);
+      }
+      this.out.write('"');
+   }
+
+   private void writeJson(ResultSet rs) throws SQLException, IOException {
+      for (int i = 1; i <= this.numCol; ++i){
+         this.out.write(this.jsonKeys[i - 1]);
+         String value = value(rs, i);
+         if (value == null){
+            this.out.write("null");
+            continue;
+         }
+         this.out.write('"');
+         for (int j = 0; j < value.length(); ++j){
+            char c = value.charAt(j);
+            if (c == '"' || c == '\\'){
+               this.out.write('\\');
+               this.out.write(c);
+            }else if (c < 0x20){
+               this.out.write(String.format("\\u%04x", (int) c));
+            }else{
+               this.out.write(c);
+            }
+         }
+         this.out.write('"');
+      }
+      this.out.write(this.numCol == 0 ? "{}\n" : "}\n");
+   }
+
+   private static void appendJsonEscaped(StringBuilder sb, String value) {
+      for (int j = 0; j < value.length(); ++j){
+         char c = value.charAt(j);
+         if (c == '"' || c == '\\')
+            sb.append('\\').append(c);
+         else if (c < 0x20)
+            sb.append(String.format("\\u%04x", (int) c));
+         else
+            sb.append(c);
+      }
+   }
+
+   private void addTableRow(ResultSet rs) throws SQLException, IOException {
+      if (this.sample == null){
+         // widths are fixed: write the row directly
+         for (int i = 1; i <= this.numCol; ++i)
+            writeCell(String.valueOf(value(rs, i)), i - 1);
+         this.out.write('\n');
+         return;
+      }
+      String[] row = new String[this.numCol];
+      for (int i = 0; i < this.numCol; ++i){
+         row[i] = String.valueOf(value(rs, i + 1));
+         this.widths[i] = Math.min(MAX_TABLE_WIDTH, Math.max(this.widths[i], row[i].length()));
+      }
+      this.sample.add(row);
+      if (this.sample.size() >= this.sampleRows)
+         flushSample();
+   }
+
+   // writes the header and the sampled rows once the widths are known
+   private void flushSample() throws IOException {
+      for (int i = 0; i < this.numCol; ++i)
+         writeCell(this.names[i], i);
+      this.out.write('\n');
+      for (int i = 0; i < this.numCol; ++i){
+         for (int j = 0; j < this.widths[i]; ++j)
+            this.out.write('-');
+         this.out.write(i + 1 < this.numCol ? "-+-" : "");
+      }
+      this.out.write('\n');
+      for (String[] row : this.sample){
+         for (int i = 0; i < this.numCol; ++i)
+            writeCell(row[i], i);
+         this.out.write('\n');
+      }
+      this.sample = null;
+   }
+
+   private void writeCell(String value, int col) throws IOException {
+      int width = this.widths[col];
+      if (value.length() > width){
+         this.out.write(value, 0, width - 1);
+         this.out.write('~');
+      }else{
+         this.out.write(value);
+         for (int j = value.length(); j < width; ++j)
+            this.out.write(' ');
+      }
+      if (col + 1 < this.numCol)
+         this.out.write(" | ");
+   }
+
+   /**
+    * The buffer of one renderer on standard out.  It takes the standard out
+    * turn when it is first copied out and gives it back at flush(), so a
+    * result larger than the buffer is copied out whole before the next.
+    */
+   private static class StdoutBuffer extends Writer {
+      private final char[] buf = new char[BUFFER_SIZE];
+      private int count = 0;
+
+      // true while this buffer holds the standard out turn
+      private boolean holdsTurn = false;
+
+      public void write(char[] cbuf, int off, int len) throws IOException {
+         while (len > 0){
+            if (this.count == this.buf.length)
+               copyOut();
+            int n = Math.min(len, this.buf.length - this.count);
+            System.arraycopy(cbuf, off, this.buf, this.count, n);
+            this.count += n;
+            off += n;
+            len -= n;
+         }//end while
+      }
+
+      public void write(int c) throws IOException {
+         if (this.count == this.buf.length)
+            copyOut();
+         this.buf[this.count++] = (char) c;
+      }
+
+      public void write(String str, int off, int len) throws IOException {
+         while (len > 0){
+            if (this.count == this.buf.length)
+               copyOut();
+            int n = Math.min(len, this.buf.length - this.count);
+            str.getChars(off, off + n, this.buf, this.count);
+            this.count += n;
+            off += n;
+            len -= n;
+         }//end while
+      }
+
+      // copies the buffer to standard out, keeping the turn for the rest
+      private void copyOut() throws IOException {
+         if (!this.holdsTurn){
+            STDOUT_TURN.acquireUninterruptibly();
+            this.holdsTurn = true;
+         }//end if
+         Writer stdout = stdout();
+         stdout.write(this.buf, 0, this.count);
+         this.count = 0;
+      }
+
+      public void flush() throws IOException {
+         try{
+            copyOut();
+            stdout().flush();
+         }finally{
+            release();
+         }//end try
+      }
+
+      public void close() throws IOException {
+         flush();
+      }
+
+      // gives the turn back, if held
+      void release() {
+         if (this.holdsTurn){
+            this.holdsTurn = false;
+            STDOUT_TURN.release();
+         }//end if
+      }
+   }//end StdoutBuffer
+
+}//end ResultRenderer
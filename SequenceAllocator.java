@@ -0,0 +1,142 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class hands out values of a database sequence from blocks reserved
+ * in advance, so that inserts can carry their key without a nextval or
+ * currval round trip each, and can be sent in batches.
+ *
+ * When the sequence was created with an INCREMENT greater than one, a
+ * single nextval reserves the whole range up to the next value (hi-lo);
+ * the block keeps only its first value and its size, however large the
+ * INCREMENT.
+ * Otherwise a block of blockSize values is reserved with one
+ * SELECT nextval(...) FROM generate_series(1, blockSize).
+ *
+ * Values are taken from the current block with an atomic increment and no
+ * lock; only the thread that finds the block used up takes a lock to
+ * reserve the next one.  Values reserved but not used, when the program
+ * stops, are lost, which leaves gaps as any sequence may.
+ *
+ */
+public class SequenceAllocator {
+
+   /**
+    * Reserved values: either the count values from hi, or the listed ones.
+    */
+   private static final class Block {
+      final long hi;
+      final long count;
+      // the values of a generate_series block, which need not be consecutive
+      final long[] values;
+      final AtomicLong next = new AtomicLong();
+
+      Block(long hi, long count) {
+         this.hi = hi;
+         this.count = count;
+         this.values = null;
+      }
+
+      Block(long[] values) {
+         this.hi = 0;
+         this.count = values.length;
+         this.values = values;
+      }
+   }//end Block
+
+   private final ProfNetwork esql;
+   private final String sequence;
+   private final int blockSize;
+   // INCREMENT of the sequence, read on the first reservation
+   private long increment = 0;
+   private volatile Block block = new Block(0, 0);
+
+   /**
+    * @param esql the database access object
+    * @param sequence the name of the sequence
+    * @param blockSize values reserved at a time when the sequence increments by one
+    */
+   public SequenceAllocator(ProfNetwork esql, String sequence, int blockSize) {
+      this.esql = esql;
+      this.sequence = sequence;
+      this.blockSize = Math.max(1, blockSize);
+   }
+
+   /**
+    * @return the next value of the sequence
+    * @throws java.sql.SQLException when a new block cannot be reserved
+    */
+   public long next() throws SQLException {
+      while (true){
+         Block b = this.block;
+         long i = b.next.getAndIncrement();
+         if (i < b.count)
+            return b.values == null ? b.hi + i : b.values[(int) i];
+         refill(b);
+      }
+   }
+
+   /**
+    * @param n how many values
+    * @return n values of the sequence
+    * @throws java.sql.SQLException when a new block cannot be reserved
+    */
+   public long[] next(int n) throws SQLException {
+      long[] values = new long[n];
+      for (int i = 0; i < n; ++i)
+         values[i] = next();
+      return values;
+   }
+
+   // reserves a new block, unless another thread already replaced the used one
+   private synchronized void refill(Block used) throws SQLException {
+      if (this.block != used)
+         return;
+      long start = System.nanoTime();
+      Block reserved = null;
+      try{
+         reserved = this.esql.withConnection(pc -> {
+            if (this.increment == 0){
+               PreparedStatement stmt = pc.prepare("SELECT seqincrement FROM pg_sequence WHERE seqrelid = CAST(? AS regclass)");
+               stmt.setString(1, this.sequence);
+               ResultSet rs = stmt.executeQuery();
+               this.increment = rs.next() ? rs.getLong(1) : 1;
+               rs.close();
+            }
+            if (this.increment > 1){
+               // hi-lo: one nextval owns the values up to the next one
+               PreparedStatement stmt = pc.prepare("SELECT nextval(CAST(? AS regclass))");
+               stmt.setString(1, this.sequence);
+               ResultSet rs = stmt.executeQuery();
+               rs.next();
+               long hi = rs.getLong(1);
+               rs.close();
+               return new Block(hi, this.increment);
+            }
+            PreparedStatement stmt = pc.prepare("SELECT nextval(CAST(? AS regclass)) FROM generate_series(1, ?)");
+            stmt.setString(1, this.sequence);
+            stmt.setInt(2, this.blockSize);
+            ResultSet rs = stmt.executeQuery();
+            long[] series = new long[this.blockSize];
+            int n = 0;
+            while (rs.next() && n < series.length)
+               series[n++] = rs.getLong(1);
+            rs.close();
+            return new Block(series);
+         });
+      }finally{
+         this.esql.getMetrics().record("sequence block " + this.sequence, start, reserved == null ? -1 : reserved.count, 0);
+      }//end try
+      this.block = reserved;
+   }//end refill
+
+   /**
+    * @return the name of the sequence
+    */
+   public String sequence() {
+      return this.sequence;
+   }
+
+}//end SequenceAllocator
@@ -0,0 +1,387 @@
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class keeps track of logged-in members and caches what the menus
+ * show about members, so that moving between screens does not query USR
+ * and connection_usr again each time.
+ *
+ * A successful login returns an opaque random token; the member behind a
+ * token is looked up with userId() and the session expires after
+ * profnetwork.session.ttlSec seconds (default 1800) without use.
+ *
+ * Per member the cache holds the profile, the sorted list of accepted
+ * connections and the number of pending requests, each loaded on first
+ * use.  Entries expire profnetwork.session.cacheTtlSec seconds (default
+ * 300) after they were loaded, and at most profnetwork.session.cacheSize
+ * members (default 10000) are kept, the least recently used going first.
+ * The update methods of ProfNetwork tell the cache exactly which parts of
+ * which members changed.  A load only stores its value when no
+ * invalidation of the member ran while it was reading, and when it was
+ * not answered by a replica, which may lag behind the invalidated write;
+ * the check and the invalidations happen under the lock of the member's
+ * entry.
+ *
+ * A password change ends every other session of the member.
+ *
+ */
+public class SessionManager {
+
+   /**
+    * What is cached about one member.  Fields are null, or -1, until loaded.
+    */
+   private static final class Entry {
+      final long loadedAt = System.nanoTime();
+      // bumped by every invalidation, so a load that raced one is not kept;
+      // changed, and compared before storing a load, holding the entry's lock
+      volatile int version = 0;
+      volatile Profile profile;
+      volatile String[] friends;
+      volatile int pending = -1;
+   }
+
+   private static final class Session {
+      final String userId;
+      volatile long lastUsed = System.nanoTime();
+
+      Session(String userId) {
+         this.userId = userId;
+      }
+   }
+
+   private final ProfNetwork esql;
+   private final SecureRandom random = new SecureRandom();
+   private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+   private final long sessionTtlNanos = TimeUnit.SECONDS.toNanos(ProfNetwork.config("session.ttlSec", 1800));
+   private final long cacheTtlNanos = TimeUnit.SECONDS.toNanos(ProfNetwork.config("session.cacheTtlSec", 300));
+   private final int maxEntries = Math.max(1, ProfNetwork.config("session.cacheSize", 10000));
+   // access-ordered, so iteration starts at the least recently used member
+   private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<String, Entry>(256, 0.75f, true);
+
+   private final LongAdder hits = new LongAdder();
+   private final LongAdder misses = new LongAdder();
+   private final LongAdder evictions = new LongAdder();
+
+   /**
+    * @param esql the database access object the cache loads through
+    */
+   public SessionManager(ProfNetwork esql) {
+      this.esql = esql;
+   }
+
+   /**
+    * Checks the credentials and opens a session.
+    *
+    * @param userId the member's userId
+    * @param password the member's password
+    * @return the session token, or null when the credentials do not match
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public String login(String userId, String password) throws SQLException {
+      if (!this.esql.authenticate(userId, password))
+         return null;
+      byte[] bytes = new byte[18];
+      this.random.nextBytes(bytes);
+      String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+      this.sessions.put(token, new Session(userId.trim()));
+      if (this.sessions.size() % 1024 == 0)
+         expireSessions();
+      return token;
+   }
+
+   /**
+    * @param token a token returned by login
+    * @return the member logged in with it, or null when unknown or expired
+    */
+   public String userId(String token) {
+      Session s = token == null ? null : this.sessions.get(token);
+      if (s == null)
+         return null;
+      long now = System.nanoTime();
+      if (now - s.lastUsed > this.sessionTtlNanos){
+         this.sessions.remove(token, s);
+         return null;
+      }
+      s.lastUsed = now;
+      return s.userId;
+   }
+
+   /**
+    * Ends a session.
+    *
+    * @param token a token returned by login
+    */
+   public void logout(String token) {
+      if (token != null)
+         this.sessions.remove(token);
+   }
+
+   private void expireSessions() {
+      long now = System.nanoTime();
+      this.sessions.values().removeIf(s -> now - s.lastUsed > this.sessionTtlNanos);
+   }
+
+   /**
+    * @return the number of open sessions, including expired ones not yet removed
+    */
+   public int sessionCount() {
+      return this.sessions.size();
+   }
+
+   // the cache entry of a member, created when missing or expired
+   private Entry entry(String userId) {
+      synchronized (this.cache){
+         Entry e = this.cache.get(userId);
+         if (e != null && System.nanoTime() - e.loadedAt <= this.cacheTtlNanos)
+            return e;
+         e = new Entry();
+         this.cache.put(userId, e);
+         Iterator<Entry> lru = this.cache.values().iterator();
+         while (this.cache.size() > this.maxEntries){
+            lru.next();
+            lru.remove();
+            this.evictions.increment();
+         }
+         return e;
+      }//end synchronized
+   }//end entry
+
+   // the cache entry of a member, or null when it is not cached
+   private Entry cached(String userId) {
+      synchronized (this.cache){
+         return this.cache.get(userId);
+      }
+   }
+
+   /**
+    * @param userId the member
+    * @return the member's profile, or null when no such member exists
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Profile profile(String userId) throws SQLException {
+      userId = userId.trim();
+      Entry e = entry(userId);
+      Profile p = e.profile;
+      if (p != null){
+         this.hits.increment();
+         return p;
+      }
+      this.misses.increment();
+      int version = e.version;
+      long replicaReads = this.esql.replicaReads();
+      p = ProfileLoader.load(this.esql, userId);
+      synchronized (e){
+         // a replica may not have the latest writes yet
+         if (e.version == version && this.esql.replicaReads() == replicaReads)
+            e.profile = p;
+      }
+      return p;
+   }
+
+   /**
+    * @param userId the member
+    * @return the member's accepted connections, sorted
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public String[] friends(String userId) throws SQLException {
+      userId = userId.trim();
+      Entry e = entry(userId);
+      String[] f = e.friends;
+      if (f != null){
+         this.hits.increment();
+         return f;
+      }
+      this.misses.increment();
+      int version = e.version;
+      long replicaReads = this.esql.replicaReads();
+      ColumnarResult rows = this.esql.executeQueryAndReturnColumns(ProfNetwork.SQL_FRIENDS, userId, userId);
+      f = new String[rows.rowCount()];
+      for (int r = 0; r < f.length; ++r)
+         f[r] = rows.getString(r, 0);
+      synchronized (e){
+         // a replica may not have the latest writes yet
+         if (e.version == version && this.esql.replicaReads() == replicaReads)
+            e.friends = f;
+      }
+      return f;
+   }
+
+   /**
+    * @param userId the member
+    * @return the number of connection requests waiting for the member
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int pendingCount(String userId) throws SQLException {
+      userId = userId.trim();
+      Entry e = entry(userId);
+      int n = e.pending;
+      if (n >= 0){
+         this.hits.increment();
+         return n;
+      }
+      this.misses.increment();
+      int version = e.version;
+      long replicaReads = this.esql.replicaReads();
+      n = this.esql.executeQueryAndReturnColumns(ProfNetwork.SQL_PENDING_COUNT, userId).getInt(0, 0);
+      synchronized (e){
+         // a replica may not have the latest writes yet
+         if (e.version == version && this.esql.replicaReads() == replicaReads)
+            e.pending = n;
+      }
+      return n;
+   }
+
+   /**
+    * Forgets the cached profile of a member, after it was changed.
+    *
+    * @param userId the member
+    */
+   public void profileChanged(String userId) {
+      Entry e = cached(userId.trim());
+      if (e != null){
+         synchronized (e){
+            ++e.version;
+            e.profile = null;
+         }
+      }
+   }
+
+   /**
+    * Forgets the cached pending-request count of a member.
+    *
+    * @param userId the member who received or answered a request
+    */
+   public void requestsChanged(String userId) {
+      Entry e = cached(userId.trim());
+      if (e != null){
+         synchronized (e){
+            ++e.version;
+            e.pending = -1;
+         }
+      }
+   }
+
+   /**
+    * Forgets the cached connections of both members of an accepted request
+    * and the pending count of the member who accepted it.
+    *
+    * @param requester the member who sent the request
+    * @param userId the member who accepted it
+    */
+   public void connectionAccepted(String requester, String userId) {
+      Entry e = cached(requester.trim());
+      if (e != null){
+         synchronized (e){
+            ++e.version;
+            e.friends = null;
+         }
+      }
+      e = cached(userId.trim());
+      if (e != null){
+         synchronized (e){
+            ++e.version;
+            e.friends = null;
+            e.pending = -1;
+         }
+      }
+   }
+
+   /**
+    * Forgets what a set of answered requests changed: the pending count of
+    * the member who answered and, when they were accepted, the connections
+    * of both sides.
+    *
+    * @param userId the member who answered the requests
+    * @param requesters the members who sent them
+    * @param accepted true if the requests were accepted
+    */
+   public void requestsAnswered(String userId, String[] requesters, boolean accepted) {
+      synchronized (this.cache){
+         Entry e = this.cache.get(userId.trim());
+         if (e != null){
+            synchronized (e){
+               ++e.version;
+               e.pending = -1;
+               if (accepted)
+                  e.friends = null;
+            }
+         }
+         if (!accepted)
+            return;
+         for (String requester : requesters){
+            e = this.cache.get(requester.trim());
+            if (e != null){
+               synchronized (e){
+                  ++e.version;
+                  e.friends = null;
+               }
+            }
+         }//end for
+      }//end synchronized
+   }
+
+   /**
+    * Drops everything cached about a member, such as after a password change.
+    *
+    * @param userId the member
+    */
+   public void invalidate(String userId) {
+      Entry e;
+      synchronized (this.cache){
+         e = this.cache.remove(userId.trim());
+      }
+      // a load still holding the entry must not store into it
+      if (e != null){
+         synchronized (e){
+            ++e.version;
+         }
+      }
+   }
+
+   /**
+    * Ends every session of a member but one, after the member's password
+    * changed, and drops what is cached about the member.
+    *
+    * @param userId the member
+    * @param keepToken the session that changed the password, or null to end all
+    */
+   public void passwordChanged(String userId, String keepToken) {
+      String id = userId.trim();
+      this.sessions.entrySet().removeIf(s -> s.getValue().userId.equals(id) && !s.getKey().equals(keepToken));
+      invalidate(id);
+   }
+
+   /**
+    * @return the cache hits so far
+    */
+   public long hits() {
+      return this.hits.sum();
+   }
+
+   /**
+    * @return the cache misses so far
+    */
+   public long misses() {
+      return this.misses.sum();
+   }
+
+   /**
+    * @return one line of cache statistics
+    */
+   public String stats() {
+      long h = hits(), m = misses();
+      int size;
+      synchronized (this.cache){
+         size = this.cache.size();
+      }
+      return String.format("sessions=%d cached=%d hits=%d misses=%d hitRate=%.1f%% evictions=%d",
+                           sessionCount(), size, h, m, h + m == 0 ? 0.0 : 100.0 * h / (h + m), this.evictions.sum());
+   }
+
+}//end SessionManager
@@ -0,0 +1,343 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * This class moves rows to the shards they belong on, offline, after shards
+ * were added to profnetwork.shards.  It also turns a single database into
+ * shards: list it as the first shard and the members of the others are
+ * moved out of it.
+ *
+ * Every shard is read in keyset chunks of chunkRows rows, so memory stays
+ * bounded whatever the size of the tables.  The USR, WORK_EXPR and
+ * EDUCATIONAL_DETAILS rows of members placed on another shard are written
+ * there in one transaction, replacing any copy left by an earlier run, and
+ * only then deleted from the shard they were read from.  A connection_usr
+ * row is copied to the shards of both its members when it is missing
+ * there, and deleted from a shard that holds neither member.
+ *
+ * A write that reached only one of the two shards of an edge leaves the
+ * copies apart: one missing, or the two with different statuses.  The
+ * missing copy is restored, and differing statuses are settled by
+ * precedence: an answer beats a pending Request, since a request is only
+ * ever answered and never sent back to pending, and Accept beats Reject,
+ * as a connection wrongly kept can be removed again while one wrongly
+ * refused would be lost.  Each shard pushes its copies to the other, so
+ * one run leaves both at the higher status.  A run that stops half way can
+ * simply be started again.
+ *
+ * Nothing else may write to the shards while it runs.
+ *
+ */
+public class ShardRebalancer {
+
+   // tables placed by their userId, USR first
+   static final String[] MEMBER_TABLES = { "USR", "WORK_EXPR", "EDUCATIONAL_DETAILS" };
+
+   private static final String MEMBERS_AFTER = "SELECT userId FROM USR WHERE userId > ? ORDER BY userId LIMIT ?";
+   private static final String EDGES_AFTER =
+      "SELECT userId, connectionId, status FROM connection_usr WHERE (userId, connectionId) > (?, ?) ORDER BY userId, connectionId LIMIT ?";
+   private static final String COPY_EDGE =
+      "INSERT INTO connection_usr (userId, connectionId, status) SELECT ?, ?, ? " +
+      "WHERE NOT EXISTS (SELECT 1 FROM connection_usr WHERE userId = ? AND connectionId = ?)";
+   // the precedence of an edge status: Request, then Reject, then Accept; see rank()
+   private static final String RANK = "CASE trim(%s) WHEN 'Accept' THEN 2 WHEN 'Reject' THEN 1 ELSE 0 END";
+   // status, userId, connectionId, status: raises a copy to the status of the other
+   private static final String RECONCILE_EDGE =
+      "UPDATE connection_usr SET status = ? WHERE userId = ? AND connectionId = ? AND "
+      + String.format(RANK, "status") + " < " + String.format(RANK, "CAST(? AS text)");
+   private static final String DELETE_EDGE = "DELETE FROM connection_usr WHERE userId = ? AND connectionId = ?";
+
+   /**
+    * The connections of a chunk read from one shard, split by where they
+    * belong.
+    */
+   static final class EdgeSplit {
+      // the edges to copy to each other shard, by shard
+      final Map<Integer, List<Object[]>> copies = new HashMap<Integer, List<Object[]>>();
+      // the edges belonging to neither of their members' shards
+      final List<Object[]> stray = new ArrayList<Object[]>();
+   }
+
+   /**
+    * Rows read from one table.
+    */
+   private static final class Rows {
+      String[] columns;
+      final List<Object[]> values = new ArrayList<Object[]>();
+   }
+
+   private final ShardRouter shards;
+   private final int chunkRows;
+   private long membersMoved = 0;
+   private long edgesCopied = 0;
+   private long edgesReconciled = 0;
+   private long edgesDeleted = 0;
+
+   /**
+    * @param shards the shards, as they should be after the rebalance
+    * @param chunkRows members or connections read at a time
+    */
+   public ShardRebalancer(ShardRouter shards, int chunkRows) {
+      this.shards = shards;
+      this.chunkRows = Math.max(1, chunkRows);
+   }
+
+   /**
+    * Moves the rows of every shard that belong elsewhere.
+    *
+    * @return what was moved
+    * @throws java.sql.SQLException when a shard cannot be read or written;
+    *         the rows moved so far stay moved
+    */
+   public String run() throws SQLException {
+      for (int s = 0; s < this.shards.size(); ++s){
+         moveMembers(s);
+         moveConnections(s);
+      }//end for
+      return "Moved " + this.membersMoved + " members, copied " + this.edgesCopied
+           + ", reconciled " + this.edgesReconciled + " and deleted " + this.edgesDeleted + " connection rows";
+   }//end run
+
+   // moves the members of a shard that are placed on other shards
+   private void moveMembers(int source) throws SQLException {
+      String last = "";
+      while (true){
+         final String after = last;
+         List<String> ids = this.shards.on(source, pc -> {
+            PreparedStatement stmt = pc.prepare(MEMBERS_AFTER);
+            stmt.setString(1, after);
+            stmt.setInt(2, this.chunkRows);
+            ResultSet rs = stmt.executeQuery();
+            List<String> chunk = new ArrayList<String>();
+            while (rs.next())
+               chunk.add(rs.getString(1));
+            rs.close();
+            return chunk;
+         });
+         if (ids.isEmpty())
+            return;
+         last = ids.get(ids.size() - 1);
+
+         Map<Integer, List<String>> moving = new HashMap<Integer, List<String>>();
+         for (String id : ids){
+            int target = this.shards.shardOf(id);
+            if (target != source)
+               moving.computeIfAbsent(target, t -> new ArrayList<String>()).add(id);
+         }//end for
+         for (Map.Entry<Integer, List<String>> e : moving.entrySet())
+            moveMembers(source, e.getKey(), e.getValue());
+      }//end while
+   }//end moveMembers
+
+   // copies the rows of some members to their shard, then deletes them from the source
+   private void moveMembers(int source, int target, List<String> ids) throws SQLException {
+      final String members = ProfNetwork.textArray(ids);
+      final Rows[] rows = new Rows[MEMBER_TABLES.length];
+      this.shards.on(source, pc -> {
+         for (int t = 0; t < MEMBER_TABLES.length; ++t)
+            rows[t] = read(pc, "SELECT * FROM " + MEMBER_TABLES[t] + " WHERE userId = ANY (CAST(? AS text[]))", members);
+         return null;
+      });
+      // replaces what an interrupted run may have left on the target
+      this.shards.on(target, pc -> inTransaction(pc, () -> {
+         deleteMembers(pc, members);
+         for (int t = 0; t < MEMBER_TABLES.length; ++t)
+            insert(pc, MEMBER_TABLES[t], rows[t]);
+         return null;
+      }));
+      this.shards.on(source, pc -> inTransaction(pc, () -> {
+         deleteMembers(pc, members);
+         return null;
+      }));
+      this.membersMoved += ids.size();
+   }//end moveMembers
+
+   // deletes the rows of the members of a text[] literal, USR last
+   private static void deleteMembers(ConnectionPool.PooledConnection pc, String members) throws SQLException {
+      for (int t = MEMBER_TABLES.length - 1; t >= 0; --t){
+         PreparedStatement stmt = pc.prepare("DELETE FROM " + MEMBER_TABLES[t] + " WHERE userId = ANY (CAST(? AS text[]))");
+         stmt.setString(1, members);
+         stmt.executeUpdate();
+      }//end for
+   }
+
+   // copies the connections of a shard to the shards of their members, and
+   // deletes those that belong to neither member
+   private void moveConnections(int source) throws SQLException {
+      String lastUser = "", lastConnection = "";
+      while (true){
+         final String afterUser = lastUser, afterConnection = lastConnection;
+         Rows chunk = this.shards.on(source, pc ->
+            read(pc, EDGES_AFTER, afterUser, afterConnection, this.chunkRows));
+         if (chunk.values.isEmpty())
+            return;
+         Object[] lastRow = chunk.values.get(chunk.values.size() - 1);
+         lastUser = (String) lastRow[0];
+         lastConnection = (String) lastRow[1];
+
+         EdgeSplit split = split(source, chunk.values, this.shards::shardOf);
+         for (Map.Entry<Integer, List<Object[]>> e : split.copies.entrySet()){
+            final long[] counts = new long[2];
+            this.shards.on(e.getKey(), pc -> inTransaction(pc, () -> {
+               counts[0] = batch(pc, RECONCILE_EDGE, reconcileRows(e.getValue()));
+               counts[1] = batch(pc, COPY_EDGE, copyRows(e.getValue()));
+               return null;
+            }));
+            this.edgesReconciled += counts[0];
+            this.edgesCopied += counts[1];
+         }//end for
+         if (!split.stray.isEmpty()){
+            List<Object[]> keys = new ArrayList<Object[]>(split.stray.size());
+            for (Object[] edge : split.stray)
+               keys.add(new Object[]{ edge[0], edge[1] });
+            this.edgesDeleted += this.shards.on(source, pc -> inTransaction(pc, () -> batch(pc, DELETE_EDGE, keys)));
+         }//end if
+      }//end while
+   }//end moveConnections
+
+   /**
+    * Splits connections read from a shard into the copies each other shard
+    * needs and the rows the shard should not hold.
+    *
+    * @param source the shard the connections were read from
+    * @param edges userId, connectionId and status of each connection
+    * @param shardOf the shard of a userId
+    * @return the split
+    */
+   static EdgeSplit split(int source, List<Object[]> edges, ToIntFunction<String> shardOf) {
+      EdgeSplit split = new EdgeSplit();
+      for (Object[] edge : edges){
+         int a = shardOf.applyAsInt((String) edge[0]);
+         int b = shardOf.applyAsInt((String) edge[1]);
+         if (a != source)
+            split.copies.computeIfAbsent(a, t -> new ArrayList<Object[]>()).add(edge);
+         if (b != source && b != a)
+            split.copies.computeIfAbsent(b, t -> new ArrayList<Object[]>()).add(edge);
+         if (a != source && b != source)
+            split.stray.add(edge);
+      }//end for
+      return split;
+   }//end split
+
+   /**
+    * The precedence RANK gives an edge status on the server.
+    *
+    * @param status a status, possibly blank padded or null
+    * @return 2 for Accept, 1 for Reject and 0 for anything else
+    */
+   static int rank(String status) {
+      String s = status == null ? "" : status.trim();
+      return s.equals("Accept") ? 2 : s.equals("Reject") ? 1 : 0;
+   }
+
+   /**
+    * @param edges connections to push to another shard
+    * @return the RECONCILE_EDGE parameters of those that may raise the
+    *         status of the other copy; a pending request never can
+    */
+   static List<Object[]> reconcileRows(List<Object[]> edges) {
+      List<Object[]> rows = new ArrayList<Object[]>(edges.size());
+      for (Object[] edge : edges)
+         if (rank((String) edge[2]) > 0)
+            rows.add(new Object[]{ edge[2], edge[0], edge[1], edge[2] });
+      return rows;
+   }
+
+   /**
+    * @param edges connections to push to another shard
+    * @return the COPY_EDGE parameters of each
+    */
+   static List<Object[]> copyRows(List<Object[]> edges) {
+      List<Object[]> rows = new ArrayList<Object[]>(edges.size());
+      for (Object[] edge : edges)
+         rows.add(new Object[]{ edge[0], edge[1], edge[2], edge[0], edge[1] });
+      return rows;
+   }
+
+   // reads every row of a query
+   private static Rows read(ConnectionPool.PooledConnection pc, String sql, Object... params) throws SQLException {
+      PreparedStatement stmt = pc.prepare(sql);
+      ProfNetwork.bind(stmt, params);
+      ResultSet rs = stmt.executeQuery();
+      Rows rows = new Rows();
+      ResultSetMetaData meta = rs.getMetaData();
+      rows.columns = new String[meta.getColumnCount()];
+      for (int c = 0; c < rows.columns.length; ++c)
+         rows.columns[c] = meta.getColumnName(c + 1);
+      while (rs.next()){
+         Object[] values = new Object[rows.columns.length];
+         for (int c = 0; c < values.length; ++c)
+            values[c] = rs.getObject(c + 1);
+         rows.values.add(values);
+      }//end while
+      rs.close();
+      return rows;
+   }//end read
+
+   // writes rows read from the same table on another shard
+   private static void insert(ConnectionPool.PooledConnection pc, String table, Rows rows) throws SQLException {
+      if (rows.values.isEmpty())
+         return;
+      StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+      StringBuilder marks = new StringBuilder();
+      for (int c = 0; c < rows.columns.length; ++c){
+         sql.append(c == 0 ? "" : ", ").append(rows.columns[c]);
+         marks.append(c == 0 ? "?" : ", ?");
+      }
+      batch(pc, sql.append(") VALUES (").append(marks).append(')').toString(), rows.values);
+   }//end insert
+
+   // runs a statement once per row as one batch, returning the rows changed
+   private static int batch(ConnectionPool.PooledConnection pc, String sql, List<Object[]> rows) throws SQLException {
+      PreparedStatement stmt = pc.prepare(sql);
+      try{
+         for (Object[] values : rows){
+            ProfNetwork.bind(stmt, values);
+            stmt.addBatch();
+         }
+         return sum(stmt.executeBatch());
+      }finally{
+         // the statement is cached on the connection
+         stmt.clearBatch();
+      }//end try
+   }//end batch
+
+   /**
+    * Statements run together in one transaction.
+    */
+   private interface Transaction<T> {
+      T run() throws SQLException;
+   }
+
+   // runs statements in one transaction, rolled back when they fail
+   private static <T> T inTransaction(ConnectionPool.PooledConnection pc, Transaction<T> work) throws SQLException {
+      Connection conn = pc.getConnection();
+      conn.setAutoCommit(false);
+      try{
+         T result = work.run();
+         conn.commit();
+         return result;
+      }finally{
+         if (!conn.getAutoCommit()){
+            conn.rollback();
+            conn.setAutoCommit(true);
+         }//end if
+      }//end try
+   }//end inTransaction
+
+   private static int sum(int[] counts) {
+      int n = 0;
+      for (int c : counts)
+         n += Math.max(c, 0);
+      return n;
+   }
+
+}//end ShardRebalancer
@@ -0,0 +1,317 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class spreads the members and their connections over several
+ * databases, the shards, by a hash of the userId.
+ *
+ * USR, WORK_EXPR and EDUCATIONAL_DETAILS rows live on the shard of their
+ * userId.  A connection_usr row is stored on the shards of both of its
+ * members, so a member's friends and pending requests are always read
+ * from the member's own shard.  The shards must therefore not have a
+ * foreign key from connection_usr to USR.
+ *
+ * ProfNetwork registers the statements it routes: a keyed statement runs
+ * on the shard of the userId bound at its first key placeholder, and a
+ * write runs on the shards of every key it names, one after the other.
+ * There is no distributed transaction: when the second shard fails the
+ * first keeps the change, and the next rebalance repairs the other copy,
+ * inserting it when missing and settling a differing status by the
+ * precedence ShardRebalancer documents.  A scattered statement, such as a
+ * load or a search by name, runs on every shard at the same time and the
+ * rows are gathered by the caller.
+ *
+ * A userId is placed with a jump consistent hash of its 64-bit FNV-1a
+ * hash, so when shards are added at the end of the list only the members
+ * that belong on the new shards move; ShardRebalancer moves them.
+ *
+ */
+public class ShardRouter {
+
+   /**
+    * One shard database.
+    */
+   static final class Shard {
+      final String url;
+      final ConnectionPool pool;
+      final LongAdder statements = new LongAdder();
+
+      Shard(String url, ConnectionPool pool) {
+         this.url = url;
+         this.pool = pool;
+      }
+   }//end Shard
+
+   private final Shard[] shards;
+   // the placeholders holding the userIds a statement is routed by
+   private final Map<String, int[]> keyed = new ConcurrentHashMap<String, int[]>();
+   private final Set<String> scattered = ConcurrentHashMap.newKeySet();
+   private final ExecutorService scatterPool;
+   private final LongAdder scatters = new LongAdder();
+
+   /**
+    * Opens a pool per shard, none of whose connections are opened before
+    * they are needed.
+    *
+    * @param urls the JDBC URLs of the shards, in placement order
+    * @param user the user name used to login to the shards
+    * @param passwd the user login password
+    * @param poolMax maximum number of connections per shard
+    * @throws java.sql.SQLException when a pool cannot be created
+    */
+   public ShardRouter(List<String> urls, String user, String passwd, int poolMax) throws SQLException {
+      this.shards = new Shard[urls.size()];
+      for (int i = 0; i < this.shards.length; ++i)
+         this.shards[i] = new Shard(urls.get(i),
+            new ConnectionPool(urls.get(i), user, passwd, 0, poolMax, 300000, 5000, 1000, 64));
+      this.scatterPool = Executors.newCachedThreadPool(r -> {
+         Thread t = new Thread(r, "ShardRouter-scatter");
+         t.setDaemon(true);
+         return t;
+      });
+   }//end ShardRouter
+
+   /**
+    * Places a userId on one of a number of shards.  Trailing blanks, which
+    * char(10) columns are padded with, are ignored.
+    *
+    * @param userId the member
+    * @param buckets the number of shards
+    * @return the shard, from 0 to buckets - 1
+    */
+   static int shardOf(String userId, int buckets) {
+      String id = userId.trim();
+      long key = 0xcbf29ce484222325L;
+      for (int i = 0; i < id.length(); ++i){
+         key ^= id.charAt(i);
+         key *= 0x100000001b3L;
+      }
+      // jump consistent hash (Lamping and Veach)
+      long b = -1, j = 0;
+      while (j < buckets){
+         b = j;
+         key = key * 2862933555777941757L + 1;
+         j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+      }
+      return (int) b;
+   }//end shardOf
+
+   /**
+    * @param userId the member
+    * @return the shard holding the member's rows
+    */
+   public int shardOf(String userId) {
+      return shardOf(userId, this.shards.length);
+   }
+
+   /**
+    * @return the number of shards
+    */
+   public int size() {
+      return this.shards.length;
+   }
+
+   /**
+    * Routes a statement by the userIds bound at the given placeholders.
+    *
+    * @param sql the SQL template
+    * @param keyParams the zero-based placeholders holding userIds; reads
+    *        and single-shard writes use the first
+    */
+   void route(String sql, int... keyParams) {
+      this.keyed.put(sql, keyParams);
+   }
+
+   /**
+    * Runs a statement on every shard.
+    *
+    * @param sql the SQL template
+    */
+   void scatter(String sql) {
+      this.scattered.add(sql);
+   }
+
+   /**
+    * @param sql a statement
+    * @return true if it goes to the shards rather than the home database
+    */
+   boolean routes(String sql) {
+      return this.keyed.containsKey(sql) || this.scattered.contains(sql);
+   }
+
+   /**
+    * @param sql a statement
+    * @return true if it runs on every shard
+    */
+   boolean isScatter(String sql) {
+      return this.scattered.contains(sql);
+   }
+
+   /**
+    * Runs the work on the shard of the statement's first key.
+    *
+    * @param sql the routed statement the work runs
+    * @param params the values for its placeholders
+    * @param work the statements to run
+    * @return the value produced by the work
+    * @throws java.sql.SQLException when no connection is available or the work failed
+    */
+   <T> T onKeyShard(String sql, Object[] params, ProfNetwork.ConnectionWork<T> work) throws SQLException {
+      return on(shardOf(key(sql, params, 0)), work);
+   }
+
+   /**
+    * Runs an update on the shard of each key of the statement, once per
+    * shard.
+    *
+    * @param sql the routed statement the work runs
+    * @param params the values for its placeholders
+    * @param work the update to run
+    * @return the largest row count of the shards, so a change that
+    *         reached any copy of an edge counts
+    * @throws java.sql.SQLException when no connection is available or the
+    *         update failed; shards already updated keep the change
+    */
+   int onKeyShards(String sql, Object[] params, ProfNetwork.ConnectionWork<Integer> work) throws SQLException {
+      int[] keys = this.keyed.get(sql);
+      if (keys == null)
+         throw new IllegalArgumentException("Not routed by userId: " + sql);
+      List<String> ids = new ArrayList<String>(keys.length);
+      for (int k = 0; k < keys.length; ++k)
+         ids.add(key(sql, params, k));
+      int rows = 0;
+      for (int count : onShardsOf(ids, work))
+         rows = Math.max(rows, count);
+      return rows;
+   }//end onKeyShards
+
+   /**
+    * Runs an update on the shard of each of the given members, once per
+    * shard, in the order the members are given.
+    *
+    * @param userIds the members
+    * @param work the update to run
+    * @return the row count on each shard, in the order first reached
+    * @throws java.sql.SQLException when no connection is available or the
+    *         update failed; shards already updated keep the change
+    */
+   int[] onShardsOf(Iterable<String> userIds, ProfNetwork.ConnectionWork<Integer> work) throws SQLException {
+      Set<Integer> targets = new LinkedHashSet<Integer>();
+      for (String id : userIds)
+         targets.add(shardOf(id));
+      int[] counts = new int[targets.size()];
+      int i = 0;
+      for (int s : targets)
+         counts[i++] = on(s, work);
+      return counts;
+   }//end onShardsOf
+
+   /**
+    * Runs the work on every shard at the same time, each on its own
+    * connection, and waits for all of them.
+    *
+    * @param work the statements to run; it must be safe to call from
+    *        several threads at once
+    * @return the value produced on each shard, in shard order
+    * @throws java.sql.SQLException the first failure, after every shard finished
+    */
+   <T> List<T> onEveryShard(ProfNetwork.ConnectionWork<T> work) throws SQLException {
+      this.scatters.increment();
+      List<Future<T>> futures = new ArrayList<Future<T>>(this.shards.length);
+      for (int s = 1; s < this.shards.length; ++s){
+         final int shard = s;
+         futures.add(this.scatterPool.submit(() -> on(shard, work)));
+      }
+      List<T> results = new ArrayList<T>(this.shards.length);
+      SQLException failed = null;
+      // the calling thread takes the first shard itself
+      try{
+         results.add(on(0, work));
+      }catch (SQLException e){
+         failed = e;
+         results.add(null);
+      }//end try
+      for (Future<T> f : futures){
+         try{
+            results.add(f.get());
+         }catch (ExecutionException e){
+            results.add(null);
+            if (failed == null)
+               failed = e.getCause() instanceof SQLException ? (SQLException) e.getCause()
+                                                             : new SQLException(e.getCause());
+         }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the shards", e);
+         }//end try
+      }//end for
+      if (failed != null)
+         throw failed;
+      return results;
+   }//end onEveryShard
+
+   /**
+    * Borrows a connection of one shard, runs the work on it and hands the
+    * connection back.
+    *
+    * @param shard the shard
+    * @param work the statements to run
+    * @return the value produced by the work
+    * @throws java.sql.SQLException when no connection is available or the work failed
+    */
+   <T> T on(int shard, ProfNetwork.ConnectionWork<T> work) throws SQLException {
+      Shard s = this.shards[shard];
+      s.statements.increment();
+      ConnectionPool.PooledConnection pc = s.pool.borrow();
+      try{
+         return work.run(pc);
+      }catch (SQLException e){
+         pc.checkFatal(e);
+         throw e;
+      }finally{
+         s.pool.release(pc);
+      }//end try
+   }//end on
+
+   // the userId bound at the n-th key placeholder of a routed statement
+   private String key(String sql, Object[] params, int n) {
+      int[] keys = this.keyed.get(sql);
+      if (keys == null)
+         throw new IllegalArgumentException("Not routed by userId: " + sql);
+      Object id = params[keys[n]];
+      if (id == null)
+         throw new IllegalArgumentException("No userId to route by: " + sql);
+      return id.toString();
+   }
+
+   /**
+    * Stops the scatter threads and closes the shard pools.
+    */
+   public void close() {
+      this.scatterPool.shutdownNow();
+      for (Shard s : this.shards)
+         s.pool.close();
+   }
+
+   /**
+    * @return one line per shard with the statements it ran
+    */
+   public String stats() {
+      StringBuilder sb = new StringBuilder();
+      sb.append("scatters=").append(this.scatters.sum());
+      for (int i = 0; i < this.shards.length; ++i)
+         sb.append('\n').append("shard ").append(i).append(' ').append(this.shards[i].url)
+           .append(" statements=").append(this.shards[i].statements.sum());
+      return sb.toString();
+   }
+
+}//end ShardRouter
@@ -0,0 +1,437 @@
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class keeps the connection_usr table in memory as a graph so that
+ * friend lists, mutual friends and reachability can be answered without a
+ * round trip to the database.
+ *
+ * Every userId is dictionary encoded to a dense int.  For each member the
+ * graph keeps two sorted, growable int sets: the accepted connections, and
+ * the members with a pending or rejected request in either direction.  The
+ * graph is loaded once at startup and then kept up to date by the menu
+ * operations that change connection_usr.
+ *
+ */
+public class SocialGraph {
+
+   /**
+    * A sorted, growable int set per node.
+    */
+   static class IntSets {
+      private int[][] sets = new int[0][];
+      private int[] sizes = new int[0];
+
+      void ensureNodes(int n) {
+         if (n <= this.sets.length)
+            return;
+         int cap = Math.max(n, this.sets.length * 2);
+         this.sets = Arrays.copyOf(this.sets, cap);
+         this.sizes = Arrays.copyOf(this.sizes, cap);
+      }
+
+      int size(int node) {
+         return node < this.sizes.length ? this.sizes[node] : 0;
+      }
+
+      int[] raw(int node) {
+         return node < this.sets.length ? this.sets[node] : null;
+      }
+
+      // appends without keeping order; call sortAll() afterwards
+      void append(int node, int value) {
+         int[] set = this.sets[node];
+         int n = this.sizes[node];
+         if (set == null)
+            set = this.sets[node] = new int[4];
+         else if (n == set.length)
+            set = this.sets[node] = Arrays.copyOf(set, n * 2);
+         set[n] = value;
+         this.sizes[node] = n + 1;
+      }
+
+      boolean add(int node, int value) {
+         int[] set = this.sets[node];
+         int n = this.sizes[node];
+         int pos = set == null ? -1 : Arrays.binarySearch(set, 0, n, value);
+         if (pos >= 0)
+            return false;
+         pos = -pos - 1;
+         if (set == null)
+            set = this.sets[node] = new int[4];
+         else if (n == set.length)
+            set = this.sets[node] = Arrays.copyOf(set, n * 2);
+         System.arraycopy(set, pos, set, pos + 1, n - pos);
+         set[pos] = value;
+         this.sizes[node] = n + 1;
+         return true;
+      }
+
+      boolean remove(int node, int value) {
+         int n = size(node);
+         if (n == 0)
+            return false;
+         int[] set = this.sets[node];
+         int pos = Arrays.binarySearch(set, 0, n, value);
+         if (pos < 0)
+            return false;
+         System.arraycopy(set, pos + 1, set, pos, n - pos - 1);
+         this.sizes[node] = n - 1;
+         return true;
+      }
+
+      boolean contains(int node, int value) {
+         int n = size(node);
+         return n > 0 && Arrays.binarySearch(this.sets[node], 0, n, value) >= 0;
+      }
+
+      // sorts and removes duplicates from every set after a bulk append
+      void sortAll(int nodes) {
+         for (int node = 0; node < nodes; ++node){
+            int n = this.sizes[node];
+            if (n < 2)
+               continue;
+            int[] set = this.sets[node];
+            Arrays.sort(set, 0, n);
+            int w = 1;
+            for (int r = 1; r < n; ++r)
+               if (set[r] != set[w - 1])
+                  set[w++] = set[r];
+            this.sizes[node] = w;
+         }
+      }
+   }//end IntSets
+
+   // every edge; with shards each is stored, and read, once per member
+   static final String LOAD_QUERY = "SELECT userId, connectionId, status FROM connection_usr";
+
+   private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+   // dictionary encoding of userIds
+   private final Map<String, Integer> ids = new HashMap<String, Integer>();
+   private String[] names = new String[0];
+   private int nodeCount = 0;
+
+   // accepted connections, both directions
+   private final IntSets friends = new IntSets();
+
+   // pending or rejected requests, both directions
+   private final IntSets requests = new IntSets();
+
+   /**
+    * Loads every row of connection_usr into a new graph.  The rows are
+    * streamed, so only the graph itself is held in memory.
+    *
+    * @param esql the database access object
+    * @return the loaded graph
+    * @throws java.sql.SQLException when failed to read the table
+    */
+   public static SocialGraph load(ProfNetwork esql) throws SQLException {
+      final SocialGraph graph = new SocialGraph();
+      esql.executeQueryAndStream(LOAD_QUERY, rs -> {
+         int a = graph.intern(rs.getString(1));
+         int b = graph.intern(rs.getString(2));
+         String status = rs.getString(3);
+         IntSets sets = status != null && status.trim().equals("Accept") ? graph.friends : graph.requests;
+         if (a != b){
+            sets.append(a, b);
+            sets.append(b, a);
+         }//end if
+         return true;
+      });
+      graph.friends.sortAll(graph.nodeCount);
+      graph.requests.sortAll(graph.nodeCount);
+      return graph;
+   }//end load
+
+   /**
+    * @param userId a member's userId
+    * @return the member's node number, or -1 if the graph has never seen it
+    */
+   public int id(String userId) {
+      if (userId == null)
+         return -1;
+      this.lock.readLock().lock();
+      try{
+         Integer id = this.ids.get(userId.trim());
+         return id == null ? -1 : id;
+      }finally{
+         this.lock.readLock().unlock();
+      }//end try
+   }
+
+   /**
+    * @param id a node number
+    * @return the userId of that node
+    */
+   public String name(int id) {
+      this.lock.readLock().lock();
+      try{
+         return this.names[id];
+      }finally{
+         this.lock.readLock().unlock();
+      }//end try
+   }
+
+   /**
+    * @return the number of members known to the graph
+    */
+   public int size() {
+      this.lock.readLock().lock();
+      try{
+         return this.nodeCount;
+      }finally{
+         this.lock.readLock().unlock();
+      }//end try
+   }
+
+   /**
+    * Records a new request from one member to another.
+    *
+    * @param from the member sending the request
+    * @param to the member receiving it
+    */
+   public void addRequest(String from, String to) {
+      this.lock.writeLock().lock();
+      try{
+         int a = intern(from);
+         int b = intern(to);
+         if (a != b && !this.friends.contains(a, b)){
+            this.requests.add(a, b);
+            this.requests.add(b, a);
+         }//end if
+      }finally{
+         this.lock.writeLock().unlock();
+      }//end try
+   }
+
+   /**
+    * Records that a request between two members was accepted.
+    *
+    * @param a one member
+    * @param b the other member
+    */
+   public void addConnection(String a, String b) {
+      this.lock.writeLock().lock();
+      try{
+         int x = intern(a);
+         int y = intern(b);
+         if (x != y){
+            this.friends.add(x, y);
+            this.friends.add(y, x);
+            this.requests.remove(x, y);
+            this.requests.remove(y, x);
+         }//end if
+      }finally{
+         this.lock.writeLock().unlock();
+      }//end try
+   }
+
+   /**
+    * Records that a request between two members was denied.  The pair stays
+    * known as requested, so it is not suggested again.
+    *
+    * @param a one member
+    * @param b the other member
+    */
+   public void rejectConnection(String a, String b) {
+      this.lock.writeLock().lock();
+      try{
+         int x = intern(a);
+         int y = intern(b);
+         if (x != y){
+            this.friends.remove(x, y);
+            this.friends.remove(y, x);
+            this.requests.add(x, y);
+            this.requests.add(y, x);
+         }//end if
+      }finally{
+         this.lock.writeLock().unlock();
+      }//end try
+   }
+
+   /**
+    * Records that a member accepted the requests of many others, taking the
+    * write lock once.
+    *
+    * @param userId the member who accepted
+    * @param others the members who sent the requests
+    */
+   public void addConnections(String userId, String[] others) {
+      this.lock.writeLock().lock();
+      try{
+         int x = intern(userId);
+         for (String other : others){
+            int y = intern(other);
+            if (x != y){
+               this.friends.add(x, y);
+               this.friends.add(y, x);
+               this.requests.remove(x, y);
+               this.requests.remove(y, x);
+            }//end if
+         }//end for
+      }finally{
+         this.lock.writeLock().unlock();
+      }//end try
+   }
+
+   /**
+    * Records that a member denied the requests of many others, taking the
+    * write lock once.
+    *
+    * @param userId the member who denied
+    * @param others the members who sent the requests
+    */
+   public void rejectConnections(String userId, String[] others) {
+      this.lock.writeLock().lock();
+      try{
+         int x = intern(userId);
+         for (String other : others){
+            int y = intern(other);
+            if (x != y){
+               this.friends.remove(x, y);
+               this.friends.remove(y, x);
+               this.requests.add(x, y);
+               this.requests.add(y, x);
+            }//end if
+         }//end for
+      }finally{
+         this.lock.writeLock().unlock();
+      }//end try
+   }
+
+   /**
+    * @param userId a member
+    * @return the member's accepted connections, sorted by userId
+    */
+   public String[] friends(String userId) {
+      this.lock.readLock().lock();
+      try{
+         Integer id = this.ids.get(userId.trim());
+         if (id == null)
+            return new String[0];
+         int n = this.friends.size(id);
+         int[] set = this.friends.raw(id);
+         String[] result = new String[n];
+         for (int i = 0; i < n; ++i)
+            result[i] = this.names[set[i]];
+         Arrays.sort(result);
+         return result;
+      }finally{
+         this.lock.readLock().unlock();
+      }//end try
+   }
+
+   /**
+    * @param a one member
+    * @param b the other member
+    * @return the connections the two members have in common, sorted by userId
+    */
+   public String[] mutualFriends(String a, String b) {
+      this.lock.readLock().lock();
+      try{
+         Integer x = this.ids.get(a.trim());
+         Integer y = this.ids.get(b.trim());
+         if (x == null || y == null)
+            return new String[0];
+         int[] sx = this.friends.raw(x), sy = this.friends.raw(y);
+         int nx = this.friends.size(x), ny = this.friends.size(y);
+         // merge of two sorted sets
+         String[] common = new String[Math.min(nx, ny)];
+         int n = 0;
+         for (int i = 0, j = 0; i < nx && j < ny; ){
+            if (sx[i] < sy[j])
+               ++i;
+            else if (sx[i] > sy[j])
+               ++j;
+            else{
+               common[n++] = this.names[sx[i]];
+               ++i;
+               ++j;
+            }//end if
+         }//end for
+         common = Arrays.copyOf(common, n);
+         Arrays.sort(common);
+         return common;
+      }finally{
+         this.lock.readLock().unlock();
+      }//end try
+   }
+
+   /**
+    * @param a one member
+    * @param b the other member
+    * @return true if the two members have an accepted connection
+    */
+   public boolean areConnected(String a, String b) {
+      this.lock.readLock().lock();
+      try{
+         Integer x = this.ids.get(a.trim());
+         Integer y = this.ids.get(b.trim());
+         return x != null && y != null && this.friends.contains(x, y);
+      }finally{
+         this.lock.readLock().unlock();
+      }//end try
+   }
+
+   /**
+    * Checks whether a chain of at most maxHops accepted connections leads
+    * from one member to the other.
+    *
+    * @param a the starting member
+    * @param b the member to reach
+    * @param maxHops the longest chain allowed
+    * @return true if b can be reached from a within maxHops
+    */
+   public boolean withinHops(String a, String b, int maxHops) {
+      return PathFinder.distance(this, a, b, maxHops) >= 0;
+   }
+
+   // raw access for PathFinder and Recommender; callers hold the read lock
+
+   ReentrantReadWriteLock.ReadLock readLock() {
+      return this.lock.readLock();
+   }
+
+   int nodeCountLocked() {
+      return this.nodeCount;
+   }
+
+   int[] adjacency(int node) {
+      return this.friends.raw(node);
+   }
+
+   int degree(int node) {
+      return this.friends.size(node);
+   }
+
+   String nameLocked(int node) {
+      return this.names[node];
+   }
+
+   // true if a request in either direction is pending or was rejected
+   boolean requestedLocked(int a, int b) {
+      return this.requests.contains(a, b);
+   }
+
+   // returns the node number of a userId, adding it if needed; callers hold
+   // the write lock, or own the graph exclusively while loading
+   private int intern(String userId) {
+      String key = userId.trim();
+      Integer id = this.ids.get(key);
+      if (id != null)
+         return id;
+      int n = this.nodeCount++;
+      if (n == this.names.length)
+         this.names = Arrays.copyOf(this.names, Math.max(16, n * 2));
+      this.names[n] = key;
+      this.friends.ensureNodes(n + 1);
+      this.requests.ensureNodes(n + 1);
+      this.ids.put(key, n);
+      return n;
+   }
+
+}//end SocialGraph
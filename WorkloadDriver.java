@@ -0,0 +1,310 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class replays a configurable mix of ProfNetwork operations against a
+ * local PostgreSQL database, for capacity planning, without going through
+ * the interactive menus.
+ *
+ *    java WorkloadDriver <dbname> <port> <user> [key=value ...]
+ *
+ *    users=10000      members to seed (see ProfNetworkBench.seed)
+ *    degree=20        connection rows per member
+ *    seed=true        seed the members first; false reuses an earlier seed
+ *    sessions=50      concurrent simulated users
+ *    rate=200         operations started per second, across all sessions
+ *    warmup=10        warm-up seconds, not reported
+ *    seconds=60       measured seconds
+ *    mix=login:15,viewProfile:30,friends:25,pending:10,sendRequest:5,
+ *        acceptRequest:5,updateEmail:5,addEducation:5
+ *    backlog=10000    queued operations beyond which arrivals are dropped
+ *    report=file      write the report as JSON
+ *    keep=false       leave the seeded data in place afterwards
+ *
+ * Arrivals are open-loop: operations are started on a Poisson schedule at
+ * the given rate whether or not earlier ones have finished, and each
+ * latency is measured from the moment the operation was due, so time spent
+ * queued behind a saturated system is counted instead of hidden.
+ *
+ * Failures caused by constraint violations (a request that already exists,
+ * an education entry added twice) are reported as conflicts, not errors.
+ *
+ */
+public class WorkloadDriver {
+
+   static final String DEFAULT_MIX =
+      "login:15,viewProfile:30,friends:25,pending:10,sendRequest:5,acceptRequest:5,updateEmail:5,addEducation:5";
+
+   /**
+    * One simulated operation, run as the given member.
+    */
+   interface Operation {
+      void run(ThreadLocalRandom rnd, String member) throws Exception;
+   }
+
+   /**
+    * Measurements of one operation during one phase.
+    */
+   static class OpStats {
+      final QueryMetrics.LatencyHistogram latency = new QueryMetrics.LatencyHistogram();
+      final LongAdder errors = new LongAdder();
+      final LongAdder conflicts = new LongAdder();
+      volatile String lastError = null;
+   }
+
+   /**
+    * Measurements of one phase.
+    */
+   static class Phase {
+      final Map<String, OpStats> ops = new LinkedHashMap<String, OpStats>();
+      long arrivals = 0;
+      long dropped = 0;
+      double seconds = 0;
+   }
+
+   private final Map<String, Operation> operations;
+   private final String[] names;
+   private final double[] cumulative;
+   private final int users;
+   private final double rate;
+   private final int backlog;
+   private final ThreadPoolExecutor workers;
+   private final AtomicLong outstanding = new AtomicLong();
+
+   WorkloadDriver(Map<String, Operation> operations, String mix, int users, int sessions, double rate, int backlog) {
+      this.operations = operations;
+      this.users = users;
+      this.rate = rate;
+      this.backlog = backlog;
+      String[] entries = mix.split(",");
+      this.names = new String[entries.length];
+      this.cumulative = new double[entries.length];
+      double total = 0;
+      for (int i = 0; i < entries.length; ++i){
+         String[] kv = entries[i].trim().split(":");
+         if (kv.length != 2 || !operations.containsKey(kv[0]))
+            throw new IllegalArgumentException("Invalid mix entry " + entries[i] + ", operations are " + operations.keySet());
+         this.names[i] = kv[0];
+         total += Double.parseDouble(kv[1]);
+         this.cumulative[i] = total;
+      }
+      if (total <= 0)
+         throw new IllegalArgumentException("The mix has no weight");
+      this.workers = new ThreadPoolExecutor(sessions, sessions, 0, TimeUnit.MILLISECONDS,
+                                            new LinkedBlockingQueue<Runnable>(), r -> {
+         Thread t = new Thread(r, "WorkloadDriver-session");
+         t.setDaemon(true);
+         return t;
+      });
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3){
+         System.err.println("Usage: java [-classpath <classpath>] WorkloadDriver <dbname> <port> <user> [key=value ...]");
+         return;
+      }
+      Map<String, String> opts = ProfNetworkBench.options(args, 3);
+      int users = Integer.parseInt(opts.getOrDefault("users", "10000"));
+      int degree = Integer.parseInt(opts.getOrDefault("degree", "20"));
+      int sessions = Integer.parseInt(opts.getOrDefault("sessions", "50"));
+      double rate = Double.parseDouble(opts.getOrDefault("rate", "200"));
+      double warmup = Double.parseDouble(opts.getOrDefault("warmup", "10"));
+      double seconds = Double.parseDouble(opts.getOrDefault("seconds", "60"));
+      int backlog = Integer.parseInt(opts.getOrDefault("backlog", "10000"));
+      String mix = opts.getOrDefault("mix", DEFAULT_MIX);
+
+      ProfNetwork.loadDriver();
+      System.setProperty("profnetwork.graph", "false");
+      System.setProperty("profnetwork.search", "false");
+      if (System.getProperty("profnetwork.pool.max") == null)
+         System.setProperty("profnetwork.pool.max", Integer.toString(sessions));
+      final ProfNetwork esql = new ProfNetwork(args[0], args[1], args[2], "");
+      WorkloadDriver driver = null;
+      try{
+         if (Boolean.parseBoolean(opts.getOrDefault("seed", "true"))){
+            System.out.println("Seeding " + users + " members with " + degree + " connections each...");
+            ProfNetworkBench.seed(esql, users, degree);
+         }
+         driver = new WorkloadDriver(operations(esql, users), mix, users, sessions, rate, backlog);
+         if (warmup > 0){
+            System.out.println("Warming up for " + warmup + " seconds...");
+            driver.drive(warmup);
+         }
+         System.out.println("Measuring for " + seconds + " seconds at " + rate + " operations/sec...");
+         Phase phase = driver.drive(seconds);
+         print(phase);
+         if (opts.containsKey("report"))
+            writeReport(Paths.get(opts.get("report")), opts, phase);
+      }finally{
+         if (driver != null)
+            driver.workers.shutdownNow();
+         if (!Boolean.parseBoolean(opts.getOrDefault("keep", "false")))
+            ProfNetworkBench.removeSeed(esql);
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   /**
+    * @param esql the database access object
+    * @param users the number of seeded members
+    * @return the operations a mix may name, each going through the same
+    *         data-access methods as the menus
+    */
+   static Map<String, Operation> operations(final ProfNetwork esql, final int users) {
+      final AtomicLong unique = new AtomicLong();
+      Map<String, Operation> ops = new LinkedHashMap<String, Operation>();
+      ops.put("login", (rnd, m) ->
+         esql.authenticate(m, "pw"));
+      ops.put("viewProfile", (rnd, m) ->
+         ProfileLoader.load(esql, ProfNetworkBench.member(rnd, users)));
+      ops.put("friends", (rnd, m) ->
+         esql.executeQueryAndStream(ProfNetwork.SQL_FRIENDS, rs -> true, m, m));
+      ops.put("pending", (rnd, m) ->
+         esql.executeQueryAndStream(ProfNetwork.SQL_PENDING_REQUESTS, rs -> true, m));
+      ops.put("sendRequest", (rnd, m) -> {
+         String to = ProfNetworkBench.member(rnd, users);
+         if (!to.equals(m))
+            esql.sendRequest(m, to);
+      });
+      ops.put("acceptRequest", (rnd, m) -> {
+         String from = esql.executeQueryAndReturnRow(ProfNetwork.SQL_PENDING_REQUESTS, 0, m);
+         if (from != null)
+            esql.acceptRequest(from.trim(), m);
+      });
+      ops.put("updateEmail", (rnd, m) ->
+         esql.setEmail(m, m.substring(ProfNetworkBench.PREFIX.length()) + "." + rnd.nextInt(1000) + "@example.org"));
+      ops.put("addEducation", (rnd, m) ->
+         esql.addEducation(m, "University " + rnd.nextInt(200), "Workload " + unique.incrementAndGet(),
+                           "MS", "2014-09-01", "2016-06-01"));
+      return ops;
+   }//end operations
+
+   /**
+    * Starts operations on the arrival schedule for the given time, then
+    * waits for those still running.
+    *
+    * @param seconds how long to keep starting operations
+    * @return the measurements of the phase
+    * @throws java.lang.InterruptedException when interrupted while waiting
+    */
+   Phase drive(double seconds) throws InterruptedException {
+      final Phase phase = new Phase();
+      for (String name : this.names)
+         phase.ops.put(name, new OpStats());
+      ThreadLocalRandom rnd = ThreadLocalRandom.current();
+      double meanGap = 1e9 / this.rate;
+      long start = System.nanoTime();
+      long end = start + (long) (seconds * 1e9);
+      long next = start;
+      while (next < end){
+         long now;
+         while ((now = System.nanoTime()) < next)
+            LockSupport.parkNanos(next - now);
+         if (this.workers.getQueue().size() >= this.backlog){
+            ++phase.dropped;
+         }else{
+            final long due = next;
+            final String name = pick(rnd);
+            final Operation op = this.operations.get(name);
+            final OpStats stats = phase.ops.get(name);
+            this.outstanding.incrementAndGet();
+            this.workers.execute(() -> {
+               ThreadLocalRandom r = ThreadLocalRandom.current();
+               try{
+                  op.run(r, ProfNetworkBench.member(r, this.users));
+               }catch (SQLException e){
+                  // 23xxx: integrity constraint violation
+                  if (e.getSQLState() != null && e.getSQLState().startsWith("23")){
+                     stats.conflicts.increment();
+                  }else{
+                     stats.errors.increment();
+                     stats.lastError = e.getMessage();
+                  }
+               }catch (Exception e){
+                  stats.errors.increment();
+                  stats.lastError = e.toString();
+               }finally{
+                  stats.latency.record(System.nanoTime() - due);
+                  this.outstanding.decrementAndGet();
+               }//end try
+            });
+            ++phase.arrivals;
+         }//end if
+         // exponential gaps give Poisson arrivals
+         next += (long) (-Math.log(1.0 - rnd.nextDouble()) * meanGap);
+      }//end while
+      while (this.outstanding.get() > 0)
+         Thread.sleep(5);
+      phase.seconds = (System.nanoTime() - start) / 1e9;
+      return phase;
+   }//end drive
+
+   private String pick(ThreadLocalRandom rnd) {
+      double x = rnd.nextDouble() * this.cumulative[this.cumulative.length - 1];
+      for (int i = 0; i < this.cumulative.length; ++i)
+         if (x < this.cumulative[i])
+            return this.names[i];
+      return this.names[this.names.length - 1];
+   }
+
+   private static void print(Phase phase) {
+      System.out.printf("%-16s %10s %8s %9s %10s %10s %10s %10s %10s%n",
+                        "operation", "count", "errors", "conflicts", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us");
+      for (Map.Entry<String, OpStats> e : phase.ops.entrySet()){
+         QueryMetrics.LatencyHistogram h = e.getValue().latency;
+         System.out.printf("%-16s %10d %8d %9d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                           e.getKey(), h.count(), e.getValue().errors.sum(), e.getValue().conflicts.sum(),
+                           h.percentile(50) / 1e3, h.percentile(90) / 1e3, h.percentile(99) / 1e3,
+                           h.percentile(99.9) / 1e3, h.max() / 1e3);
+      }
+      System.out.printf("%d operations in %.1f s (%.1f/s), %d dropped%n",
+                        phase.arrivals, phase.seconds, phase.arrivals / phase.seconds, phase.dropped);
+   }
+
+   // the report as one JSON object
+   private static void writeReport(Path path, Map<String, String> opts, Phase phase) throws IOException {
+      StringBuilder sb = new StringBuilder(1024).append("{\n  \"options\": {");
+      boolean first = true;
+      for (Map.Entry<String, String> o : opts.entrySet()){
+         sb.append(first ? "" : ",").append("\n    ").append(ProfNetworkServer.json(o.getKey()))
+           .append(": ").append(ProfNetworkServer.json(o.getValue()));
+         first = false;
+      }
+      sb.append("\n  },\n  \"seconds\": ").append(String.format(Locale.ROOT, "%.3f", phase.seconds))
+        .append(",\n  \"arrivals\": ").append(phase.arrivals)
+        .append(",\n  \"dropped\": ").append(phase.dropped)
+        .append(",\n  \"throughput\": ").append(String.format(Locale.ROOT, "%.1f", phase.arrivals / phase.seconds))
+        .append(",\n  \"operations\": {");
+      first = true;
+      for (Map.Entry<String, OpStats> e : phase.ops.entrySet()){
+         OpStats s = e.getValue();
+         QueryMetrics.LatencyHistogram h = s.latency;
+         sb.append(first ? "" : ",").append("\n    ").append(ProfNetworkServer.json(e.getKey())).append(": {")
+           .append("\"count\": ").append(h.count())
+           .append(", \"errors\": ").append(s.errors.sum())
+           .append(", \"conflicts\": ").append(s.conflicts.sum())
+           .append(String.format(Locale.ROOT, ", \"meanUs\": %.1f, \"p50Us\": %.1f, \"p90Us\": %.1f, \"p99Us\": %.1f, \"p999Us\": %.1f, \"maxUs\": %.1f",
+                                 h.mean() / 1e3, h.percentile(50) / 1e3, h.percentile(90) / 1e3,
+                                 h.percentile(99) / 1e3, h.percentile(99.9) / 1e3, h.max() / 1e3))
+           .append(", \"lastError\": ").append(ProfNetworkServer.json(s.lastError)).append('}');
+         first = false;
+      }
+      sb.append("\n  }\n}\n");
+      Files.write(path, sb.toString().getBytes(StandardCharsets.UTF_8));
+   }//end writeReport
+
+}//end WorkloadDriver
@@ -0,0 +1,235 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class collects update statements from many callers and writes them
+ * in groups, so that one commit, and one flush of the write-ahead log,
+ * covers many updates.
+ *
+ * Statements go into a bounded queue.  A writer thread takes what has
+ * queued up, waiting at most flushMillis after the first statement for
+ * more to arrive or until batchSize are waiting, and sends them as JDBC
+ * batches in a single transaction.  Statements keep their order; only
+ * consecutive statements with the same SQL share a batch.
+ *
+ * Each caller gets a future that completes with the row count once the
+ * transaction holding its statement has committed, or with
+ * Statement.SUCCESS_NO_INFO when the driver did not report the count of a
+ * batched statement.  When a group fails, its statements are retried one
+ * at a time, so a bad statement only fails its own future.  Any other
+ * failure fails the futures of its group, and the writer goes on with the
+ * next one.  When the queue is full, callers wait for room up to
+ * offerTimeoutMillis and then get a future failed with an
+ * SQLTransientException.
+ *
+ */
+public class WriteBehindQueue {
+
+   /**
+    * One queued statement.
+    */
+   private static class Write {
+      final String sql;
+      final Object[] params;
+      final CompletableFuture<Integer> done = new CompletableFuture<Integer>();
+
+      Write(String sql, Object[] params) {
+         this.sql = sql;
+         this.params = params;
+      }
+   }
+
+   // marks the end of the queue on close
+   private static final Write STOP = new Write(null, null);
+
+   private final ProfNetwork esql;
+   private final BlockingQueue<Write> queue;
+   private final int batchSize;
+   private final long flushNanos;
+   private final long offerTimeoutMillis;
+   private final Thread writer;
+   private volatile boolean closed = false;
+
+   /**
+    * Creates the queue and starts its writer thread.
+    *
+    * @param esql the database access object
+    * @param capacity statements that may wait before callers are held up
+    * @param batchSize most statements per transaction
+    * @param flushMillis longest wait for a group to fill up
+    * @param offerTimeoutMillis longest wait for room in a full queue
+    */
+   public WriteBehindQueue(ProfNetwork esql, int capacity, int batchSize, long flushMillis, long offerTimeoutMillis) {
+      this.esql = esql;
+      this.queue = new ArrayBlockingQueue<Write>(Math.max(1, capacity));
+      this.batchSize = Math.max(1, batchSize);
+      this.flushNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, flushMillis));
+      this.offerTimeoutMillis = offerTimeoutMillis;
+      this.writer = new Thread(this::drain, "WriteBehindQueue-writer");
+      this.writer.setDaemon(true);
+      this.writer.start();
+   }
+
+   /**
+    * Queues an update statement.
+    *
+    * @param sql the SQL template with ? placeholders
+    * @param params the values for the placeholders
+    * @return a future completed with the row count once committed
+    */
+   public CompletableFuture<Integer> submit(String sql, Object... params) {
+      Write w = new Write(sql, params);
+      if (this.closed){
+         w.done.completeExceptionally(new SQLException("The write-behind queue is closed"));
+         return w.done;
+      }
+      try{
+         if (!this.queue.offer(w, this.offerTimeoutMillis, TimeUnit.MILLISECONDS))
+            w.done.completeExceptionally(new SQLTransientException(
+               "The write-behind queue stayed full for " + this.offerTimeoutMillis + " ms"));
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         w.done.completeExceptionally(new SQLException("Interrupted while queueing a write", e));
+      }//end try
+      return w.done;
+   }//end submit
+
+   /**
+    * @return the number of statements waiting to be written
+    */
+   public int pending() {
+      return this.queue.size();
+   }
+
+   // the writer thread
+   private void drain() {
+      List<Write> group = new ArrayList<Write>(this.batchSize);
+      boolean stopping = false;
+      while (!stopping){
+         try{
+            Write first = this.queue.take();
+            if (first == STOP)
+               break;
+            group.add(first);
+            // gather more until the group is full or the flush interval is up
+            long deadline = System.nanoTime() + this.flushNanos;
+            while (group.size() < this.batchSize){
+               Write next = this.queue.poll();
+               if (next == null){
+                  long wait = deadline - System.nanoTime();
+                  if (wait <= 0 || (next = this.queue.poll(wait, TimeUnit.NANOSECONDS)) == null)
+                     break;
+               }
+               if (next == STOP){
+                  stopping = true;
+                  break;
+               }
+               group.add(next);
+            }//end while
+         }catch (InterruptedException e){
+            stopping = true;
+         }//end try
+         if (!group.isEmpty()){
+            try{
+               flush(group);
+            }catch (Throwable t){
+               // the writer must survive, or every later caller would wait forever;
+               // futures already completed keep their value
+               for (Write w : group)
+                  w.done.completeExceptionally(t);
+            }finally{
+               group.clear();
+            }//end try
+         }//end if
+      }//end while
+   }//end drain
+
+   // writes one group in one transaction, or one statement at a time when that fails
+   private void flush(final List<Write> group) {
+      long start = System.nanoTime();
+      final int[] counts = new int[group.size()];
+      try{
+         this.esql.withConnection(pc -> {
+            Connection conn = pc.getConnection();
+            conn.setAutoCommit(false);
+            try{
+               int i = 0;
+               while (i < group.size()){
+                  // one batch per run of statements with the same SQL
+                  String sql = group.get(i).sql;
+                  PreparedStatement stmt = pc.prepare(sql);
+                  int from = i;
+                  try{
+                     for (; i < group.size() && group.get(i).sql.equals(sql); ++i){
+                        ProfNetwork.bind(stmt, group.get(i).params);
+                        stmt.addBatch();
+                     }
+                     int[] batch = stmt.executeBatch();
+                     System.arraycopy(batch, 0, counts, from, batch.length);
+                  }finally{
+                     // the statement is cached on the connection: a batch left
+                     // behind by a failure would run with the next one
+                     stmt.clearBatch();
+                  }//end try
+               }//end while
+               conn.commit();
+            }finally{
+               if (!conn.getAutoCommit()){
+                  conn.rollback();
+                  conn.setAutoCommit(true);
+               }//end if
+            }//end try
+            return null;
+         });
+      }catch (SQLException e){
+         this.esql.getMetrics().record("write-behind flush", start, -1, 0);
+         for (Write w : group)
+            retry(w);
+         return;
+      }//end try
+      this.esql.getMetrics().record("write-behind flush", start, group.size(), 0);
+      String last = null;
+      for (Write w : group)
+         if (!w.sql.equals(last))
+            this.esql.invalidate(last = w.sql);
+      for (int i = 0; i < group.size(); ++i)
+         group.get(i).done.complete(counts[i]);
+   }//end flush
+
+   private void retry(Write w) {
+      try{
+         w.done.complete(this.esql.executeUpdate(w.sql, w.params));
+      }catch (SQLException | RuntimeException e){
+         w.done.completeExceptionally(e);
+      }//end try
+   }
+
+   /**
+    * Writes everything already queued, then stops the writer thread.
+    */
+   public void close() {
+      if (this.closed)
+         return;
+      this.closed = true;
+      try{
+         this.queue.put(STOP);
+         this.writer.join();
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }//end try
+      // fail anything queued while the writer was stopping
+      Write w;
+      while ((w = this.queue.poll()) != null)
+         if (w != STOP)
+            w.done.completeExceptionally(new SQLException("The write-behind queue is closed"));
+   }
+
+}//end WriteBehindQueue
@@ -0,0 +1,125 @@
+package profnetwork.jmh;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * This class runs the ProfNetworkBench operations under JMH, against a
+ * local PostgreSQL database seeded with a synthetic social graph:
+ *
+ *    java -jar jmh/target/benchmarks.jar -prof gc -p dbname=<db> -p user=<user>
+ *
+ * Each operation reports throughput and sampled latency percentiles;
+ * -prof gc adds the allocation rate and bytes allocated per operation.
+ * Add -rf csv -rff results.csv to keep the results for a regression gate,
+ * -t to run several threads, -p operation=login,viewProfile to run only
+ * some operations, and -p users=... -p degree=... to size the graph.
+ *
+ * JMH does not accept benchmarks in the default package, and a class in a
+ * named package cannot refer to the default-package ProfNetwork classes,
+ * so the seeded database is a ProfNetworkBench.Fixture created by
+ * reflection and each operation is called as a java.util.concurrent.Callable.
+ *
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DataAccessBenchmark {
+
+   @Param({ "login", "viewProfile", "listOfFriends.sql", "listOfFriends.graph", "pendingRequests",
+            "sendRequest", "materialize.list", "materialize.stream" })
+   public String operation;
+
+   @Param("profnetwork")
+   public String dbname;
+
+   @Param("5432")
+   public String port;
+
+   @Param("postgres")
+   public String user;
+
+   @Param("10000")
+   public int users;
+
+   @Param("20")
+   public int degree;
+
+   AutoCloseable fixture;
+   Method op;
+
+   /**
+    * Connects and seeds the database once per trial.
+    *
+    * @param params the JMH settings, for the number of threads
+    * @throws Exception when the database cannot be reached or seeded
+    */
+   @Setup(Level.Trial)
+   public void open(BenchmarkParams params) throws Exception {
+      Class<?> fixtureClass = Class.forName("ProfNetworkBench$Fixture");
+      this.fixture = (AutoCloseable) fixtureClass
+         .getConstructor(String.class, String.class, String.class, int.class, int.class, int.class, boolean.class)
+         .newInstance(this.dbname, this.port, this.user, this.users, this.degree, params.getThreads(), false);
+      this.op = fixtureClass.getMethod("op", String.class, int.class);
+   }
+
+   /**
+    * Removes the seeded data.
+    *
+    * @throws Exception when the data cannot be deleted
+    */
+   @TearDown(Level.Trial)
+   public void close() throws Exception {
+      this.fixture.close();
+   }
+
+   /**
+    * The operation as called by one benchmark thread.
+    */
+   @State(Scope.Thread)
+   public static class Caller {
+      private static final AtomicInteger THREADS = new AtomicInteger();
+
+      Callable<?> call;
+
+      /**
+       * @param bench the seeded database
+       * @throws Exception when the operation cannot be prepared
+       */
+      @Setup(Level.Trial)
+      public void prepare(DataAccessBenchmark bench) throws Exception {
+         this.call = (Callable<?>) bench.op.invoke(bench.fixture, bench.operation, THREADS.getAndIncrement());
+      }
+   }//end Caller
+
+   /**
+    * @param caller the operation of this thread
+    * @return the result of the operation, consumed by JMH
+    * @throws Exception when the operation failed, which fails the run
+    */
+   @Benchmark
+   public Object run(Caller caller) throws Exception {
+      return caller.call.call();
+   }
+
+}//end DataAccessBenchmark
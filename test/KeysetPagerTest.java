@@ -0,0 +1,137 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * This class tests KeysetPager over a sorted array of keys.
+ *
+ */
+public class KeysetPagerTest {
+
+   // k00 to k24
+   private static final int KEYS = 25;
+
+   private String[] keys = keys(0, KEYS);
+
+   private static String[] keys(int from, int to) {
+      String[] keys = new String[to - from];
+      for (int i = from; i < to; ++i)
+         keys[i - from] = String.format("k%02d", i);
+      return keys;
+   }
+
+   // reads the current keys, so the test can delete some between pages
+   private KeysetPager pager(int pageSize) {
+      return new KeysetPager((cursor, forward, limit) -> KeysetPager.of(this.keys).fetch(cursor, forward, limit), pageSize);
+   }
+
+   private static List<String> page(KeysetPager pager) {
+      List<String> page = new ArrayList<String>();
+      for (int i = 0; i < pager.size(); ++i)
+         page.add(pager.get(i));
+      return page;
+   }
+
+   @Test
+   public void pagesForward() throws SQLException {
+      KeysetPager pager = pager(10);
+      pager.first();
+      assertEquals(Arrays.asList(keys(0, 10)), page(pager));
+      assertEquals(1, pager.pageNumber());
+      assertTrue(pager.hasNext());
+      assertFalse(pager.hasPrevious());
+
+      assertTrue(pager.next());
+      assertEquals(Arrays.asList(keys(10, 20)), page(pager));
+      assertEquals(2, pager.pageNumber());
+
+      assertTrue(pager.next());
+      assertEquals(Arrays.asList(keys(20, 25)), page(pager));
+      assertEquals(3, pager.pageNumber());
+      assertFalse(pager.hasNext());
+      assertFalse(pager.next());
+   }
+
+   @Test
+   public void pagesBackward() throws SQLException {
+      KeysetPager pager = pager(10);
+      pager.first();
+      pager.next();
+      pager.next();
+
+      assertTrue(pager.previous());
+      assertEquals(Arrays.asList(keys(10, 20)), page(pager));
+      assertEquals(2, pager.pageNumber());
+      assertTrue(pager.hasNext());
+
+      assertTrue(pager.previous());
+      assertEquals(Arrays.asList(keys(0, 10)), page(pager));
+      assertEquals(1, pager.pageNumber());
+      assertFalse(pager.hasPrevious());
+      assertFalse(pager.previous());
+   }
+
+   @Test
+   public void fillsTheFirstPageWhenKeysBeforeItWereDeleted() throws SQLException {
+      KeysetPager pager = pager(10);
+      pager.first();
+      pager.next();
+      this.keys = keys(5, KEYS);
+
+      assertTrue(pager.previous());
+      assertEquals(Arrays.asList(keys(5, 10)), page(pager));
+      assertEquals(1, pager.pageNumber());
+      assertFalse(pager.hasPrevious());
+   }
+
+   @Test
+   public void leavesAnEmptiedPageForTheOneBeforeIt() throws SQLException {
+      KeysetPager pager = pager(10);
+      pager.first();
+      pager.next();
+      pager.next();
+      this.keys = keys(0, 20);
+
+      pager.refresh();
+      assertEquals(0, pager.size());
+      assertFalse(pager.hasNext());
+      assertTrue(pager.hasPrevious());
+
+      // back to the keys just before the emptied page, not to the first page
+      assertTrue(pager.previous());
+      assertEquals(Arrays.asList(keys(10, 20)), page(pager));
+      assertEquals(2, pager.pageNumber());
+      assertTrue(pager.hasPrevious());
+   }
+
+   @Test
+   public void keepsTheStartingPointWhenThePageSizeChanges() throws SQLException {
+      KeysetPager pager = pager(10);
+      pager.first();
+      pager.next();
+
+      pager.setPageSize(5);
+      assertEquals(Arrays.asList(keys(10, 15)), page(pager));
+      assertTrue(pager.hasNext());
+
+      assertTrue(pager.next());
+      assertEquals(Arrays.asList(keys(15, 20)), page(pager));
+
+      assertTrue(pager.previous());
+      assertTrue(pager.previous());
+      assertEquals(Arrays.asList(keys(5, 10)), page(pager));
+      assertTrue(pager.hasPrevious());
+
+      pager.setPageSize(20);
+      assertEquals(Arrays.asList(keys(5, 25)), page(pager));
+      assertFalse(pager.hasNext());
+   }
+
+}//end KeysetPagerTest
@@ -0,0 +1,106 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * This class tests how ShardRebalancer splits the connections of a shard
+ * and settles the statuses of diverged copies.
+ *
+ */
+public class ShardRebalancerTest {
+
+   // members a* live on shard 0, b* on shard 1 and c* on shard 2
+   private static final ToIntFunction<String> SHARD_OF = id -> id.charAt(0) - 'a';
+
+   private static Object[] edge(String userId, String connectionId, String status) {
+      return new Object[]{ userId, connectionId, status };
+   }
+
+   private static List<Object[]> edges(Object[]... edges) {
+      return Arrays.asList(edges);
+   }
+
+   @Test
+   public void keepsEdgesOfLocalMembers() {
+      Object[] local = edge("a1", "a2", "Accept");
+      ShardRebalancer.EdgeSplit split = ShardRebalancer.split(0, edges(local), SHARD_OF);
+      assertTrue(split.copies.isEmpty());
+      assertTrue(split.stray.isEmpty());
+   }
+
+   @Test
+   public void copiesEdgesToTheOtherMembersShard() {
+      Object[] out = edge("a1", "b1", "Request");
+      Object[] in = edge("b2", "a1", "Accept");
+      ShardRebalancer.EdgeSplit split = ShardRebalancer.split(0, edges(out, in), SHARD_OF);
+      assertEquals(1, split.copies.size());
+      List<Object[]> toB = split.copies.get(1);
+      assertEquals(2, toB.size());
+      assertSame(out, toB.get(0));
+      assertSame(in, toB.get(1));
+      // shard 0 holds a1, so both rows stay
+      assertTrue(split.stray.isEmpty());
+   }
+
+   @Test
+   public void movesStrayEdgesToBothMembersShards() {
+      Object[] stray = edge("b1", "c1", "Accept");
+      Object[] strayOnOneShard = edge("b1", "b2", "Reject");
+      ShardRebalancer.EdgeSplit split = ShardRebalancer.split(0, edges(stray, strayOnOneShard), SHARD_OF);
+      assertEquals(2, split.copies.size());
+      // an edge between two members of the same shard is copied there once
+      assertEquals(edges(stray, strayOnOneShard), split.copies.get(1));
+      assertEquals(edges(stray), split.copies.get(2));
+      assertEquals(edges(stray, strayOnOneShard), split.stray);
+   }
+
+   @Test
+   public void ranksAcceptOverRejectOverRequest() {
+      assertEquals(2, ShardRebalancer.rank("Accept"));
+      assertEquals(1, ShardRebalancer.rank("Reject"));
+      assertEquals(0, ShardRebalancer.rank("Request"));
+      // char(10) padding, an unknown status and NULL
+      assertEquals(2, ShardRebalancer.rank("Accept    "));
+      assertEquals(0, ShardRebalancer.rank("Pending"));
+      assertEquals(0, ShardRebalancer.rank(null));
+   }
+
+   @Test
+   public void reconcilesOnlyAnsweredEdges() {
+      List<Object[]> chunk = edges(edge("a1", "b1", "Request"), edge("a2", "b1", "Reject"),
+                                   edge("a3", "b1", "Accept    "));
+      List<Object[]> rows = ShardRebalancer.reconcileRows(chunk);
+      // a pending request can never raise the other copy
+      assertEquals(2, rows.size());
+      assertArrayEquals(new Object[]{ "Reject", "a2", "b1", "Reject" }, rows.get(0));
+      assertArrayEquals(new Object[]{ "Accept    ", "a3", "b1", "Accept    " }, rows.get(1));
+   }
+
+   @Test
+   public void copiesEveryEdge() {
+      List<Object[]> rows = ShardRebalancer.copyRows(edges(edge("a1", "b1", "Request")));
+      assertEquals(1, rows.size());
+      assertArrayEquals(new Object[]{ "a1", "b1", "Request", "a1", "b1" }, rows.get(0));
+   }
+
+   @Test
+   public void pushingBothWaysSettlesOnTheHigherStatus() {
+      String[] statuses = { "Request", "Reject", "Accept" };
+      for (String a : statuses)
+         for (String b : statuses){
+            // each copy is raised by the other when that ranks higher, as RECONCILE_EDGE does
+            String settledA = ShardRebalancer.rank(a) < ShardRebalancer.rank(b) ? b : a;
+            String settledB = ShardRebalancer.rank(b) < ShardRebalancer.rank(a) ? a : b;
+            assertEquals(settledA, settledB, a + " against " + b);
+            assertEquals(Math.max(ShardRebalancer.rank(a), ShardRebalancer.rank(b)), ShardRebalancer.rank(settledA));
+         }
+   }
+
+}//end ShardRebalancerTest
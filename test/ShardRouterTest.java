@@ -0,0 +1,60 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * This class tests the placement of userIds on shards.
+ *
+ */
+public class ShardRouterTest {
+
+   private static final int MEMBERS = 100000;
+
+   @Test
+   public void placesOnEveryShardInRange() {
+      for (int buckets = 1; buckets <= 16; ++buckets)
+         for (int i = 0; i < 1000; ++i){
+            int shard = ShardRouter.shardOf("user" + i, buckets);
+            assertTrue(shard >= 0 && shard < buckets, "shard " + shard + " of " + buckets);
+         }
+   }
+
+   @Test
+   public void ignoresTrailingBlanks() {
+      assertEquals(ShardRouter.shardOf("alice", 7), ShardRouter.shardOf("alice     ", 7));
+   }
+
+   @Test
+   public void addingAShardOnlyMovesMembersToIt() {
+      for (int buckets = 1; buckets < 12; ++buckets){
+         int moved = 0;
+         for (int i = 0; i < MEMBERS; ++i){
+            String id = "user" + i;
+            int before = ShardRouter.shardOf(id, buckets);
+            int after = ShardRouter.shardOf(id, buckets + 1);
+            if (after != before){
+               assertEquals(buckets, after, id + " moved between old shards");
+               ++moved;
+            }
+         }//end for
+         // about one member in buckets + 1 moves to the new shard
+         double expected = (double) MEMBERS / (buckets + 1);
+         assertTrue(Math.abs(moved - expected) < expected * 0.05,
+                    moved + " members moved to shard " + buckets + ", expected about " + (long) expected);
+      }//end for
+   }
+
+   @Test
+   public void spreadsMembersEvenly() {
+      int buckets = 8;
+      int[] counts = new int[buckets];
+      for (int i = 0; i < MEMBERS; ++i)
+         ++counts[ShardRouter.shardOf("user" + i, buckets)];
+      double mean = (double) MEMBERS / buckets;
+      for (int s = 0; s < buckets; ++s)
+         assertTrue(Math.abs(counts[s] - mean) < mean * 0.05,
+                    "shard " + s + " holds " + counts[s] + " members, expected about " + (long) mean);
+   }
+
+}//end ShardRouterTest